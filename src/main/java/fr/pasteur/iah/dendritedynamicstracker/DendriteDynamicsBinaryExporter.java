@@ -0,0 +1,410 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import fiji.plugin.trackmate.TrackMate;
+import net.imglib2.algorithm.Algorithm;
+
+/**
+ * Exports dendrite tracking data to a compact binary file, made of a header
+ * followed by fixed-width primitive columns. The file can be read back with
+ * {@link DendriteDynamicsBinaryReader}.
+ * <p>
+ * All values are little-endian. The layout is:
+ * <ol>
+ * <li>Header: magic number, version, header length (3 ints), then the number
+ * of tracks, branch rows, frames and track features (4 ints), the frame
+ * interval (double), the space and time units and the track feature names
+ * (length-prefixed UTF-8 strings), and one byte per track feature that is 1 if
+ * the feature is an integer feature.</li>
+ * <li>Track table: track IDs sorted in ascending order (int), offset of the
+ * first branch row of each track (nTracks + 1 ints), one double column per
+ * track feature (NaN when the value is missing), offsets of the track names
+ * (nTracks + 1 ints) and the track names (UTF-8 bytes).</li>
+ * <li>Branch time-series, one row per spot, tracks in the order of the track
+ * table and spots sorted by frame: frame (int), time, branch length and branch
+ * speed (doubles).</li>
+ * <li>Frame statistics: branch additions, branch deletions, branches alive
+ * (ints) and total branch length (double).</li>
+ * </ol>
+ * Each column starts on a multiple of 8 bytes.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class DendriteDynamicsBinaryExporter implements Algorithm
+{
+
+	static final int MAGIC = 0x42545444;
+
+	static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private String errorMessage;
+
+	private final DendriteDynamicsResults results;
+
+	public DendriteDynamicsBinaryExporter( final TrackMate trackmate )
+	{
+		this( new DendriteDynamicsCSVExporter.TrackMateResults( trackmate ) );
+	}
+
+	public DendriteDynamicsBinaryExporter( final DendriteDynamicsResults results )
+	{
+		this.results = results;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final String rootFolderStr = DendriteDynamicsCSVExporter.determineRootSaveFolder( results.getImp() );
+		final File rootFolder = new File( rootFolderStr );
+		if ( !rootFolder.canWrite() )
+		{
+			errorMessage = "Cannot write to save folder: " + rootFolder;
+			return false;
+		}
+
+		final String file = DendriteDynamicsCSVExporter.determineFileName( rootFolder, results.getImp(), "DendriteDynamics.ddtb" );
+		try
+		{
+			write( results, new File( file ) );
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = "Could not write to " + file + "\n";
+			errorMessage += e.getMessage();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the dendrite tracking results of the specified TrackMate instance
+	 * to the specified file.
+	 *
+	 * @param trackmate
+	 *            the TrackMate instance holding the results.
+	 * @param file
+	 *            the file to write to.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static void write( final TrackMate trackmate, final File file ) throws IOException
+	{
+		write( new DendriteDynamicsCSVExporter.TrackMateResults( trackmate ), file );
+	}
+
+	/**
+	 * Writes the specified dendrite tracking results to the specified file.
+	 *
+	 * @param results
+	 *            the results to write.
+	 * @param file
+	 *            the file to write to.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static void write( final DendriteDynamicsResults results, final File file ) throws IOException
+	{
+		final double frameInterval = results.getFrameInterval();
+		final DendriteFrameStatistics stats = results.getFrameStatistics();
+		final int nFrames = stats.nFrames;
+
+		final List< String > trackFeatures = new ArrayList<>( results.getTrackFeatures() );
+		final Collection< Integer > trackIDSet = results.getTrackIDs();
+		final int[] trackIDs = new int[ trackIDSet.size() ];
+		int k = 0;
+		for ( final Integer trackID : trackIDSet )
+			trackIDs[ k++ ] = trackID.intValue();
+		Arrays.sort( trackIDs );
+
+		// Sorted branches, as times and lengths, and where they start in the
+		// branch table.
+		final List< double[][] > branches = new ArrayList<>( trackIDs.length );
+		final int[] rowOffsets = new int[ trackIDs.length + 1 ];
+		for ( int i = 0; i < trackIDs.length; i++ )
+		{
+			final double[][] branch = results.getBranch( Integer.valueOf( trackIDs[ i ] ) );
+			branches.add( branch );
+			rowOffsets[ i + 1 ] = rowOffsets[ i ] + branch[ 0 ].length;
+		}
+		final int nRows = rowOffsets[ trackIDs.length ];
+
+		try (final FileChannel channel = FileChannel.open( Paths.get( file.getAbsolutePath() ),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ))
+		{
+			final ColumnWriter out = new ColumnWriter( channel );
+
+			/*
+			 * Header.
+			 */
+
+			final ByteBuffer header = encodeHeader( trackIDs.length, nRows, nFrames, frameInterval,
+					results.getSpaceUnits(), results.getTimeUnits(), trackFeatures, results );
+			out.putBytes( header.array(), header.position() );
+			out.pad();
+
+			/*
+			 * Track table.
+			 */
+
+			for ( final int trackID : trackIDs )
+				out.putInt( trackID );
+			out.pad();
+			for ( final int offset : rowOffsets )
+				out.putInt( offset );
+			out.pad();
+			for ( final String feature : trackFeatures )
+			{
+				for ( final int trackID : trackIDs )
+				{
+					final Double val = results.getTrackFeature( Integer.valueOf( trackID ), feature );
+					out.putDouble( null == val ? Double.NaN : val.doubleValue() );
+				}
+			}
+			final byte[][] names = new byte[ trackIDs.length ][];
+			int nameOffset = 0;
+			out.putInt( nameOffset );
+			for ( int i = 0; i < trackIDs.length; i++ )
+			{
+				final String name = results.getTrackName( Integer.valueOf( trackIDs[ i ] ) );
+				names[ i ] = ( null == name ? "" : name ).getBytes( StandardCharsets.UTF_8 );
+				nameOffset += names[ i ].length;
+				out.putInt( nameOffset );
+			}
+			out.pad();
+			for ( final byte[] name : names )
+				out.putBytes( name, name.length );
+			out.pad();
+
+			/*
+			 * Branch time-series.
+			 */
+
+			// Spot times are their frame times the frame interval.
+			for ( final double[][] branch : branches )
+				for ( final double time : branch[ 0 ] )
+					out.putInt( ( int ) Math.round( time / frameInterval ) );
+			out.pad();
+			for ( final double[][] branch : branches )
+				for ( final double time : branch[ 0 ] )
+					out.putDouble( time );
+			for ( final double[][] branch : branches )
+				for ( final double length : branch[ 1 ] )
+					out.putDouble( length );
+			for ( final double[][] branch : branches )
+			{
+				// Same convention than for the CSV export: the branch has a
+				// length of 0 one frame before it appears.
+				double previousTime = branch[ 0 ][ 0 ] - frameInterval;
+				double previousLength = 0.;
+				for ( int i = 0; i < branch[ 0 ].length; i++ )
+				{
+					final double currentTime = branch[ 0 ][ i ];
+					final double currentLength = branch[ 1 ][ i ];
+					out.putDouble( ( currentLength - previousLength ) / ( currentTime - previousTime ) );
+					previousTime = currentTime;
+					previousLength = currentLength;
+				}
+			}
+
+			/*
+			 * Frame statistics.
+			 */
+
+			for ( final int val : stats.branchAdditions )
+				out.putInt( val );
+			out.pad();
+			for ( final int val : stats.branchDeletions )
+				out.putInt( val );
+			out.pad();
+			for ( final int val : stats.branchesAlive )
+				out.putInt( val );
+			out.pad();
+			for ( final double val : stats.totalBranchLength )
+				out.putDouble( val );
+
+			out.flush();
+		}
+	}
+
+	private static ByteBuffer encodeHeader(
+			final int nTracks,
+			final int nRows,
+			final int nFrames,
+			final double frameInterval,
+			final String spaceUnits,
+			final String timeUnits,
+			final List< String > trackFeatures,
+			final DendriteDynamicsResults results )
+	{
+		final List< byte[] > strings = new ArrayList<>();
+		strings.add( ( null == spaceUnits ? "" : spaceUnits ).getBytes( StandardCharsets.UTF_8 ) );
+		strings.add( ( null == timeUnits ? "" : timeUnits ).getBytes( StandardCharsets.UTF_8 ) );
+		for ( final String feature : trackFeatures )
+			strings.add( feature.getBytes( StandardCharsets.UTF_8 ) );
+
+		int length = 7 * Integer.BYTES + Double.BYTES + trackFeatures.size();
+		for ( final byte[] str : strings )
+			length += Integer.BYTES + str.length;
+
+		final ByteBuffer header = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+		header.putInt( MAGIC );
+		header.putInt( VERSION );
+		header.putInt( length );
+		header.putInt( nTracks );
+		header.putInt( nRows );
+		header.putInt( nFrames );
+		header.putInt( trackFeatures.size() );
+		header.putDouble( frameInterval );
+		for ( final byte[] str : strings )
+		{
+			header.putInt( str.length );
+			header.put( str );
+		}
+		for ( final String feature : trackFeatures )
+		{
+			header.put( ( byte ) ( results.isIntTrackFeature( feature ) ? 1 : 0 ) );
+		}
+		return header;
+	}
+
+	/**
+	 * Rounds up the specified position to the next multiple of 8.
+	 */
+	static long align( final long position )
+	{
+		return ( position + 7 ) & ~7L;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Buffers primitive values and writes them to a file channel.
+	 */
+	private static final class ColumnWriter
+	{
+
+		private final FileChannel channel;
+
+		private final ByteBuffer buffer;
+
+		private long position;
+
+		public ColumnWriter( final FileChannel channel )
+		{
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocateDirect( BUFFER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			this.position = 0;
+		}
+
+		private void ensureRemaining( final int n ) throws IOException
+		{
+			if ( buffer.remaining() < n )
+				flush();
+		}
+
+		public void putInt( final int val ) throws IOException
+		{
+			ensureRemaining( Integer.BYTES );
+			buffer.putInt( val );
+			position += Integer.BYTES;
+		}
+
+		public void putDouble( final double val ) throws IOException
+		{
+			ensureRemaining( Double.BYTES );
+			buffer.putDouble( val );
+			position += Double.BYTES;
+		}
+
+		public void putBytes( final byte[] bytes, final int length ) throws IOException
+		{
+			int offset = 0;
+			while ( offset < length )
+			{
+				ensureRemaining( 1 );
+				final int n = Math.min( buffer.remaining(), length - offset );
+				buffer.put( bytes, offset, n );
+				offset += n;
+			}
+			position += length;
+		}
+
+		/**
+		 * Writes zeros until the position is a multiple of 8.
+		 */
+		public void pad() throws IOException
+		{
+			final long target = align( position );
+			while ( position < target )
+			{
+				ensureRemaining( 1 );
+				buffer.put( ( byte ) 0 );
+				position++;
+			}
+		}
+
+		public void flush() throws IOException
+		{
+			buffer.flip();
+			while ( buffer.hasRemaining() )
+				channel.write( buffer );
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,424 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import static fr.pasteur.iah.dendritedynamicstracker.DendriteDynamicsBinaryExporter.align;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the binary files written by {@link DendriteDynamicsBinaryExporter}.
+ * <p>
+ * The columns of the file are memory-mapped and exposed as read-only
+ * {@link IntBuffer}s and {@link DoubleBuffer}s, without copying. The branch
+ * time-series of a track are retrieved by track ID with a binary search in the
+ * sorted track ID column.
+ * <p>
+ * Each getter returns a new view on the mapped data, so that views can be
+ * used concurrently from several threads.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class DendriteDynamicsBinaryReader implements Closeable
+{
+
+	private final FileChannel channel;
+
+	private final int nTracks;
+
+	private final int nRows;
+
+	private final int nFrames;
+
+	private final double frameInterval;
+
+	private final String spaceUnits;
+
+	private final String timeUnits;
+
+	private final List< String > trackFeatures;
+
+	private final boolean[] isIntFeature;
+
+	private final IntBuffer trackIDs;
+
+	private final IntBuffer rowOffsets;
+
+	private final DoubleBuffer[] features;
+
+	private final IntBuffer nameOffsets;
+
+	private final ByteBuffer names;
+
+	private final IntBuffer frames;
+
+	private final DoubleBuffer times;
+
+	private final DoubleBuffer branchLengths;
+
+	private final DoubleBuffer branchSpeeds;
+
+	private final IntBuffer branchAdditions;
+
+	private final IntBuffer branchDeletions;
+
+	private final IntBuffer branchesAlive;
+
+	private final DoubleBuffer totalBranchLength;
+
+	public DendriteDynamicsBinaryReader( final File file ) throws IOException
+	{
+		this.channel = FileChannel.open( Paths.get( file.getAbsolutePath() ), StandardOpenOption.READ );
+		try
+		{
+			/*
+			 * Header.
+			 */
+
+			final ByteBuffer start = read( 0, 3 * Integer.BYTES );
+			final int magic = start.getInt();
+			final int version = start.getInt();
+			final int headerLength = start.getInt();
+			if ( magic != DendriteDynamicsBinaryExporter.MAGIC )
+				throw new IOException( "Not a Dendrite Dynamics Tracker binary file: " + file );
+			if ( version != DendriteDynamicsBinaryExporter.VERSION )
+				throw new IOException( "Unsupported file version: " + version + " in " + file );
+
+			final ByteBuffer header = read( 0, headerLength );
+			header.position( 3 * Integer.BYTES );
+			this.nTracks = header.getInt();
+			this.nRows = header.getInt();
+			this.nFrames = header.getInt();
+			final int nFeatures = header.getInt();
+			this.frameInterval = header.getDouble();
+			this.spaceUnits = readString( header );
+			this.timeUnits = readString( header );
+			final List< String > featureList = new ArrayList<>( nFeatures );
+			for ( int i = 0; i < nFeatures; i++ )
+				featureList.add( readString( header ) );
+			this.trackFeatures = Collections.unmodifiableList( featureList );
+			this.isIntFeature = new boolean[ nFeatures ];
+			for ( int i = 0; i < nFeatures; i++ )
+				isIntFeature[ i ] = header.get() != 0;
+
+			/*
+			 * Map columns.
+			 */
+
+			long pos = align( headerLength );
+
+			this.trackIDs = map( pos, ( long ) nTracks * Integer.BYTES ).asIntBuffer();
+			pos = align( pos + ( long ) nTracks * Integer.BYTES );
+			this.rowOffsets = map( pos, ( nTracks + 1L ) * Integer.BYTES ).asIntBuffer();
+			pos = align( pos + ( nTracks + 1L ) * Integer.BYTES );
+			this.features = new DoubleBuffer[ nFeatures ];
+			for ( int i = 0; i < nFeatures; i++ )
+			{
+				features[ i ] = map( pos, ( long ) nTracks * Double.BYTES ).asDoubleBuffer();
+				pos += ( long ) nTracks * Double.BYTES;
+			}
+			this.nameOffsets = map( pos, ( nTracks + 1L ) * Integer.BYTES ).asIntBuffer();
+			pos = align( pos + ( nTracks + 1L ) * Integer.BYTES );
+			final int nameBytes = nameOffsets.get( nTracks );
+			this.names = map( pos, nameBytes );
+			pos = align( pos + nameBytes );
+
+			this.frames = map( pos, ( long ) nRows * Integer.BYTES ).asIntBuffer();
+			pos = align( pos + ( long ) nRows * Integer.BYTES );
+			this.times = map( pos, ( long ) nRows * Double.BYTES ).asDoubleBuffer();
+			pos += ( long ) nRows * Double.BYTES;
+			this.branchLengths = map( pos, ( long ) nRows * Double.BYTES ).asDoubleBuffer();
+			pos += ( long ) nRows * Double.BYTES;
+			this.branchSpeeds = map( pos, ( long ) nRows * Double.BYTES ).asDoubleBuffer();
+			pos += ( long ) nRows * Double.BYTES;
+
+			this.branchAdditions = map( pos, ( long ) nFrames * Integer.BYTES ).asIntBuffer();
+			pos = align( pos + ( long ) nFrames * Integer.BYTES );
+			this.branchDeletions = map( pos, ( long ) nFrames * Integer.BYTES ).asIntBuffer();
+			pos = align( pos + ( long ) nFrames * Integer.BYTES );
+			this.branchesAlive = map( pos, ( long ) nFrames * Integer.BYTES ).asIntBuffer();
+			pos = align( pos + ( long ) nFrames * Integer.BYTES );
+			this.totalBranchLength = map( pos, ( long ) nFrames * Double.BYTES ).asDoubleBuffer();
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * HEADER.
+	 */
+
+	public int nTracks()
+	{
+		return nTracks;
+	}
+
+	public int nRows()
+	{
+		return nRows;
+	}
+
+	public int nFrames()
+	{
+		return nFrames;
+	}
+
+	public double getFrameInterval()
+	{
+		return frameInterval;
+	}
+
+	public String getSpaceUnits()
+	{
+		return spaceUnits;
+	}
+
+	public String getTimeUnits()
+	{
+		return timeUnits;
+	}
+
+	public List< String > getTrackFeatures()
+	{
+		return trackFeatures;
+	}
+
+	public boolean isIntFeature( final String feature )
+	{
+		return isIntFeature[ featureIndex( feature ) ];
+	}
+
+	/*
+	 * TRACK TABLE.
+	 */
+
+	/**
+	 * Returns the track ID at the specified index in the track table. Track
+	 * IDs are sorted in ascending order.
+	 */
+	public int getTrackID( final int index )
+	{
+		return trackIDs.get( index );
+	}
+
+	/**
+	 * Returns the index of the specified track in the track table, or a
+	 * negative value if it is not in the file.
+	 */
+	public int indexOf( final int trackID )
+	{
+		int low = 0;
+		int high = nTracks - 1;
+		while ( low <= high )
+		{
+			final int mid = ( low + high ) >>> 1;
+			final int val = trackIDs.get( mid );
+			if ( val < trackID )
+				low = mid + 1;
+			else if ( val > trackID )
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -( low + 1 );
+	}
+
+	public String getTrackName( final int trackID )
+	{
+		final int index = checkedIndexOf( trackID );
+		final int from = nameOffsets.get( index );
+		final int to = nameOffsets.get( index + 1 );
+		final byte[] bytes = new byte[ to - from ];
+		final ByteBuffer view = names.duplicate();
+		view.position( from );
+		view.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * Returns the value of the specified feature for the specified track. Is
+	 * {@link Double#NaN} if the value was missing.
+	 */
+	public double getTrackFeature( final int trackID, final String feature )
+	{
+		return features[ featureIndex( feature ) ].get( checkedIndexOf( trackID ) );
+	}
+
+	/**
+	 * Returns a read-only view on the whole column of the specified track
+	 * feature, in the order of the track table.
+	 */
+	public DoubleBuffer getTrackFeatureColumn( final String feature )
+	{
+		return features[ featureIndex( feature ) ].asReadOnlyBuffer();
+	}
+
+	/*
+	 * BRANCH TIME-SERIES.
+	 */
+
+	/**
+	 * Returns the number of spots in the specified track.
+	 */
+	public int nSpots( final int trackID )
+	{
+		final int index = checkedIndexOf( trackID );
+		return rowOffsets.get( index + 1 ) - rowOffsets.get( index );
+	}
+
+	public IntBuffer getFrames( final int trackID )
+	{
+		final int index = checkedIndexOf( trackID );
+		final IntBuffer view = frames.asReadOnlyBuffer();
+		view.position( rowOffsets.get( index ) );
+		view.limit( rowOffsets.get( index + 1 ) );
+		return view.slice();
+	}
+
+	public DoubleBuffer getTimes( final int trackID )
+	{
+		return slice( times, checkedIndexOf( trackID ) );
+	}
+
+	public DoubleBuffer getBranchLengths( final int trackID )
+	{
+		return slice( branchLengths, checkedIndexOf( trackID ) );
+	}
+
+	public DoubleBuffer getBranchSpeeds( final int trackID )
+	{
+		return slice( branchSpeeds, checkedIndexOf( trackID ) );
+	}
+
+	/*
+	 * FRAME STATISTICS.
+	 */
+
+	public IntBuffer getBranchAdditions()
+	{
+		return branchAdditions.asReadOnlyBuffer();
+	}
+
+	public IntBuffer getBranchDeletions()
+	{
+		return branchDeletions.asReadOnlyBuffer();
+	}
+
+	public IntBuffer getBranchesAlive()
+	{
+		return branchesAlive.asReadOnlyBuffer();
+	}
+
+	public DoubleBuffer getTotalBranchLength()
+	{
+		return totalBranchLength.asReadOnlyBuffer();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	/*
+	 * PRIVATE METHODS.
+	 */
+
+	private DoubleBuffer slice( final DoubleBuffer column, final int index )
+	{
+		final DoubleBuffer view = column.asReadOnlyBuffer();
+		view.position( rowOffsets.get( index ) );
+		view.limit( rowOffsets.get( index + 1 ) );
+		return view.slice();
+	}
+
+	private int checkedIndexOf( final int trackID )
+	{
+		final int index = indexOf( trackID );
+		if ( index < 0 )
+			throw new NoSuchElementException( "Unknown track ID: " + trackID );
+		return index;
+	}
+
+	private int featureIndex( final String feature )
+	{
+		final int index = trackFeatures.indexOf( feature );
+		if ( index < 0 )
+			throw new NoSuchElementException( "Unknown track feature: " + feature );
+		return index;
+	}
+
+	private ByteBuffer map( final long position, final long size ) throws IOException
+	{
+		if ( size > Integer.MAX_VALUE )
+			throw new IOException( "Column too large to be mapped: " + size + " bytes." );
+		return channel.map( FileChannel.MapMode.READ_ONLY, position, size ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	private ByteBuffer read( final long position, final int size ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+		while ( buffer.hasRemaining() )
+		{
+			if ( channel.read( buffer, position + buffer.position() ) < 0 )
+				throw new IOException( "Unexpected end of file." );
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static String readString( final ByteBuffer buffer )
+	{
+		final int length = buffer.getInt();
+		final byte[] bytes = new byte[ length ];
+		buffer.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+}
@@ -32,29 +32,36 @@
  */
 package fr.pasteur.iah.dendritedynamicstracker;
 
+import java.io.BufferedWriter;
+import java.io.CharArrayWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.io.FilenameUtils;
 
-import com.opencsv.CSVWriter;
-
 import fiji.plugin.trackmate.Dimension;
-import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.TrackMate;
-import fiji.plugin.trackmate.TrackModel;
 import fiji.plugin.trackmate.util.TMUtils;
 import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.BranchLengthAnalyzerFactory;
 import ij.ImagePlus;
 import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.multithreading.SimpleMultiThreading;
 
 /**
  * Exports dendrite tracking data to CSV files.
@@ -62,16 +69,74 @@ import net.imglib2.algorithm.Algorithm;
  * @author Jean-Yves Tinevez
  *
  */
-public class DendriteDynamicsCSVExporter implements Algorithm
+public class DendriteDynamicsCSVExporter implements Algorithm, MultiThreaded
 {
 
+	/**
+	 * How to lay out the branch length time-series on disk.
+	 */
+	public static enum BranchFileLayout
+	{
+		/**
+		 * One CSV file per track, in a folder named after the source image.
+		 * All the CSV files already present in this folder are deleted.
+		 */
+		PER_TRACK_FILES( "One CSV file per branch" ),
+		/**
+		 * A single long-format CSV file, one line per track and time-point.
+		 */
+		SINGLE_FILE( "Single CSV file" ),
+		/**
+		 * Same as {@link #SINGLE_FILE}, gzip-compressed.
+		 */
+		SINGLE_FILE_GZIP( "Single gzipped CSV file" );
+
+		private final String label;
+
+		private BranchFileLayout( final String label )
+		{
+			this.label = label;
+		}
+
+		@Override
+		public String toString()
+		{
+			return label;
+		}
+	}
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Default maximal number of per-track files open at the same time.
+	 */
+	public static final int DEFAULT_MAX_OPEN_FILES = 16;
+
 	private String errorMessage;
 
-	private final TrackMate trackmate;
+	private int numThreads;
+
+	private int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+
+	private final DendriteDynamicsResults results;
+
+	private final BranchFileLayout branchFileLayout;
 
 	public DendriteDynamicsCSVExporter( final TrackMate trackmate )
 	{
-		this.trackmate = trackmate;
+		this( trackmate, BranchFileLayout.PER_TRACK_FILES );
+	}
+
+	public DendriteDynamicsCSVExporter( final TrackMate trackmate, final BranchFileLayout branchFileLayout )
+	{
+		this( new TrackMateResults( trackmate ), branchFileLayout );
+	}
+
+	public DendriteDynamicsCSVExporter( final DendriteDynamicsResults results, final BranchFileLayout branchFileLayout )
+	{
+		this.results = results;
+		this.branchFileLayout = branchFileLayout;
+		setNumThreads();
 	}
 
 	@Override
@@ -87,7 +152,7 @@ public class DendriteDynamicsCSVExporter implements Algorithm
 		 * Determine where to save the CSV files.
 		 */
 
-		final String rootFolderStr = determineRootSaveFolder( trackmate.getSettings().imp );
+		final String rootFolderStr = determineRootSaveFolder( results.getImp() );
 		final File rootFolder = new File( rootFolderStr );
 		if ( !rootFolder.canWrite() )
 		{
@@ -95,25 +160,73 @@ public class DendriteDynamicsCSVExporter implements Algorithm
 			return false;
 		}
 
+		final Collection< Integer > trackIDs = results.getTrackIDs();
+
 		/*
-		 * Save track statistics.
+		 * The track statistics, the branch length files and the frame
+		 * statistics are written concurrently.
 		 */
 
-		final String spaceUnits = trackmate.getModel().getSpaceUnits();
-		final String timeUnits = trackmate.getModel().getTimeUnits();
-		final FeatureModel fm = trackmate.getModel().getFeatureModel();
-		final List< String > trackFeatures = new ArrayList<>( fm.getTrackFeatures() );
-		final Set< Integer > trackIDs = trackmate.getModel().getTrackModel().trackIDs( true );
+		final AtomicBoolean ok = new AtomicBoolean( true );
+		final Thread trackStatThread = new Thread( "Dendrite export - track statistics" )
+		{
+			@Override
+			public void run()
+			{
+				if ( !exportTrackStatistics( rootFolder, trackIDs ) )
+					ok.set( false );
+			}
+		};
+		final Thread branchThread = new Thread( "Dendrite export - branch length" )
+		{
+			@Override
+			public void run()
+			{
+				final boolean branchesOk;
+				switch ( branchFileLayout )
+				{
+				case SINGLE_FILE:
+					branchesOk = exportBranchesToSingleFile( rootFolder, trackIDs, false );
+					break;
+				case SINGLE_FILE_GZIP:
+					branchesOk = exportBranchesToSingleFile( rootFolder, trackIDs, true );
+					break;
+				case PER_TRACK_FILES:
+				default:
+					branchesOk = exportBranchesToIndividualFiles( rootFolder, trackIDs );
+					break;
+				}
+				if ( !branchesOk )
+					ok.set( false );
+			}
+		};
+		final Thread frameStatThread = new Thread( "Dendrite export - frame statistics" )
+		{
+			@Override
+			public void run()
+			{
+				if ( !exportFrameStatistics( rootFolder ) )
+					ok.set( false );
+			}
+		};
+		SimpleMultiThreading.startAndJoin( new Thread[] { trackStatThread, branchThread, frameStatThread } );
+		return ok.get();
+	}
+
+	/**
+	 * Saves track statistics.
+	 */
+	private boolean exportTrackStatistics( final File rootFolder, final Collection< Integer > trackIDs )
+	{
+		final String spaceUnits = results.getSpaceUnits();
+		final String timeUnits = results.getTimeUnits();
+		final List< String > trackFeatures = results.getTrackFeatures();
 
-		final String trackStatFile = determineStatFileName( rootFolder, trackmate.getSettings().imp );
+		final String trackStatFile = determineStatFileName( rootFolder, results.getImp() );
 		try (
 				Writer writer = Files.newBufferedWriter( Paths.get( trackStatFile ) );
 
-				CSVWriter csvWriter = new CSVWriter( writer,
-						CSVWriter.DEFAULT_SEPARATOR,
-						CSVWriter.NO_QUOTE_CHARACTER,
-						CSVWriter.DEFAULT_ESCAPE_CHARACTER,
-						CSVWriter.DEFAULT_LINE_END );)
+				NumericCSVWriter csvWriter = new NumericCSVWriter( writer );)
 		{
 
 			final String[] header1 = new String[ trackFeatures.size() + 2 ];
@@ -125,214 +238,60 @@ public class DendriteDynamicsCSVExporter implements Algorithm
 			for ( int i = 0; i < trackFeatures.size(); i++ )
 			{
 				final String feature = trackFeatures.get( i );
-				final Dimension dimension = fm.getTrackFeatureDimensions().get( feature );
+				final Dimension dimension = results.getTrackFeatureDimension( feature );
 				header1[ i + 2 ] = feature;
 				header2[ i + 2 ] = "(" + TMUtils.getUnitsFor( dimension, spaceUnits, timeUnits ) + ")";
 			}
-			csvWriter.writeNext( header1 );
-			csvWriter.writeNext( header2 );
+			csvWriter.writeLine( header1 );
+			csvWriter.writeLine( header2 );
 
-			final String[] line = new String[ trackFeatures.size() + 2 ];
 			for ( final Integer trackID : trackIDs )
 			{
-				line[ 0 ] = "" + trackID.intValue();
-				line[ 1 ] = trackmate.getModel().getTrackModel().name( trackID );
+				csvWriter.write( trackID.intValue() );
+				csvWriter.write( results.getTrackName( trackID ) );
 				for ( int i = 0; i < trackFeatures.size(); i++ )
 				{
 					final String feature = trackFeatures.get( i );
-					final Double val = fm.getTrackFeature( trackID, feature );
+					final Double val = results.getTrackFeature( trackID, feature );
 					if ( null == val )
 					{
-						line[ i + 2 ] = "None";
+						csvWriter.write( "None" );
 					}
 					else
 					{
-						if ( fm.getTrackFeatureIsInt().get( feature ).booleanValue() )
-							line[ i + 2 ] = "" + val.intValue();
+						if ( results.isIntTrackFeature( feature ) )
+							csvWriter.write( val.intValue() );
 						else
-							line[ i + 2 ] = "" + val.doubleValue();
+							csvWriter.write( val.doubleValue() );
 					}
 				}
-				csvWriter.writeNext( line );
+				csvWriter.endLine();
 			}
 		}
 		catch ( final IOException e )
 		{
-			errorMessage = "Could not write to " + trackStatFile + "\n";
-			errorMessage += e.getMessage();
+			addErrorMessage( "Could not write to " + trackStatFile + "\n" + e.getMessage() );
 			return false;
 		}
+		return true;
+	}
 
-		/*
-		 * Save individual branch length.
-		 */
-
-		final String saveFolderIndividuals = determineIndividualFilesSaveFolder( rootFolder, trackmate.getSettings().imp );
-		final int nDigits = getNDigits( trackIDs );
-		final TrackModel trackModel = trackmate.getModel().getTrackModel();
-		for ( final Integer trackID : trackIDs )
-		{
-			final String branchFile = determineBranchFileName( new File( saveFolderIndividuals ), trackmate.getSettings().imp, trackID, nDigits );
-			try (
-					Writer writer = Files.newBufferedWriter( Paths.get( branchFile ) );
-
-					CSVWriter csvWriter = new CSVWriter( writer,
-							CSVWriter.DEFAULT_SEPARATOR,
-							CSVWriter.NO_QUOTE_CHARACTER,
-							CSVWriter.DEFAULT_ESCAPE_CHARACTER,
-							CSVWriter.DEFAULT_LINE_END );)
-			{
-
-				final String[] header1 = new String[ 3 ];
-				final String[] header2 = new String[ 3 ];
-				header1[ 0 ] = "Time";
-				header2[ 0 ] = "(" + TMUtils.getUnitsFor( Dimension.TIME, spaceUnits, timeUnits ) + ")";
-				header1[ 1 ] = "BranchLength";
-				header2[ 1 ] = "(" + TMUtils.getUnitsFor( Dimension.LENGTH, spaceUnits, timeUnits ) + ")";
-				header1[ 2 ] = "BranchSpeed";
-				header2[ 2 ] = "(" + TMUtils.getUnitsFor( Dimension.VELOCITY, spaceUnits, timeUnits ) + ")";
-				csvWriter.writeNext( header1 );
-				csvWriter.writeNext( header2 );
-
-				final List< Spot > branch = new ArrayList<>( trackModel.trackSpots( trackID ) );
-				branch.sort( Spot.frameComparator );
-
-				// Used to compute branch velocity.
-				double previousTime = branch.get( 0 ).getFeature( Spot.POSITION_T ) - trackmate.getSettings().dt;
-				double previousLength = 0.;
-
-				// Content of the line in the CSV file.
-				final String[] line = new String[ 3 ];
-
-				// Write pre-birth of the branch as first line.
-				line[ 0 ] = Double.valueOf( previousTime ).toString();
-				line[ 1 ] = Double.valueOf( previousLength ).toString();
-				line[ 2 ] = Double.valueOf( 0. ).toString();
-				csvWriter.writeNext( line );
-
-				for ( final Spot spot : branch )
-				{
-					// Current time.
-					final Double currentTime = spot.getFeature( Spot.POSITION_T );
-					line[ 0 ] = currentTime.toString();
-
-					// Current branch length.
-					final Double currentLength = spot.getFeature( BranchLengthAnalyzerFactory.FEATURE );
-					line[ 1 ] = currentLength.toString();
-
-					// Branch velocity
-					final double dl = currentLength.doubleValue() - previousLength;
-					final double dt = currentTime.doubleValue() - previousTime;
-					final Double currentVelocity = Double.valueOf( dl / dt );
-					line[ 2 ] = currentVelocity.toString();
-					previousLength = currentLength.doubleValue();
-					previousTime = currentTime.doubleValue();
-
-					// Write.
-					csvWriter.writeNext( line );
-				}
-
-				// Write disappearance of the branch as last line.
-				line[ 0 ] = Double.valueOf( previousTime + trackmate.getSettings().dt ).toString();
-				line[ 1 ] = Double.valueOf( 0. ).toString();
-				line[ 2 ] = Double.valueOf( -previousLength / trackmate.getSettings().dt ).toString();
-				csvWriter.writeNext( line );
-
-			}
-			catch ( final IOException e )
-			{
-				errorMessage = "Could not write to " + branchFile + "\n";
-				errorMessage += e.getMessage();
-				return false;
-			}
-		}
-
-		/*
-		 * Save frame by frame statistics.
-		 */
-
-		final int nFrames = trackmate.getSettings().nframes;
-
-		// Frame array.
-		final int[] frames = new int[ nFrames ];
-		for ( int t = 0; t < frames.length; t++ )
-			frames[ t ] = t;
-
-		// Time array.
-		final double[] times = new double[ nFrames ];
-		for ( int t = 0; t < times.length; t++ )
-			times[ t ] = frames[ t ] * trackmate.getSettings().dt;
-
-		// Branches birth and death.
-		final int[] branchAdditions = new int[ nFrames ];
-		final int[] branchDeletions = new int[ nFrames ];
-
-		// First we add information from tracks (nSpots >= 2).
-		for ( final Integer trackID : trackModel.trackIDs( true ) )
-		{
-
-			final List< Spot > branch = new ArrayList<>( trackModel.trackSpots( trackID ) );
-			branch.sort( Spot.frameComparator );
-
-			final Spot firstSpot = branch.get( 0 );
-			final int birthFrame = firstSpot.getFeature( Spot.FRAME ).intValue();
-			branchAdditions[ birthFrame ]++;
-
-			final Spot lastSpot = branch.get( branch.size() - 1 );
-			final int deathFrame = lastSpot.getFeature( Spot.FRAME ).intValue();
-			if ( deathFrame < nFrames )
-				branchDeletions[ deathFrame ]++;
-
-		}
-
-		// Second we deal with lonely spots, that do not belong in a track.
-		for ( final Spot spot : trackmate.getModel().getSpots().iterable( true ) )
-		{
-			// Skip if it belongs in a track.
-			if ( null != trackModel.trackIDOf( spot ) )
-				continue;
-
-			final int birthFrame = spot.getFeature( Spot.FRAME ).intValue();
-			branchAdditions[ birthFrame ]++;
-
-			final int deathFrame = spot.getFeature( Spot.FRAME ).intValue() + 1;
-			if ( deathFrame < nFrames )
-				branchDeletions[ deathFrame ]++;
-		}
-
-		// Branches alive.
-		final int[] nBranch = new int[ nFrames ];
-		nBranch[ 0 ] = branchAdditions[ 0 ] - branchDeletions[ 0 ];
-		for ( int t = 1; t < nBranch.length; t++ )
-			nBranch[ t ] = nBranch[ t - 1 ] + branchAdditions[ t ] - branchDeletions[ t ];
-
-		/*
-		 * Get total branch length at frame t: Sum for all spots at that frame.
-		 */
-
-		final double[] totalBranchLength = new double[ nFrames ];
-		for ( int frame = 0; frame < nFrames; frame++ )
-		{
-			double tb = 0.;
-			for ( final Spot spot : trackmate.getModel().getSpots().iterable( Integer.valueOf( frame ), true ) )
-			{
-				final Double branchLength = spot.getFeature( BranchLengthAnalyzerFactory.FEATURE );
-				if ( null != branchLength && !branchLength.isNaN() )
-					tb += branchLength.doubleValue();
-			}
-			totalBranchLength[ frame ] = tb;
-		}
+	/**
+	 * Saves frame by frame statistics.
+	 */
+	private boolean exportFrameStatistics( final File rootFolder )
+	{
+		final String spaceUnits = results.getSpaceUnits();
+		final String timeUnits = results.getTimeUnits();
+		final DendriteFrameStatistics stats = results.getFrameStatistics();
+		final int nFrames = stats.nFrames;
 
 		// Write all of this.
-		final String frameStatFile = determineFrameFileName( rootFolder, trackmate.getSettings().imp );
+		final String frameStatFile = determineFrameFileName( rootFolder, results.getImp() );
 		try (
 				Writer writer = Files.newBufferedWriter( Paths.get( frameStatFile ) );
 
-				CSVWriter csvWriter = new CSVWriter( writer,
-						CSVWriter.DEFAULT_SEPARATOR,
-						CSVWriter.NO_QUOTE_CHARACTER,
-						CSVWriter.DEFAULT_ESCAPE_CHARACTER,
-						CSVWriter.DEFAULT_LINE_END );)
+				NumericCSVWriter csvWriter = new NumericCSVWriter( writer );)
 		{
 
 			final String[] header1 = new String[ 5 ];
@@ -349,78 +308,236 @@ public class DendriteDynamicsCSVExporter implements Algorithm
 			header2[ 4 ] = "";
 			header1[ 4 ] = "TotalBranchLength";
 			header2[ 4 ] = "(" + TMUtils.getUnitsFor( Dimension.LENGTH, spaceUnits, timeUnits ) + ")";
-			csvWriter.writeNext( header1 );
-			csvWriter.writeNext( header2 );
+			csvWriter.writeLine( header1 );
+			csvWriter.writeLine( header2 );
 
-			// Content of the line in the CSV file.
-			final String[] line = new String[ 5 ];
+			// The branches alive are not written, the column is shadowed by
+			// the total branch length.
 			for ( int t = 0; t < nFrames; t++ )
 			{
-				line[ 0 ] = Integer.valueOf( frames[ t ] ).toString();
-				line[ 1 ] = Double.valueOf( times[ t ] ).toString();
-				line[ 2 ] = Integer.valueOf( branchAdditions[ t ] ).toString();
-				line[ 3 ] = Integer.valueOf( branchDeletions[ t ] ).toString();
-				line[ 4 ] = Integer.valueOf( nBranch[ t ] ).toString();
-				line[ 4 ] = Double.valueOf( totalBranchLength[ t ] ).toString();
-				csvWriter.writeNext( line );
+				csvWriter.write( t );
+				csvWriter.write( stats.times[ t ] );
+				csvWriter.write( stats.branchAdditions[ t ] );
+				csvWriter.write( stats.branchDeletions[ t ] );
+				csvWriter.write( stats.totalBranchLength[ t ] );
+				csvWriter.endLine();
 			}
 		}
 		catch ( final IOException e )
 		{
-			errorMessage = "Could not write to " + frameStatFile + "\n";
-			errorMessage += e.getMessage();
+			addErrorMessage( "Could not write to " + frameStatFile + "\n" + e.getMessage() );
 			return false;
 		}
-
 		return true;
 	}
 
-	private String determineFrameFileName( final File saveFolder, final ImagePlus imp )
+	/**
+	 * Writes the branch length time-series of each track in its own CSV file,
+	 * in a folder named after the source image. This is the legacy layout.
+	 * <p>
+	 * The files are formatted in memory by several threads, and written with
+	 * at most {@link #getMaxOpenFiles()} files open at the same time.
+	 */
+	private boolean exportBranchesToIndividualFiles( final File rootFolder, final Collection< Integer > trackIDs )
 	{
-		if ( null == imp )
-			return new File( saveFolder, "DendriteDynamicsStatistics.csv" ).getAbsolutePath();
+		final ImagePlus imp = results.getImp();
+		final String saveFolderIndividuals = determineIndividualFilesSaveFolder( rootFolder, imp );
+		final int nDigits = getNDigits( trackIDs );
+		final String[] header1 = getBranchHeader1( false );
+		final String[] header2 = getBranchHeader2( false, results.getSpaceUnits(), results.getTimeUnits() );
 
-		if ( null == imp.getOriginalFileInfo()
-				|| null == imp.getOriginalFileInfo().fileName
-				|| imp.getOriginalFileInfo().fileName.isEmpty() )
+		final ArrayBlockingQueue< Integer > queue = new ArrayBlockingQueue<>( Math.max( 1, trackIDs.size() ), false, trackIDs );
+		final Semaphore openFiles = new Semaphore( maxOpenFiles );
+		final AtomicBoolean ok = new AtomicBoolean( true );
+
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		for ( int i = 0; i < threads.length; i++ )
 		{
-			final String title = removeExtension( imp.getTitle() );
-			if ( null != title )
-				return new File( saveFolder, title + "_DendriteDynamicsStatistics.csv" ).getAbsolutePath();
+			threads[ i ] = new Thread( "Dendrite export - branch length thread " + i )
+			{
+				@Override
+				public void run()
+				{
+					// Reused from one track to the next.
+					final CharArrayWriter content = new CharArrayWriter( 1 << 12 );
+					final NumericCSVWriter csvWriter = new NumericCSVWriter( content );
 
-			return new File( saveFolder, "DendriteDynamicsStatistics.csv" ).getAbsolutePath();
+					Integer trackID;
+					while ( ok.get() && ( trackID = queue.poll() ) != null )
+					{
+						final String branchFile = determineBranchFileName( new File( saveFolderIndividuals ), imp, trackID, nDigits );
+						try
+						{
+							content.reset();
+							csvWriter.writeLine( header1 );
+							csvWriter.writeLine( header2 );
+							writeBranch( csvWriter, trackID, false );
+
+							openFiles.acquireUninterruptibly();
+							try (Writer writer = Files.newBufferedWriter( Paths.get( branchFile ) ))
+							{
+								content.writeTo( writer );
+							}
+							finally
+							{
+								openFiles.release();
+							}
+						}
+						catch ( final IOException e )
+						{
+							addErrorMessage( "Could not write to " + branchFile + "\n" + e.getMessage() );
+							ok.set( false );
+						}
+					}
+				}
+			};
 		}
+		SimpleMultiThreading.startAndJoin( threads );
+		return ok.get();
+	}
 
-		final String target = removeExtension( imp.getOriginalFileInfo().fileName );
-		return new File( saveFolder, target + "_DendriteDynamicsStatistics.csv" ).getAbsolutePath();
+	/**
+	 * Streams the branch length time-series of all tracks in a single
+	 * long-format CSV file, one line per track and time-point, with the track
+	 * ID as first column.
+	 */
+	private boolean exportBranchesToSingleFile( final File rootFolder, final Collection< Integer > trackIDs, final boolean compress )
+	{
+		final String branchesFile = determineFileName( rootFolder, results.getImp(),
+				compress ? "DendriteBranches.csv.gz" : "DendriteBranches.csv" );
+		try (
+				Writer writer = newWriter( Paths.get( branchesFile ), compress );
+
+				NumericCSVWriter csvWriter = new NumericCSVWriter( writer );)
+		{
+			csvWriter.writeLine( getBranchHeader1( true ) );
+			csvWriter.writeLine( getBranchHeader2( true, results.getSpaceUnits(), results.getTimeUnits() ) );
+			for ( final Integer trackID : trackIDs )
+				writeBranch( csvWriter, trackID, true );
+		}
+		catch ( final IOException e )
+		{
+			addErrorMessage( "Could not write to " + branchesFile + "\n" + e.getMessage() );
+			return false;
+		}
+		return true;
 	}
 
-	private String determineBranchFileName( final File saveFolder, final ImagePlus imp, final int id, final int nDigits )
+	private static String[] getBranchHeader1( final boolean withTrackID )
 	{
+		return withTrackID
+				? new String[] { "TrackID", "Time", "BranchLength", "BranchSpeed" }
+				: new String[] { "Time", "BranchLength", "BranchSpeed" };
+	}
 
-		final String suffix = String.format( "Dendrite_%0" + nDigits + "d.csv", id );
-		if ( null == imp )
-			return new File( saveFolder, suffix ).getAbsolutePath();
+	private static String[] getBranchHeader2( final boolean withTrackID, final String spaceUnits, final String timeUnits )
+	{
+		final String timeHeader = "(" + TMUtils.getUnitsFor( Dimension.TIME, spaceUnits, timeUnits ) + ")";
+		final String lengthHeader = "(" + TMUtils.getUnitsFor( Dimension.LENGTH, spaceUnits, timeUnits ) + ")";
+		final String speedHeader = "(" + TMUtils.getUnitsFor( Dimension.VELOCITY, spaceUnits, timeUnits ) + ")";
+		return withTrackID
+				? new String[] { "", timeHeader, lengthHeader, speedHeader }
+				: new String[] { timeHeader, lengthHeader, speedHeader };
+	}
 
-		if ( null == imp.getOriginalFileInfo()
-				|| null == imp.getOriginalFileInfo().fileName
-				|| imp.getOriginalFileInfo().fileName.isEmpty() )
+	/**
+	 * Writes the branch length and branch speed over time of the specified
+	 * track, including the pre-birth and the disappearance lines.
+	 *
+	 * @param csvWriter
+	 *            the writer to write to.
+	 * @param trackID
+	 *            the ID of the track to write.
+	 * @param withTrackID
+	 *            if <code>true</code>, the track ID is written as first
+	 *            column of each line (long format).
+	 */
+	private void writeBranch( final NumericCSVWriter csvWriter, final Integer trackID, final boolean withTrackID ) throws IOException
+	{
+		final double frameInterval = results.getFrameInterval();
+		final double[][] branch = results.getBranch( trackID );
+		final double[] times = branch[ 0 ];
+		final double[] lengths = branch[ 1 ];
+
+		// Used to compute branch velocity.
+		double previousTime = times[ 0 ] - frameInterval;
+		double previousLength = 0.;
+
+		// Write pre-birth of the branch as first line.
+		if ( withTrackID )
+			csvWriter.write( trackID.intValue() );
+		csvWriter.write( previousTime );
+		csvWriter.write( previousLength );
+		csvWriter.write( 0. );
+		csvWriter.endLine();
+
+		for ( int i = 0; i < times.length; i++ )
 		{
-			final String title = removeExtension( imp.getTitle() );
-			if ( null != title )
-				return new File( saveFolder, title + "_" + suffix ).getAbsolutePath();
-
-			return new File( saveFolder, suffix ).getAbsolutePath();
+			// Current time.
+			final double currentTime = times[ i ];
+
+			// Current branch length.
+			final double currentLength = lengths[ i ];
+
+			// Branch velocity
+			final double dl = currentLength - previousLength;
+			final double dt = currentTime - previousTime;
+			final double currentVelocity = dl / dt;
+			previousLength = currentLength;
+			previousTime = currentTime;
+
+			// Write.
+			if ( withTrackID )
+				csvWriter.write( trackID.intValue() );
+			csvWriter.write( currentTime );
+			csvWriter.write( currentLength );
+			csvWriter.write( currentVelocity );
+			csvWriter.endLine();
 		}
 
-		final String target = removeExtension( imp.getOriginalFileInfo().fileName );
-		return new File( saveFolder, target + "_" + suffix ).getAbsolutePath();
+		// Write disappearance of the branch as last line.
+		if ( withTrackID )
+			csvWriter.write( trackID.intValue() );
+		csvWriter.write( previousTime + frameInterval );
+		csvWriter.write( 0. );
+		csvWriter.write( -previousLength / frameInterval );
+		csvWriter.endLine();
 	}
 
-	private String determineStatFileName( final File saveFolder, final ImagePlus imp )
+	private static Writer newWriter( final Path path, final boolean compress ) throws IOException
+	{
+		if ( !compress )
+			return Files.newBufferedWriter( path );
+
+		return new BufferedWriter( new OutputStreamWriter(
+				new GZIPOutputStream( Files.newOutputStream( path ), BUFFER_SIZE ),
+				StandardCharsets.UTF_8 ), BUFFER_SIZE );
+	}
+
+	private static String determineFrameFileName( final File saveFolder, final ImagePlus imp )
+	{
+		return determineFileName( saveFolder, imp, "DendriteDynamicsStatistics.csv" );
+	}
+
+	private static String determineBranchFileName( final File saveFolder, final ImagePlus imp, final int id, final int nDigits )
+	{
+		final String suffix = String.format( "Dendrite_%0" + nDigits + "d.csv", id );
+		return determineFileName( saveFolder, imp, suffix );
+	}
+
+	private static String determineStatFileName( final File saveFolder, final ImagePlus imp )
+	{
+		return determineFileName( saveFolder, imp, "DendriteTracksStatistics.csv" );
+	}
+
+	/**
+	 * Returns the path to a file in the specified folder, whose name is made
+	 * of the name of the source image followed by the specified suffix.
+	 */
+	static String determineFileName( final File saveFolder, final ImagePlus imp, final String suffix )
 	{
 		if ( null == imp )
-			return new File( saveFolder, "DendriteTracksStatistics.csv" ).getAbsolutePath();
+			return new File( saveFolder, suffix ).getAbsolutePath();
 
 		if ( null == imp.getOriginalFileInfo()
 				|| null == imp.getOriginalFileInfo().fileName
@@ -428,16 +545,15 @@ public class DendriteDynamicsCSVExporter implements Algorithm
 		{
 			final String title = removeExtension( imp.getTitle() );
 			if ( null != title )
-				return new File( saveFolder, title + "_DendriteTracksStatistics.csv" ).getAbsolutePath();
+				return new File( saveFolder, title + "_" + suffix ).getAbsolutePath();
 
-			return new File( saveFolder, "DendriteTracksStatistics.csv" ).getAbsolutePath();
+			return new File( saveFolder, suffix ).getAbsolutePath();
 		}
 
 		final String target = removeExtension( imp.getOriginalFileInfo().fileName );
-		return new File( saveFolder, target + "_DendriteTracksStatistics.csv" ).getAbsolutePath();
+		return new File( saveFolder, target + "_" + suffix ).getAbsolutePath();
 	}
 
-
 	/**
 	 * Returns a target folder where to save some data, based on the specified
 	 * {@link ImagePlus}. If file info can be retrieved from it, we use it to
@@ -448,7 +564,7 @@ public class DendriteDynamicsCSVExporter implements Algorithm
 	 *            the {@link ImagePlus}.
 	 * @return a target folder for saving CSV files.
 	 */
-	private String determineRootSaveFolder( final ImagePlus imp )
+	static String determineRootSaveFolder( final ImagePlus imp )
 	{
 		final String userHome = System.getProperty( "user.home" );
 		if ( null == imp
@@ -475,7 +591,7 @@ public class DendriteDynamicsCSVExporter implements Algorithm
 	 *            the {@link ImagePlus}.
 	 * @return a target folder for saving CSV files.
 	 */
-	private String determineIndividualFilesSaveFolder( final File rootFolder, final ImagePlus imp )
+	private static String determineIndividualFilesSaveFolder( final File rootFolder, final ImagePlus imp )
 	{
 		final String userHome = System.getProperty( "user.home" );
 		if ( !rootFolder.canWrite() )
@@ -506,11 +622,49 @@ public class DendriteDynamicsCSVExporter implements Algorithm
 	}
 
 	@Override
-	public String getErrorMessage()
+	public synchronized String getErrorMessage()
 	{
 		return errorMessage;
 	}
 
+	private synchronized void addErrorMessage( final String message )
+	{
+		errorMessage = ( null == errorMessage ) ? message : errorMessage + "\n" + message;
+	}
+
+	/**
+	 * Sets the maximal number of per-track CSV files that can be open at the
+	 * same time when exporting with the {@link BranchFileLayout#PER_TRACK_FILES}
+	 * layout.
+	 */
+	public void setMaxOpenFiles( final int maxOpenFiles )
+	{
+		this.maxOpenFiles = Math.max( 1, maxOpenFiles );
+	}
+
+	public int getMaxOpenFiles()
+	{
+		return maxOpenFiles;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
 	private static final String removeExtension( String filename )
 	{
 		if ( filename.indexOf( "." ) > 0 )
@@ -526,7 +680,7 @@ public class DendriteDynamicsCSVExporter implements Algorithm
 	 *            the integer collection.
 	 * @return the number of digits needed to represent them.
 	 */
-	private static final int getNDigits( final Set< Integer > integers )
+	private static final int getNDigits( final Collection< Integer > integers )
 	{
 		int max = -1;
 		for ( final Integer integer : integers )
@@ -536,4 +690,100 @@ public class DendriteDynamicsCSVExporter implements Algorithm
 		return String.valueOf( Math.abs( max ) ).length();
 	}
 
+	/**
+	 * Dendrite tracking results read from the model of a TrackMate instance.
+	 */
+	static final class TrackMateResults implements DendriteDynamicsResults
+	{
+
+		private final TrackMate trackmate;
+
+		TrackMateResults( final TrackMate trackmate )
+		{
+			this.trackmate = trackmate;
+		}
+
+		@Override
+		public ImagePlus getImp()
+		{
+			return trackmate.getSettings().imp;
+		}
+
+		@Override
+		public String getSpaceUnits()
+		{
+			return trackmate.getModel().getSpaceUnits();
+		}
+
+		@Override
+		public String getTimeUnits()
+		{
+			return trackmate.getModel().getTimeUnits();
+		}
+
+		@Override
+		public double getFrameInterval()
+		{
+			return trackmate.getSettings().dt;
+		}
+
+		@Override
+		public Collection< Integer > getTrackIDs()
+		{
+			return trackmate.getModel().getTrackModel().trackIDs( true );
+		}
+
+		@Override
+		public String getTrackName( final Integer trackID )
+		{
+			return trackmate.getModel().getTrackModel().name( trackID );
+		}
+
+		@Override
+		public List< String > getTrackFeatures()
+		{
+			return new ArrayList<>( trackmate.getModel().getFeatureModel().getTrackFeatures() );
+		}
+
+		@Override
+		public Dimension getTrackFeatureDimension( final String feature )
+		{
+			return trackmate.getModel().getFeatureModel().getTrackFeatureDimensions().get( feature );
+		}
+
+		@Override
+		public boolean isIntTrackFeature( final String feature )
+		{
+			final Boolean isInt = trackmate.getModel().getFeatureModel().getTrackFeatureIsInt().get( feature );
+			return null != isInt && isInt.booleanValue();
+		}
+
+		@Override
+		public Double getTrackFeature( final Integer trackID, final String feature )
+		{
+			return trackmate.getModel().getFeatureModel().getTrackFeature( trackID, feature );
+		}
+
+		@Override
+		public double[][] getBranch( final Integer trackID )
+		{
+			final List< Spot > branch = new ArrayList<>( trackmate.getModel().getTrackModel().trackSpots( trackID ) );
+			branch.sort( Spot.frameComparator );
+			final double[] times = new double[ branch.size() ];
+			final double[] lengths = new double[ branch.size() ];
+			for ( int i = 0; i < times.length; i++ )
+			{
+				times[ i ] = branch.get( i ).getFeature( Spot.POSITION_T ).doubleValue();
+				final Double bl = branch.get( i ).getFeature( BranchLengthAnalyzerFactory.FEATURE );
+				lengths[ i ] = null == bl ? Double.NaN : bl.doubleValue();
+			}
+			return new double[][] { times, lengths };
+		}
+
+		@Override
+		public DendriteFrameStatistics getFrameStatistics()
+		{
+			return DendriteFrameStatistics.compute( trackmate.getModel(), trackmate.getSettings().nframes, trackmate.getSettings().dt );
+		}
+	}
 }
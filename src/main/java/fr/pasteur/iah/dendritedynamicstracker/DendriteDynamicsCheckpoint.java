@@ -0,0 +1,415 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.DendriteTrackNIncorrectIDs;
+import ij.ImagePlus;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.Vertex;
+
+/**
+ * Saves and restores the state of the Dendrite Dynamics Tracker pipeline
+ * after each of its stages, so that an interrupted run can resume from the
+ * last completed stage instead of starting again from detection.
+ * <p>
+ * Each checkpoint file stores the complete state needed to continue from its
+ * stage, with the same sections as the {@link DendriteDynamicsSessionIO}
+ * sidecar, plus the end-point model and its track features. It also stores a
+ * key describing the input image and every parameter the stage depends on; a
+ * checkpoint is only used if this key matches the one of the current run.
+ * <p>
+ * The image is described by its title, dimensions, calibration and ROI, and
+ * by the path, size and modification date of the file it was opened from.
+ * Its pixel content is not part of the key: if the pixels of an open image
+ * are edited without saving them, an older checkpoint is still considered
+ * valid and must be deleted by hand.
+ */
+public class DendriteDynamicsCheckpoint
+{
+
+	/**
+	 * The track features set by patching, that are not computed by their
+	 * analyzer.
+	 */
+	private static final List< String > PATCHED_TRACK_FEATURES = Collections.singletonList( DendriteTrackNIncorrectIDs.FEATURE );
+
+	/**
+	 * The stages of the pipeline, in order.
+	 */
+	public enum Stage
+	{
+		DETECTION, JUNCTION_TRACKING, END_POINT_TRACKING, BORDER_PRUNING, PATCHING;
+	}
+
+	/**
+	 * The pipeline state restored from a checkpoint.
+	 */
+	public static class State
+	{
+
+		public final Stage stage;
+
+		public final DetectionResults detectionResults;
+
+		/**
+		 * The junction model, or <code>null</code> if the junctions were not
+		 * tracked yet.
+		 */
+		public final Model junctionModel;
+
+		/**
+		 * The end-point model, or <code>null</code> if the end-points were not
+		 * tracked yet.
+		 */
+		public final Model endPointModel;
+
+		/**
+		 * The track features of the end-point model, which are not stored in
+		 * the spots.
+		 */
+		public final Map< Integer, Map< String, Double > > trackFeatures;
+
+		private State(
+				final Stage stage,
+				final DetectionResults detectionResults,
+				final Model junctionModel,
+				final Model endPointModel,
+				final Map< Integer, Map< String, Double > > trackFeatures )
+		{
+			this.stage = stage;
+			this.detectionResults = detectionResults;
+			this.junctionModel = junctionModel;
+			this.endPointModel = endPointModel;
+			this.trackFeatures = trackFeatures;
+		}
+	}
+
+	static final int MAGIC = 0x44445443;
+
+	static final int VERSION = 2;
+
+	public static final String EXTENSION = ".ddtc";
+
+	private final ImagePlus imp;
+
+	private final File folder;
+
+	public DendriteDynamicsCheckpoint( final ImagePlus imp, final File folder )
+	{
+		this.imp = imp;
+		this.folder = folder;
+	}
+
+	/**
+	 * Returns the checkpoint file of the specified stage.
+	 */
+	public File fileFor( final Stage stage )
+	{
+		return new File( DendriteDynamicsCSVExporter.determineFileName( folder, imp,
+				"DDT_" + stage.name().toLowerCase() + EXTENSION ) );
+	}
+
+	/**
+	 * Returns the latest stage whose checkpoint can be used with the
+	 * specified keys, restored, or <code>null</code> if there is none.
+	 *
+	 * @param keys
+	 *            the key of each stage for the current run, indexed by stage
+	 *            ordinal.
+	 * @return the restored state, or <code>null</code>.
+	 * @throws IOException
+	 *             if a matching checkpoint file cannot be read.
+	 */
+	public State restoreLatest( final String[] keys ) throws IOException
+	{
+		final Stage[] stages = Stage.values();
+		for ( int i = stages.length - 1; i >= 0; i-- )
+		{
+			final State state = restore( stages[ i ], keys[ i ] );
+			if ( null != state )
+				return state;
+		}
+		return null;
+	}
+
+	/**
+	 * Saves the state reached after the specified stage. The file is written
+	 * next to its target then moved in place, so that a run interrupted while
+	 * saving does not leave a truncated checkpoint.
+	 *
+	 * @param stage
+	 *            the stage that was just completed.
+	 * @param key
+	 *            the key of this stage for the current run.
+	 * @param detectionResults
+	 *            the detection results.
+	 * @param junctionModel
+	 *            the junction model, or <code>null</code> if the junctions
+	 *            were not tracked yet.
+	 * @param endPointModel
+	 *            the end-point model, or <code>null</code> if the end-points
+	 *            were not tracked yet.
+	 * @param skeletonChannel
+	 *            the 1-based skeleton channel.
+	 * @param skeletonize
+	 *            whether the skeleton channel was skeletonized before
+	 *            detection.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void save(
+			final Stage stage,
+			final String key,
+			final DetectionResults detectionResults,
+			final Model junctionModel,
+			final Model endPointModel,
+			final int skeletonChannel,
+			final boolean skeletonize ) throws IOException
+	{
+		final File file = fileFor( stage );
+		final File tmp = new File( file.getPath() + ".tmp" );
+		try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream( new GZIPOutputStream( new FileOutputStream( tmp ) ), 1 << 16 ) ))
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( stage.ordinal() );
+			out.writeUTF( key );
+			out.writeInt( skeletonChannel );
+			out.writeBoolean( skeletonize );
+			for ( final int o : detectionResults.getOrigin() )
+				out.writeInt( o );
+
+			out.writeBoolean( null != junctionModel );
+			DendriteDynamicsSessionIO.writeModel( out, null != junctionModel
+					? junctionModel
+					: spotsOnly( detectionResults.junctionsSpots ) );
+
+			out.writeBoolean( null != endPointModel );
+			DendriteDynamicsSessionIO.writeModel( out, null != endPointModel
+					? endPointModel
+					: spotsOnly( detectionResults.endPointSpots ) );
+			writeTrackFeatures( out, endPointModel );
+
+			DendriteDynamicsSessionIO.writeJunctionMap( out, detectionResults.junctionMap );
+			DendriteDynamicsSessionIO.writeGraphs( out, detectionResults );
+		}
+		Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	/**
+	 * Restores the state saved after the specified stage, if its key matches
+	 * the specified one.
+	 *
+	 * @return the restored state, or <code>null</code> if there is no
+	 *         checkpoint for this stage or if it was made with a different
+	 *         input or parameters.
+	 * @throws IOException
+	 *             if the checkpoint file cannot be read.
+	 */
+	public State restore( final Stage stage, final String key ) throws IOException
+	{
+		final File file = fileFor( stage );
+		if ( !file.exists() )
+			return null;
+
+		try (final DataInputStream in = new DataInputStream(
+				new BufferedInputStream( new GZIPInputStream( new FileInputStream( file ) ), 1 << 16 ) ))
+		{
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != stage.ordinal() )
+				return null;
+			if ( !key.equals( in.readUTF() ) )
+				return null;
+
+			in.readInt(); // skeleton channel, part of the key.
+			in.readBoolean(); // skeletonize, part of the key.
+			final int[] origin = new int[] { in.readInt(), in.readInt(), in.readInt() };
+
+			final String spaceUnits = imp.getCalibration().getUnits();
+			final String timeUnits = imp.getCalibration().getTimeUnit();
+
+			final boolean hasJunctionModel = in.readBoolean();
+			final Model junctionModel = DendriteDynamicsSessionIO.readModel( in );
+			junctionModel.setPhysicalUnits( spaceUnits, timeUnits );
+
+			final boolean hasEndPointModel = in.readBoolean();
+			final Model endPointModel = DendriteDynamicsSessionIO.readModel( in );
+			endPointModel.setPhysicalUnits( spaceUnits, timeUnits );
+			final Map< Integer, Map< String, Double > > trackFeatures = readTrackFeatures( in );
+
+			final Map< Integer, Spot > spotsByID = new HashMap<>();
+			for ( final Spot spot : junctionModel.getSpots().iterable( false ) )
+				spotsByID.put( Integer.valueOf( spot.ID() ), spot );
+			for ( final Spot spot : endPointModel.getSpots().iterable( false ) )
+				spotsByID.put( Integer.valueOf( spot.ID() ), spot );
+
+			final Map< Spot, Spot > junctionMap = DendriteDynamicsSessionIO.readJunctionMap( in, spotsByID );
+
+			final Map< Integer, Graph[] > graphs = new HashMap<>();
+			final Map< Integer, List< Point > > endPointPixels = new HashMap<>();
+			final Map< Spot, Vertex > spotMap = new HashMap<>();
+			final Map< Integer, Map< Vertex, Spot > > vertexMaps = new HashMap<>();
+			DendriteDynamicsSessionIO.readGraphs( in, spotsByID, graphs, endPointPixels, spotMap, vertexMaps );
+
+			final DetectionResults detectionResults = new DetectionResults(
+					junctionModel.getSpots(),
+					endPointModel.getSpots(),
+					junctionMap,
+					spotMap,
+					vertexMaps,
+					graphs,
+					endPointPixels,
+					origin );
+			return new State(
+					stage,
+					detectionResults,
+					hasJunctionModel ? junctionModel : null,
+					hasEndPointModel ? endPointModel : null,
+					trackFeatures );
+		}
+	}
+
+	/**
+	 * Declares in the feature model of the specified TrackMate the spot
+	 * features of its spot analyzers. Restored spots already carry their
+	 * feature values, so they do not need to be computed again.
+	 */
+	public static void declareSpotFeatures( final FeatureModel featureModel, final Collection< ? extends SpotAnalyzerFactoryBase< ? > > factories )
+	{
+		for ( final SpotAnalyzerFactoryBase< ? > factory : factories )
+			featureModel.declareSpotFeatures(
+					factory.getFeatures(),
+					factory.getFeatureNames(),
+					factory.getFeatureShortNames(),
+					factory.getFeatureDimensions(),
+					factory.getIsIntFeature() );
+	}
+
+	/**
+	 * Puts back the saved track features that are missing from the specified
+	 * feature model, such as the manual ones, and the ones set by patching,
+	 * that the track analyzers reset when the track features are computed
+	 * again.
+	 */
+	public static void restoreTrackFeatures( final FeatureModel featureModel, final Map< Integer, Map< String, Double > > trackFeatures )
+	{
+		for ( final Map.Entry< Integer, Map< String, Double > > track : trackFeatures.entrySet() )
+			for ( final Map.Entry< String, Double > feature : track.getValue().entrySet() )
+				if ( PATCHED_TRACK_FEATURES.contains( feature.getKey() )
+						|| null == featureModel.getTrackFeature( track.getKey(), feature.getKey() ) )
+					featureModel.putTrackFeature( track.getKey(), feature.getKey(), feature.getValue() );
+	}
+
+	private static Model spotsOnly( final SpotCollection spots )
+	{
+		final Model model = new Model();
+		model.setSpots( spots, false );
+		return model;
+	}
+
+	private static void writeTrackFeatures( final DataOutputStream out, final Model model ) throws IOException
+	{
+		if ( null == model )
+		{
+			out.writeInt( 0 );
+			return;
+		}
+
+		final FeatureModel featureModel = model.getFeatureModel();
+		final Collection< String > features = featureModel.getTrackFeatures();
+		final Collection< Integer > trackIDs = model.getTrackModel().trackIDs( false );
+		out.writeInt( trackIDs.size() );
+		for ( final Integer trackID : trackIDs )
+		{
+			out.writeInt( trackID.intValue() );
+			int n = 0;
+			for ( final String feature : features )
+				if ( null != featureModel.getTrackFeature( trackID, feature ) )
+					n++;
+
+			out.writeInt( n );
+			for ( final String feature : features )
+			{
+				final Double val = featureModel.getTrackFeature( trackID, feature );
+				if ( null == val )
+					continue;
+				out.writeUTF( feature );
+				out.writeDouble( val.doubleValue() );
+			}
+		}
+	}
+
+	private static Map< Integer, Map< String, Double > > readTrackFeatures( final DataInputStream in ) throws IOException
+	{
+		final int nTracks = in.readInt();
+		final Map< Integer, Map< String, Double > > trackFeatures = new HashMap<>( 2 * nTracks );
+		for ( int i = 0; i < nTracks; i++ )
+		{
+			final Integer trackID = Integer.valueOf( in.readInt() );
+			final int n = in.readInt();
+			final Map< String, Double > features = new HashMap<>( 2 * n );
+			for ( int j = 0; j < n; j++ )
+			{
+				final String feature = in.readUTF();
+				features.put( feature, Double.valueOf( in.readDouble() ) );
+			}
+			trackFeatures.put( trackID, features );
+		}
+		return trackFeatures;
+	}
+}
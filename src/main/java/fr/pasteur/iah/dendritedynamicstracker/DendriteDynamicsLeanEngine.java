@@ -0,0 +1,804 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackDurationAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackSpotQualityFeatureAnalyzer;
+import fiji.plugin.trackmate.tracking.SpotTracker;
+import fiji.plugin.trackmate.tracking.TrackerKeys;
+import fiji.plugin.trackmate.tracking.jaqaman.SparseLAPFrameToFrameTracker;
+import fr.pasteur.iah.dendritedynamicstracker.DendriteTrackAnalysis.BranchPatch;
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.BranchLengthAnalyzerFactory;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.DendriteAnalyzerProfile;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.DendriteTrackNIncorrectIDs;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.JunctionIDAnalyzerFactory;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.TotalBranchTravelAnalyzer;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.tracking.SkeletonEndPointTracker;
+import ij.ImagePlus;
+import net.imglib2.Interval;
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.multithreading.SimpleMultiThreading;
+
+/**
+ * Tracks junctions and end-points, prunes the border dendrites, patches the
+ * branch tracks and computes their statistics without building any TrackMate
+ * model. Tracks are stored in primitive arrays, and only the features the
+ * exporters need are computed.
+ * <p>
+ * The links are made with the same frame-to-frame trackers than the TrackMate
+ * pipeline, and the results exported to CSV are the same than those of the
+ * TrackMate pipeline run with the {@link DendriteAnalyzerProfile#DDT_MINIMAL}
+ * analyzer profile, whose track features are all computed here. The only
+ * difference is the track IDs, that are numbered by order of appearance and
+ * do not match those of the TrackMate pipeline, and so are the names of the
+ * per-track files. A TrackMate model can be built from the results with
+ * {@link #createTrackMate()} if they need to be displayed.
+ * <p>
+ * The merging of junction tracks with the end-point tracks is not supported,
+ * nor are the other analyzer profiles.
+ */
+public class DendriteDynamicsLeanEngine implements Algorithm, MultiThreaded, DendriteDynamicsResults
+{
+
+	/**
+	 * The analyzer profile whose track features are computed.
+	 */
+	public static final DendriteAnalyzerProfile ANALYZER_PROFILE = DendriteAnalyzerProfile.DDT_MINIMAL;
+
+	/**
+	 * The track features stored in the track arrays. The track index and ID
+	 * are not stored.
+	 */
+	private static final List< String > TRACK_FEATURES = Collections.unmodifiableList( Arrays.asList(
+			TrackDurationAnalyzer.TRACK_DURATION,
+			TrackDurationAnalyzer.TRACK_START,
+			TrackDurationAnalyzer.TRACK_STOP,
+			TrackDurationAnalyzer.TRACK_DISPLACEMENT,
+			TrackSpotQualityFeatureAnalyzer.TRACK_MEAN_QUALITY,
+			DendriteTrackNIncorrectIDs.FEATURE,
+			TotalBranchTravelAnalyzer.ACCUMULATIVE_BRANCH_DISTANCE,
+			TotalBranchTravelAnalyzer.NET_BRANCH_DISTANCE ) );
+
+	private static final int N_INCORRECT_ID_INDEX = TRACK_FEATURES.indexOf( DendriteTrackNIncorrectIDs.FEATURE );
+
+	private final DetectionResults detectionResults;
+
+	private final ImagePlus imp;
+
+	private final double junctionMaxLinkingDistance;
+
+	private final double endPointMaxLinkingDistance;
+
+	private final double matchedCostFactor;
+
+	private final boolean pruneBorderDendrites;
+
+	/**
+	 * The track features declared by the analyzers of the TrackMate pipeline
+	 * with the same profile, in the order of the TrackMate feature model.
+	 */
+	private final List< String > declaredTrackFeatures;
+
+	private final Map< String, Dimension > trackFeatureDimensions;
+
+	private final Map< String, Boolean > trackFeatureIsInt;
+
+	private final int nFrames;
+
+	private final double frameInterval;
+
+	private int numThreads;
+
+	private String errorMessage;
+
+	/*
+	 * Results. End-points are indexed by frame, then by position in the
+	 * frame.
+	 */
+
+	/**
+	 * The IDs of the tracks that were kept, in ascending order.
+	 */
+	private int[] trackIDs;
+
+	/**
+	 * Maps a track ID to its position in the track arrays, -1 if the track
+	 * was not kept.
+	 */
+	private int[] trackIndex;
+
+	/**
+	 * The end-points of track <code>i</code> are
+	 * <code>trackSpots[trackOffsets[i]]</code> to
+	 * <code>trackSpots[trackOffsets[i + 1] - 1]</code>, sorted by frame.
+	 */
+	private int[] trackOffsets;
+
+	private Spot[] trackSpots;
+
+	/**
+	 * The cost of the link of each track end-point to the previous one.
+	 */
+	private double[] linkCosts;
+
+	private double[] branchLengths;
+
+	private double[] junctionIDs;
+
+	/**
+	 * The track features, indexed by feature then by track.
+	 */
+	private double[][] trackFeatures;
+
+	/**
+	 * The end-points that do not belong in a track and were not pruned.
+	 */
+	private List< Spot > lonelySpots;
+
+	private DendriteFrameStatistics frameStatistics;
+
+	public DendriteDynamicsLeanEngine(
+			final DetectionResults detectionResults,
+			final ImagePlus imp,
+			final double junctionMaxLinkingDistance,
+			final double endPointMaxLinkingDistance,
+			final double matchedCostFactor,
+			final boolean pruneBorderDendrites )
+	{
+		this.detectionResults = detectionResults;
+		this.imp = imp;
+		this.junctionMaxLinkingDistance = junctionMaxLinkingDistance;
+		this.endPointMaxLinkingDistance = endPointMaxLinkingDistance;
+		this.matchedCostFactor = matchedCostFactor;
+		this.pruneBorderDendrites = pruneBorderDendrites;
+
+		// Same track feature columns than the TrackMate pipeline: the
+		// features of the profile analyzers, then the branch features.
+		final List< TrackAnalyzer > trackAnalyzers = new ArrayList<>( DendriteDynamicsTrackerCommand.createEndPointSettings(
+				imp, endPointMaxLinkingDistance, matchedCostFactor, ANALYZER_PROFILE ).getTrackAnalyzers() );
+		trackAnalyzers.add( new TotalBranchTravelAnalyzer() );
+		final List< String > features = new ArrayList<>();
+		this.trackFeatureDimensions = new HashMap<>();
+		this.trackFeatureIsInt = new HashMap<>();
+		for ( final TrackAnalyzer trackAnalyzer : trackAnalyzers )
+		{
+			for ( final String feature : trackAnalyzer.getFeatures() )
+			{
+				if ( features.contains( feature ) )
+					continue;
+				features.add( feature );
+				trackFeatureDimensions.put( feature, trackAnalyzer.getFeatureDimensions().get( feature ) );
+				trackFeatureIsInt.put( feature, trackAnalyzer.getIsIntFeature().get( feature ) );
+			}
+		}
+		this.declaredTrackFeatures = Collections.unmodifiableList( features );
+
+		// Same frame interval and number of frames than the TrackMate
+		// pipeline.
+		final Settings settings = new Settings( imp );
+		this.nFrames = settings.nframes;
+		this.frameInterval = settings.dt;
+		setNumThreads();
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		/*
+		 * Track junctions.
+		 */
+
+		final Spot[][] junctions = toArrays( detectionResults.junctionsSpots );
+		final Map< String, Object > junctionTrackerSettings = new HashMap<>();
+		junctionTrackerSettings.put( TrackerKeys.KEY_LINKING_MAX_DISTANCE, Double.valueOf( junctionMaxLinkingDistance ) );
+		junctionTrackerSettings.put( TrackerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR, Double.valueOf( TrackerKeys.DEFAULT_ALTERNATIVE_LINKING_COST_FACTOR ) );
+		junctionTrackerSettings.put( TrackerKeys.KEY_LINKING_FEATURE_PENALTIES, new HashMap<>() );
+		final int[][] junctionLinks = new int[ nFrames ][];
+		if ( !link( junctions, junctionLinks, null, spots -> new SparseLAPFrameToFrameTracker( spots, junctionTrackerSettings ) ) )
+			return false;
+
+		final int[][] junctionTracks = new int[ nFrames ][];
+		chain( junctionLinks, junctionTracks );
+
+		/*
+		 * Assign to each end-point the track ID of the junction they match.
+		 */
+
+		final Map< Spot, Integer > junctionTrackIDs = new HashMap<>();
+		for ( int frame = 0; frame < nFrames; frame++ )
+			for ( int i = 0; i < junctions[ frame ].length; i++ )
+				if ( junctionTracks[ frame ][ i ] >= 0 )
+					junctionTrackIDs.put( junctions[ frame ][ i ], Integer.valueOf( junctionTracks[ frame ][ i ] ) );
+
+		final Spot[][] endPoints = toArrays( detectionResults.endPointSpots );
+		for ( final Spot[] frameEndPoints : endPoints )
+		{
+			for ( final Spot endPoint : frameEndPoints )
+			{
+				final Integer junctionTrackID = junctionTrackIDs.get( detectionResults.junctionMap.get( endPoint ) );
+				if ( null == junctionTrackID )
+				{
+					endPoint.setName( "no junction" );
+					continue;
+				}
+
+				endPoint.putFeature( JunctionIDAnalyzerFactory.FEATURE, Double.valueOf( junctionTrackID.doubleValue() ) );
+				endPoint.setName( "->" + junctionTrackID );
+			}
+		}
+
+		/*
+		 * Track end-points.
+		 */
+
+		final Map< String, Object > endPointTrackerSettings = DendriteDynamicsTrackerCommand.createEndPointTrackerSettings( endPointMaxLinkingDistance, matchedCostFactor );
+		final int[][] endPointLinks = new int[ nFrames ][];
+		final double[][] endPointLinkCosts = new double[ nFrames ][];
+		if ( !link( endPoints, endPointLinks, endPointLinkCosts, spots -> new SkeletonEndPointTracker( spots, endPointTrackerSettings ) ) )
+			return false;
+
+		final int[][] endPointTracks = new int[ nFrames ][];
+		final int nTracks = chain( endPointLinks, endPointTracks );
+
+		/*
+		 * Prune dendrites found at the border of the images.
+		 */
+
+		final boolean[] pruned = new boolean[ nTracks ];
+		lonelySpots = new ArrayList<>();
+		final Interval roi = DendriteDynamicsTrackerCommand.getRoi2D( imp );
+		final double[] calibration = new double[] {
+				imp.getCalibration().pixelWidth,
+				imp.getCalibration().pixelHeight };
+		for ( int frame = 0; frame < nFrames; frame++ )
+		{
+			for ( int i = 0; i < endPoints[ frame ].length; i++ )
+			{
+				final Spot spot = endPoints[ frame ][ i ];
+				final int trackID = endPointTracks[ frame ][ i ];
+				final boolean touches = pruneBorderDendrites && touchesBorder( spot, roi, calibration );
+				if ( trackID >= 0 )
+					pruned[ trackID ] |= touches;
+				else if ( !touches )
+					lonelySpots.add( spot );
+			}
+		}
+
+		/*
+		 * Gather the end-points of the tracks we keep, sorted by frame.
+		 */
+
+		trackIndex = new int[ nTracks ];
+		Arrays.fill( trackIndex, -1 );
+		int nKept = 0;
+		for ( int trackID = 0; trackID < nTracks; trackID++ )
+			if ( !pruned[ trackID ] )
+				trackIndex[ trackID ] = nKept++;
+
+		trackIDs = new int[ nKept ];
+		trackOffsets = new int[ nKept + 1 ];
+		for ( int frame = 0; frame < nFrames; frame++ )
+		{
+			for ( final int trackID : endPointTracks[ frame ] )
+			{
+				if ( trackID < 0 || pruned[ trackID ] )
+					continue;
+				trackIDs[ trackIndex[ trackID ] ] = trackID;
+				trackOffsets[ trackIndex[ trackID ] + 1 ]++;
+			}
+		}
+		for ( int i = 0; i < nKept; i++ )
+			trackOffsets[ i + 1 ] += trackOffsets[ i ];
+
+		trackSpots = new Spot[ trackOffsets[ nKept ] ];
+		linkCosts = new double[ trackSpots.length ];
+		final int[] fill = Arrays.copyOf( trackOffsets, nKept );
+		for ( int frame = 0; frame < nFrames; frame++ )
+		{
+			for ( int i = 0; i < endPoints[ frame ].length; i++ )
+			{
+				final int trackID = endPointTracks[ frame ][ i ];
+				if ( trackID < 0 || pruned[ trackID ] )
+					continue;
+				final int index = fill[ trackIndex[ trackID ] ]++;
+				trackSpots[ index ] = endPoints[ frame ][ i ];
+				linkCosts[ index ] = endPointLinkCosts[ frame ][ i ];
+			}
+		}
+
+		/*
+		 * Patch the branch tracks and compute their features.
+		 */
+
+		branchLengths = new double[ trackSpots.length ];
+		junctionIDs = new double[ trackSpots.length ];
+		trackFeatures = new double[ TRACK_FEATURES.size() ][ nKept ];
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		for ( int ithread = 0; ithread < threads.length; ithread++ )
+		{
+			threads[ ithread ] = new Thread( "Dendrite lean engine patching thread " + ( 1 + ithread ) + "/" + threads.length )
+			{
+				@Override
+				public void run()
+				{
+					for ( int i = ai.getAndIncrement(); i < trackIDs.length; i = ai.getAndIncrement() )
+					{
+						final int start = trackOffsets[ i ];
+						final int end = trackOffsets[ i + 1 ];
+						final List< Spot > spots = Arrays.asList( trackSpots ).subList( start, end );
+						final BranchPatch patch = DendriteTrackAnalysis.patch( spots, detectionResults, junctionTrackIDs::get );
+						System.arraycopy( patch.branchLength, 0, branchLengths, start, end - start );
+						System.arraycopy( patch.junctionIDs, 0, junctionIDs, start, end - start );
+						trackFeatures[ N_INCORRECT_ID_INDEX ][ i ] = patch.nUncorrectedIDJumps;
+					}
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+
+		computeTrackFeatures();
+		computeFrameStatistics();
+		return true;
+	}
+
+	/**
+	 * Computes the features of the kept tracks, as their TrackMate analyzers
+	 * would.
+	 */
+	private void computeTrackFeatures()
+	{
+		// First and last frames of the analysis, after pruning.
+		int minFrame = Integer.MAX_VALUE;
+		int maxFrame = Integer.MIN_VALUE;
+		for ( final Spot spot : trackSpots )
+		{
+			minFrame = Math.min( minFrame, frameOf( spot ) );
+			maxFrame = Math.max( maxFrame, frameOf( spot ) );
+		}
+		for ( final Spot spot : lonelySpots )
+		{
+			minFrame = Math.min( minFrame, frameOf( spot ) );
+			maxFrame = Math.max( maxFrame, frameOf( spot ) );
+		}
+
+		for ( int i = 0; i < trackIDs.length; i++ )
+		{
+			final int start = trackOffsets[ i ];
+			final int last = trackOffsets[ i + 1 ] - 1;
+			final double startTime = trackSpots[ start ].getFeature( Spot.POSITION_T ).doubleValue();
+			final double stopTime = trackSpots[ last ].getFeature( Spot.POSITION_T ).doubleValue();
+			double quality = 0.;
+			for ( int j = start; j <= last; j++ )
+				quality += trackSpots[ j ].getFeature( Spot.QUALITY ).doubleValue();
+
+			// In the order of TRACK_FEATURES.
+			trackFeatures[ 0 ][ i ] = stopTime - startTime;
+			trackFeatures[ 1 ][ i ] = startTime;
+			trackFeatures[ 2 ][ i ] = stopTime;
+			trackFeatures[ 3 ][ i ] = Math.sqrt( trackSpots[ start ].squareDistanceTo( trackSpots[ last ] ) );
+			trackFeatures[ 4 ][ i ] = quality / ( last - start + 1 );
+
+			// Same as TotalBranchTravelAnalyzer.
+			final boolean atStart = frameOf( trackSpots[ start ] ) == minFrame;
+			final boolean atEnd = frameOf( trackSpots[ last ] ) == maxFrame;
+			double previousBranchLength = atStart ? branchLengths[ start ] : 0.;
+			double accumulativeDistance = 0.;
+			for ( int j = start; j <= last; j++ )
+			{
+				accumulativeDistance += Math.abs( branchLengths[ j ] - previousBranchLength );
+				previousBranchLength = branchLengths[ j ];
+			}
+			if ( !atEnd )
+				accumulativeDistance += branchLengths[ last ];
+			trackFeatures[ 6 ][ i ] = accumulativeDistance;
+
+			final double netDistance;
+			if ( atStart && atEnd )
+				netDistance = branchLengths[ last ] - branchLengths[ start ];
+			else if ( atStart )
+				netDistance = -branchLengths[ start ];
+			else if ( atEnd )
+				netDistance = branchLengths[ last ];
+			else
+				netDistance = 0.;
+			trackFeatures[ 7 ][ i ] = netDistance;
+		}
+	}
+
+	private void computeFrameStatistics()
+	{
+		final int[] firstFrames = new int[ trackIDs.length ];
+		final int[] lastFrames = new int[ trackIDs.length ];
+		final double[] totalBranchLength = new double[ nFrames ];
+		for ( int i = 0; i < trackIDs.length; i++ )
+		{
+			firstFrames[ i ] = frameOf( trackSpots[ trackOffsets[ i ] ] );
+			lastFrames[ i ] = frameOf( trackSpots[ trackOffsets[ i + 1 ] - 1 ] );
+			for ( int j = trackOffsets[ i ]; j < trackOffsets[ i + 1 ]; j++ )
+				if ( !Double.isNaN( branchLengths[ j ] ) )
+					totalBranchLength[ frameOf( trackSpots[ j ] ) ] += branchLengths[ j ];
+		}
+
+		// Lonely spots have no branch length.
+		final int[] lonelyFrames = new int[ lonelySpots.size() ];
+		for ( int i = 0; i < lonelyFrames.length; i++ )
+			lonelyFrames[ i ] = frameOf( lonelySpots.get( i ) );
+
+		frameStatistics = DendriteFrameStatistics.compute( nFrames, frameInterval, firstFrames, lastFrames, lonelyFrames, totalBranchLength );
+	}
+
+	/**
+	 * Builds a TrackMate model from the results, for display. The spot
+	 * features are set to the patched values, and the features of the
+	 * {@link #ANALYZER_PROFILE} are computed.
+	 *
+	 * @return a new TrackMate instance.
+	 */
+	public TrackMate createTrackMate()
+	{
+		final SpotCollection spots = new SpotCollection();
+		for ( int j = 0; j < trackSpots.length; j++ )
+		{
+			final Spot spot = trackSpots[ j ];
+			spot.putFeature( BranchLengthAnalyzerFactory.FEATURE, Double.valueOf( branchLengths[ j ] ) );
+			spot.putFeature( JunctionIDAnalyzerFactory.FEATURE, Double.valueOf( junctionIDs[ j ] ) );
+			spot.setName( "->" + ( int ) junctionIDs[ j ] );
+			spots.add( spot, Integer.valueOf( frameOf( spot ) ) );
+		}
+		for ( final Spot spot : lonelySpots )
+			spots.add( spot, Integer.valueOf( frameOf( spot ) ) );
+
+		final Model model = new Model();
+		model.setPhysicalUnits( imp.getCalibration().getUnits(), imp.getCalibration().getTimeUnit() );
+		model.setSpots( spots, false );
+		model.beginUpdate();
+		try
+		{
+			for ( int i = 0; i < trackIDs.length; i++ )
+				for ( int j = trackOffsets[ i ] + 1; j < trackOffsets[ i + 1 ]; j++ )
+					model.addEdge( trackSpots[ j - 1 ], trackSpots[ j ], linkCosts[ j ] );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		final Settings settings = DendriteDynamicsTrackerCommand.createEndPointSettings( imp, endPointMaxLinkingDistance, matchedCostFactor, ANALYZER_PROFILE );
+		final TrackMate trackmate = new TrackMate( model, settings );
+		trackmate.computeSpotFeatures( false );
+		trackmate.computeEdgeFeatures( false );
+		trackmate.computeTrackFeatures( false );
+		DendriteTrackAnalysis.computeBranchFeatures( trackmate );
+
+		final TrackModel trackModel = model.getTrackModel();
+		for ( int i = 0; i < trackIDs.length; i++ )
+		{
+			final Integer trackID = trackModel.trackIDOf( trackSpots[ trackOffsets[ i ] ] );
+			if ( null == trackID )
+				continue;
+			trackModel.setName( trackID, getTrackName( Integer.valueOf( trackIDs[ i ] ) ) );
+			model.getFeatureModel().putTrackFeature( trackID, DendriteTrackNIncorrectIDs.FEATURE, Double.valueOf( trackFeatures[ N_INCORRECT_ID_INDEX ][ i ] ) );
+		}
+		return trackmate;
+	}
+
+	/**
+	 * Links the spots of each frame to the spots of the previous frame, frame
+	 * pairs being distributed over several threads.
+	 *
+	 * @param spots
+	 *            the spots, indexed by frame.
+	 * @param links
+	 *            filled with the index of the spot each spot is linked to in
+	 *            the previous frame, -1 if it is not linked.
+	 * @param costs
+	 *            filled with the cost of these links. May be
+	 *            <code>null</code>.
+	 * @param trackerFactory
+	 *            creates a frame-to-frame tracker for the spots of two frames.
+	 * @return <code>true</code> if all the frames could be linked.
+	 */
+	private boolean link( final Spot[][] spots, final int[][] links, final double[][] costs, final Function< SpotCollection, SpotTracker > trackerFactory )
+	{
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final AtomicBoolean ok = new AtomicBoolean( true );
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		for ( int ithread = 0; ithread < threads.length; ithread++ )
+		{
+			threads[ ithread ] = new Thread( "Dendrite lean engine linking thread " + ( 1 + ithread ) + "/" + threads.length )
+			{
+				@Override
+				public void run()
+				{
+					for ( int frame = ai.getAndIncrement(); frame < nFrames && ok.get(); frame = ai.getAndIncrement() )
+					{
+						final Spot[] current = spots[ frame ];
+						links[ frame ] = new int[ current.length ];
+						Arrays.fill( links[ frame ], -1 );
+						if ( null != costs )
+							costs[ frame ] = new double[ current.length ];
+						if ( frame == 0 || current.length == 0 || spots[ frame - 1 ].length == 0 )
+							continue;
+
+						final Spot[] previous = spots[ frame - 1 ];
+						final SpotCollection pair = new SpotCollection();
+						final Map< Spot, Integer > index = new HashMap<>( 2 * ( previous.length + current.length ) );
+						for ( int i = 0; i < previous.length; i++ )
+						{
+							pair.add( previous[ i ], Integer.valueOf( frame - 1 ) );
+							index.put( previous[ i ], Integer.valueOf( i ) );
+						}
+						for ( int i = 0; i < current.length; i++ )
+						{
+							pair.add( current[ i ], Integer.valueOf( frame ) );
+							index.put( current[ i ], Integer.valueOf( i ) );
+						}
+						pair.setVisible( true );
+
+						final SpotTracker tracker = trackerFactory.apply( pair );
+						tracker.setNumThreads( 1 );
+						if ( !tracker.checkInput() || !tracker.process() )
+						{
+							addErrorMessage( "Could not link frame " + frame + ": " + tracker.getErrorMessage() );
+							ok.set( false );
+							return;
+						}
+
+						final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph = tracker.getResult();
+						for ( final DefaultWeightedEdge edge : graph.edgeSet() )
+						{
+							final Spot source = graph.getEdgeSource( edge );
+							final Spot target = graph.getEdgeTarget( edge );
+							final boolean forward = frameOf( source ) < frameOf( target );
+							final int i = index.get( forward ? target : source ).intValue();
+							links[ frame ][ i ] = index.get( forward ? source : target ).intValue();
+							if ( null != costs )
+								costs[ frame ][ i ] = graph.getEdgeWeight( edge );
+						}
+					}
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+		return ok.get();
+	}
+
+	/**
+	 * Assigns a track ID to each linked spot, following the links from the
+	 * first frame to the last. Spots with no link get -1, like the spots that
+	 * are not in a track of a TrackMate model.
+	 *
+	 * @return the number of tracks.
+	 */
+	private int chain( final int[][] links, final int[][] tracks )
+	{
+		int nTracks = 0;
+		for ( int frame = 0; frame < nFrames; frame++ )
+		{
+			tracks[ frame ] = new int[ links[ frame ].length ];
+			for ( int i = 0; i < links[ frame ].length; i++ )
+			{
+				final int previous = links[ frame ][ i ];
+				if ( previous < 0 )
+				{
+					tracks[ frame ][ i ] = -1;
+					continue;
+				}
+				if ( tracks[ frame - 1 ][ previous ] < 0 )
+					tracks[ frame - 1 ][ previous ] = nTracks++;
+				tracks[ frame ][ i ] = tracks[ frame - 1 ][ previous ];
+			}
+		}
+		return nTracks;
+	}
+
+	private Spot[][] toArrays( final SpotCollection spots )
+	{
+		final Spot[][] arrays = new Spot[ nFrames ][];
+		for ( int frame = 0; frame < nFrames; frame++ )
+		{
+			final List< Spot > list = new ArrayList<>();
+			for ( final Spot spot : spots.iterable( frame, true ) )
+				list.add( spot );
+			arrays[ frame ] = list.toArray( new Spot[ list.size() ] );
+		}
+		return arrays;
+	}
+
+	private static boolean touchesBorder( final Spot spot, final Interval roi, final double[] calibration )
+	{
+		for ( int d = 0; d < roi.numDimensions(); d++ )
+		{
+			final long pixel = Math.round( spot.getDoublePosition( d ) / calibration[ d ] );
+			if ( pixel <= roi.min( d ) || pixel >= roi.max( d ) )
+				return true;
+		}
+		return false;
+	}
+
+	private static int frameOf( final Spot spot )
+	{
+		return spot.getFeature( Spot.FRAME ).intValue();
+	}
+
+	@Override
+	public ImagePlus getImp()
+	{
+		return imp;
+	}
+
+	@Override
+	public String getSpaceUnits()
+	{
+		return imp.getCalibration().getUnits();
+	}
+
+	@Override
+	public String getTimeUnits()
+	{
+		return imp.getCalibration().getTimeUnit();
+	}
+
+	@Override
+	public double getFrameInterval()
+	{
+		return frameInterval;
+	}
+
+	@Override
+	public Collection< Integer > getTrackIDs()
+	{
+		final List< Integer > ids = new ArrayList<>( trackIDs.length );
+		for ( final int trackID : trackIDs )
+			ids.add( Integer.valueOf( trackID ) );
+		return ids;
+	}
+
+	@Override
+	public String getTrackName( final Integer trackID )
+	{
+		return "Branch_" + trackID;
+	}
+
+	@Override
+	public List< String > getTrackFeatures()
+	{
+		return declaredTrackFeatures;
+	}
+
+	@Override
+	public Dimension getTrackFeatureDimension( final String feature )
+	{
+		return trackFeatureDimensions.get( feature );
+	}
+
+	@Override
+	public boolean isIntTrackFeature( final String feature )
+	{
+		final Boolean isInt = trackFeatureIsInt.get( feature );
+		return null != isInt && isInt.booleanValue();
+	}
+
+	@Override
+	public Double getTrackFeature( final Integer trackID, final String feature )
+	{
+		final int i = trackIndex[ trackID.intValue() ];
+		if ( TrackIndexAnalyzer.TRACK_ID.equals( feature ) )
+			return Double.valueOf( trackID.doubleValue() );
+		if ( TrackIndexAnalyzer.TRACK_INDEX.equals( feature ) )
+			return Double.valueOf( i );
+		final int f = TRACK_FEATURES.indexOf( feature );
+		if ( f < 0 || !declaredTrackFeatures.contains( feature ) )
+			return null;
+		return Double.valueOf( trackFeatures[ f ][ i ] );
+	}
+
+	@Override
+	public double[][] getBranch( final Integer trackID )
+	{
+		final int i = trackIndex[ trackID.intValue() ];
+		final int start = trackOffsets[ i ];
+		final int end = trackOffsets[ i + 1 ];
+		final double[] times = new double[ end - start ];
+		for ( int j = start; j < end; j++ )
+			times[ j - start ] = trackSpots[ j ].getFeature( Spot.POSITION_T ).doubleValue();
+		return new double[][] { times, Arrays.copyOfRange( branchLengths, start, end ) };
+	}
+
+	@Override
+	public DendriteFrameStatistics getFrameStatistics()
+	{
+		return frameStatistics;
+	}
+
+	@Override
+	public synchronized String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	private synchronized void addErrorMessage( final String message )
+	{
+		errorMessage = ( null == errorMessage ) ? message : errorMessage + "\n" + message;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+}
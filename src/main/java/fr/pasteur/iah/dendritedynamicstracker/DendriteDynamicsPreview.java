@@ -0,0 +1,349 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.awt.Color;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.TrackModel;
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.DendriteAnalyzerProfile;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.gui.Line;
+import ij.gui.OvalRoi;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/**
+ * Runs a quick version of the Dendrite Dynamics Tracker pipeline for
+ * previews: only every n-th frame is processed, within the ROI of the source
+ * image if there is one, and patching is skipped. The results are returned
+ * as an overlay to display on the source image. If junction tracks are
+ * merged with the end-point tracks, they are drawn with them.
+ * <p>
+ * Since consecutive frames of the subsample are n frames apart, the linking
+ * distances are multiplied by n.
+ * <p>
+ * A preview instance caches the detection results of the last call, and
+ * the overlay made from them. Detection is run again only when its
+ * parameters or the frame step change, tracking only when the linking
+ * parameters change. Other changes return the cached overlay at once.
+ */
+public class DendriteDynamicsPreview
+{
+
+	private static final Color JUNCTION_COLOR = Color.WHITE;
+
+	private String detectionKey;
+
+	private ImagePlus subsample;
+
+	private DetectionResults detectionResults;
+
+	private String trackingKey;
+
+	private Overlay overlay;
+
+	/**
+	 * Runs the preview pipeline, or the part of it whose parameters changed
+	 * since the last call.
+	 *
+	 * @param detector
+	 *            supplies the skeleton key-point detector to use, if
+	 *            detection must be run again.
+	 * @param detectionKey
+	 *            a key describing the source image and all the detection
+	 *            parameters. Detection is run again only if it changes.
+	 * @param imp
+	 *            the source image.
+	 * @param frameStep
+	 *            process only every <code>frameStep</code>-th frame.
+	 * @param junctionMaxLinkingDistance
+	 *            the junction max linking distance, for consecutive frames.
+	 * @param endPointMaxLinkingDistance
+	 *            the end-point max linking distance, for consecutive frames.
+	 * @param matchedCostFactor
+	 *            the matched cost factor for end-points.
+	 * @param pruneBorderDendrites
+	 *            whether to exclude dendrites touching the border.
+	 * @param mergeJunctionTracks
+	 *            whether to merge the junction tracks with the end-point
+	 *            tracks.
+	 * @return the overlay for the source image, or <code>null</code> if the
+	 *         pipeline failed.
+	 */
+	public synchronized Overlay preview(
+			final Supplier< SkeletonKeyPointsDetector > detector,
+			final String detectionKey,
+			final ImagePlus imp,
+			final int frameStep,
+			final double junctionMaxLinkingDistance,
+			final double endPointMaxLinkingDistance,
+			final double matchedCostFactor,
+			final boolean pruneBorderDendrites,
+			final boolean mergeJunctionTracks )
+	{
+		final int step = Math.max( 1, frameStep );
+		final String stepDetectionKey = detectionKey + ";previewFrameStep=" + step;
+		if ( !stepDetectionKey.equals( this.detectionKey ) )
+		{
+			this.detectionKey = null;
+			this.trackingKey = null;
+			subsample = subsample( imp, step );
+			detectionResults = detector.get().calculate( subsample );
+			if ( null == detectionResults )
+				return null;
+			this.detectionKey = stepDetectionKey;
+		}
+
+		final String trackingKey = "junctionMaxLinkingDistance=" + junctionMaxLinkingDistance
+				+ ";endPointMaxLinkingDistance=" + endPointMaxLinkingDistance
+				+ ";matchedCostFactor=" + matchedCostFactor
+				+ ";pruneBorderDendrites=" + pruneBorderDendrites
+				+ ";mergeJunctionTracks=" + mergeJunctionTracks;
+		if ( trackingKey.equals( this.trackingKey ) )
+			return overlay;
+
+		// Tracking adds the spots to models, so track a copy.
+		overlay = track(
+				detectionResults.copy(),
+				subsample,
+				imp,
+				step,
+				junctionMaxLinkingDistance,
+				endPointMaxLinkingDistance,
+				matchedCostFactor,
+				pruneBorderDendrites,
+				mergeJunctionTracks );
+		this.trackingKey = ( null == overlay ) ? null : trackingKey;
+		return overlay;
+	}
+
+	/**
+	 * Releases the cached results.
+	 */
+	public synchronized void clear()
+	{
+		detectionKey = null;
+		subsample = null;
+		detectionResults = null;
+		trackingKey = null;
+		overlay = null;
+	}
+
+	private static Overlay track(
+			final DetectionResults detectionResults,
+			final ImagePlus subsample,
+			final ImagePlus imp,
+			final int step,
+			final double junctionMaxLinkingDistance,
+			final double endPointMaxLinkingDistance,
+			final double matchedCostFactor,
+			final boolean pruneBorderDendrites,
+			final boolean mergeJunctionTracks )
+	{
+		final Model junctionModel = DendriteDynamicsTrackerCommand.trackJunctions(
+				detectionResults,
+				subsample,
+				junctionMaxLinkingDistance * step );
+		if ( null == junctionModel )
+			return null;
+
+		final TrackMate endPointTrackmate = DendriteDynamicsTrackerCommand.trackEndPoints(
+				detectionResults,
+				junctionModel,
+				subsample,
+				endPointMaxLinkingDistance * step,
+				matchedCostFactor,
+				mergeJunctionTracks,
+				DendriteAnalyzerProfile.DDT_MINIMAL );
+		if ( null == endPointTrackmate )
+			return null;
+
+		if ( pruneBorderDendrites )
+			DendriteTrackFilter.pruneBorderTracks(
+					endPointTrackmate.getModel(),
+					DendriteDynamicsTrackerCommand.getRoi2D( imp ),
+					new double[] { imp.getCalibration().pixelWidth, imp.getCalibration().pixelHeight } );
+
+		final Overlay overlay = new Overlay();
+		// Merged junction tracks are in the end-point model.
+		if ( !mergeJunctionTracks )
+			addTracks( overlay, junctionModel, imp.getCalibration(), step, JUNCTION_COLOR );
+		addTracks( overlay, endPointTrackmate.getModel(), imp.getCalibration(), step, null );
+		return overlay;
+	}
+
+	/**
+	 * Returns an image made of every <code>step</code>-th frame of the
+	 * specified image, with the same ROI. Pixel data is shared with the
+	 * source image. If the source image is virtual, so is the subsample, and
+	 * its planes are only read when they are requested.
+	 */
+	static ImagePlus subsample( final ImagePlus imp, final int step )
+	{
+		final int nChannels = imp.getNChannels();
+		final int nSlices = imp.getNSlices();
+		final int nFrames = ( imp.getNFrames() + step - 1 ) / step;
+		final int[] indices = new int[ nChannels * nSlices * nFrames ];
+		int i = 0;
+		for ( int t = 1; t <= imp.getNFrames(); t += step )
+			for ( int z = 1; z <= nSlices; z++ )
+				for ( int c = 1; c <= nChannels; c++ )
+					indices[ i++ ] = imp.getStackIndex( c, z, t );
+
+		final ImageStack source = imp.getStack();
+		final ImageStack stack;
+		if ( source.isVirtual() )
+		{
+			stack = new SubsampledStack( source, indices );
+		}
+		else
+		{
+			stack = new ImageStack( imp.getWidth(), imp.getHeight() );
+			for ( final int index : indices )
+				stack.addSlice( source.getSliceLabel( index ), source.getProcessor( index ) );
+		}
+
+		final ImagePlus subsample = new ImagePlus( imp.getTitle(), stack );
+		subsample.setDimensions( nChannels, nSlices, nFrames );
+		subsample.setOpenAsHyperStack( true );
+		final Calibration calibration = imp.getCalibration().copy();
+		calibration.frameInterval *= step;
+		subsample.setCalibration( calibration );
+		subsample.setRoi( imp.getRoi() );
+		return subsample;
+	}
+
+	/**
+	 * A virtual stack made of some planes of another stack.
+	 */
+	private static final class SubsampledStack extends VirtualStack
+	{
+
+		private final ImageStack source;
+
+		private final int[] indices;
+
+		private SubsampledStack( final ImageStack source, final int[] indices )
+		{
+			super( source.getWidth(), source.getHeight(), null, null );
+			this.source = source;
+			this.indices = indices;
+		}
+
+		@Override
+		public ImageProcessor getProcessor( final int n )
+		{
+			return source.getProcessor( indices[ n - 1 ] );
+		}
+
+		@Override
+		public int getSize()
+		{
+			return indices.length;
+		}
+
+		@Override
+		public String getSliceLabel( final int n )
+		{
+			return source.getSliceLabel( indices[ n - 1 ] );
+		}
+
+		@Override
+		public int getBitDepth()
+		{
+			return source.getBitDepth();
+		}
+	}
+
+	/**
+	 * Adds the visible tracks of the specified model to the overlay. Spots are
+	 * painted in the source frame they come from.
+	 */
+	private static void addTracks( final Overlay overlay, final Model model, final Calibration calibration, final int step, final Color fixedColor )
+	{
+		final TrackModel trackModel = model.getTrackModel();
+		final Set< Integer > trackIDs = trackModel.trackIDs( true );
+		for ( final Integer trackID : trackIDs )
+		{
+			final Color color = ( null != fixedColor )
+					? fixedColor
+					: Color.getHSBColor( ( trackID.intValue() * 0.618034f ) % 1f, 1f, 1f );
+
+			for ( final Spot spot : trackModel.trackSpots( trackID ) )
+			{
+				final double x = spot.getDoublePosition( 0 ) / calibration.pixelWidth;
+				final double y = spot.getDoublePosition( 1 ) / calibration.pixelHeight;
+				final double r = spot.getFeature( Spot.RADIUS ).doubleValue() / calibration.pixelWidth;
+				final Roi roi = new OvalRoi( x - r + 0.5, y - r + 0.5, 2 * r, 2 * r );
+				roi.setStrokeColor( color );
+				roi.setPosition( 0, 0, sourceFrame( spot, step ) );
+				overlay.add( roi );
+			}
+
+			for ( final DefaultWeightedEdge edge : trackModel.trackEdges( trackID ) )
+			{
+				final Spot source = trackModel.getEdgeSource( edge );
+				final Spot target = trackModel.getEdgeTarget( edge );
+				final Roi line = new Line(
+						source.getDoublePosition( 0 ) / calibration.pixelWidth + 0.5,
+						source.getDoublePosition( 1 ) / calibration.pixelHeight + 0.5,
+						target.getDoublePosition( 0 ) / calibration.pixelWidth + 0.5,
+						target.getDoublePosition( 1 ) / calibration.pixelHeight + 0.5 );
+				line.setStrokeColor( color );
+				line.setPosition( 0, 0, Math.max( sourceFrame( source, step ), sourceFrame( target, step ) ) );
+				overlay.add( line );
+			}
+		}
+	}
+
+	/**
+	 * Returns the 1-based frame of the source image a spot of the subsample
+	 * comes from.
+	 */
+	private static int sourceFrame( final Spot spot, final int step )
+	{
+		return spot.getFeature( Spot.FRAME ).intValue() * step + 1;
+	}
+}
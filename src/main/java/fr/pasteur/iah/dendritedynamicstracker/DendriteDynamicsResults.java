@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.util.Collection;
+import java.util.List;
+
+import fiji.plugin.trackmate.Dimension;
+import ij.ImagePlus;
+
+/**
+ * The dendrite tracking results the exporters need, whether they come from a
+ * TrackMate model or not.
+ */
+public interface DendriteDynamicsResults
+{
+
+	/**
+	 * Returns the source image, used to name the exported files.
+	 */
+	public ImagePlus getImp();
+
+	public String getSpaceUnits();
+
+	public String getTimeUnits();
+
+	public double getFrameInterval();
+
+	/**
+	 * Returns the IDs of the branch tracks to export.
+	 */
+	public Collection< Integer > getTrackIDs();
+
+	public String getTrackName( Integer trackID );
+
+	/**
+	 * Returns the track features to export, in the order of the columns.
+	 */
+	public List< String > getTrackFeatures();
+
+	public Dimension getTrackFeatureDimension( String feature );
+
+	public boolean isIntTrackFeature( String feature );
+
+	/**
+	 * Returns the value of the specified feature for the specified track, or
+	 * <code>null</code> if it was not computed.
+	 */
+	public Double getTrackFeature( Integer trackID, String feature );
+
+	/**
+	 * Returns the time and the branch length of each end-point of the
+	 * specified track, sorted by time, in two arrays.
+	 */
+	public double[][] getBranch( Integer trackID );
+
+	public DendriteFrameStatistics getFrameStatistics();
+}
@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import fiji.plugin.trackmate.Model;
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+
+/**
+ * Keeps the intermediate results of a Dendrite Dynamics Tracker run alongside
+ * the end-point {@link Model} it produced, so that the TrackMate actions
+ * operating on this model can reuse them instead of recomputing them.
+ * <p>
+ * Sessions are registered against the model instance and are released when
+ * the model is garbage-collected. They must therefore never hold a reference
+ * to the end-point model itself.
+ */
+public class DendriteDynamicsSession
+{
+
+	private static final Map< Model, DendriteDynamicsSession > SESSIONS = Collections.synchronizedMap( new WeakHashMap<>() );
+
+	private final DetectionResults detectionResults;
+
+	private final Model junctionModel;
+
+	private final int skeletonChannel;
+
+	private final boolean skeletonize;
+
+	private final boolean completeGraphs;
+
+	public DendriteDynamicsSession(
+			final DetectionResults detectionResults,
+			final Model junctionModel,
+			final int skeletonChannel,
+			final boolean skeletonize,
+			final boolean completeGraphs )
+	{
+		this.detectionResults = detectionResults;
+		this.junctionModel = junctionModel;
+		this.skeletonChannel = skeletonChannel;
+		this.skeletonize = skeletonize;
+		this.completeGraphs = completeGraphs;
+	}
+
+	/**
+	 * Returns the skeleton detection results of this run.
+	 */
+	public DetectionResults getDetectionResults()
+	{
+		return detectionResults;
+	}
+
+	/**
+	 * Returns the model containing the junction tracks of this run.
+	 */
+	public Model getJunctionModel()
+	{
+		return junctionModel;
+	}
+
+	/**
+	 * Returns the 1-based index of the skeleton channel in the source image.
+	 */
+	public int getSkeletonChannel()
+	{
+		return skeletonChannel;
+	}
+
+	/**
+	 * Returns <code>true</code> if the skeleton channel is a binary mask that
+	 * was skeletonized before detection.
+	 */
+	public boolean isSkeletonize()
+	{
+		return skeletonize;
+	}
+
+	/**
+	 * Returns <code>true</code> if the skeleton graphs of this run cover the
+	 * whole skeleton of each frame, as an analysis without cycle-prunning
+	 * would. If not, some branches were discarded by the detection, or are
+	 * out of its ROI, and are not in the graphs.
+	 */
+	public boolean hasCompleteGraphs()
+	{
+		return completeGraphs;
+	}
+
+	/**
+	 * Returns <code>true</code> if a detection run with the specified
+	 * parameters keeps the complete skeleton graphs: no cycle-prunning, no
+	 * spur removal, no junction merging, and no ROI.
+	 */
+	public static boolean hasCompleteGraphs(
+			final int prunningMethod,
+			final double minBranchLength,
+			final double junctionMergeRadius,
+			final boolean hasRoi )
+	{
+		return prunningMethod == AnalyzeSkeleton_.NONE
+				&& minBranchLength <= 0.
+				&& junctionMergeRadius <= 0.
+				&& !hasRoi;
+	}
+
+	/**
+	 * Registers the specified session for the specified end-point model.
+	 */
+	public static void register( final Model endPointModel, final DendriteDynamicsSession session )
+	{
+		SESSIONS.put( endPointModel, session );
+	}
+
+	/**
+	 * Returns the session registered for the specified end-point model, or
+	 * <code>null</code> if there is none, for instance if the model was
+	 * loaded from a file.
+	 */
+	public static DendriteDynamicsSession get( final Model endPointModel )
+	{
+		return SESSIONS.get( endPointModel );
+	}
+}
@@ -0,0 +1,468 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackModel;
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
+import sc.fiji.analyzeSkeleton.Edge;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.Vertex;
+
+/**
+ * Reads and writes the part of a {@link DendriteDynamicsSession} that a
+ * TrackMate XML file does not store, in a gzipped binary sidecar file saved
+ * next to it.
+ * <p>
+ * The sidecar stores the junction model, the end-point to junction map, and
+ * the skeleton graphs of each frame with the link between their vertices and
+ * the spots. Spots are referenced by ID: the end-point spots themselves are
+ * read from the XML file, and must be resolved against the end-point model
+ * loaded from it.
+ */
+public class DendriteDynamicsSessionIO
+{
+
+	public static final String EXTENSION = ".ddt";
+
+	static final int MAGIC = 0x44445453;
+
+	static final int VERSION = 2;
+
+	private DendriteDynamicsSessionIO()
+	{}
+
+	/**
+	 * Returns the sidecar file for the specified TrackMate XML file.
+	 */
+	public static File sidecarFileFor( final File xmlFile )
+	{
+		final String name = xmlFile.getName();
+		final int dot = name.lastIndexOf( '.' );
+		final String base = ( dot > 0 ) ? name.substring( 0, dot ) : name;
+		return new File( xmlFile.getParentFile(), base + EXTENSION );
+	}
+
+	/**
+	 * Writes the specified session to the specified sidecar file.
+	 *
+	 * @param session
+	 *            the session to write.
+	 * @param file
+	 *            the file to write to.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static void write( final DendriteDynamicsSession session, final File file ) throws IOException
+	{
+		try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream( new GZIPOutputStream( new FileOutputStream( file ) ), 1 << 16 ) ))
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( session.getSkeletonChannel() );
+			out.writeBoolean( session.isSkeletonize() );
+			out.writeBoolean( session.hasCompleteGraphs() );
+
+			final DetectionResults detectionResults = session.getDetectionResults();
+			for ( final int o : detectionResults.getOrigin() )
+				out.writeInt( o );
+
+			writeModel( out, session.getJunctionModel() );
+			writeJunctionMap( out, detectionResults.junctionMap );
+			writeGraphs( out, detectionResults );
+		}
+	}
+
+	/**
+	 * Reads a session from the specified sidecar file.
+	 *
+	 * @param file
+	 *            the sidecar file.
+	 * @param endPointModel
+	 *            the end-point model loaded from the TrackMate XML file the
+	 *            sidecar belongs to.
+	 * @return a new session.
+	 * @throws IOException
+	 *             if the file cannot be read or is not a sidecar file.
+	 */
+	public static DendriteDynamicsSession read( final File file, final Model endPointModel ) throws IOException
+	{
+		try (final DataInputStream in = new DataInputStream(
+				new BufferedInputStream( new GZIPInputStream( new FileInputStream( file ) ), 1 << 16 ) ))
+		{
+			if ( in.readInt() != MAGIC )
+				throw new IOException( "Not a Dendrite Dynamics Tracker sidecar file: " + file );
+			final int version = in.readInt();
+			if ( version != VERSION )
+				throw new IOException( "Unsupported sidecar file version: " + version + " in " + file );
+
+			final int skeletonChannel = in.readInt();
+			final boolean skeletonize = in.readBoolean();
+			final boolean completeGraphs = in.readBoolean();
+			final int[] origin = new int[] { in.readInt(), in.readInt(), in.readInt() };
+
+			final Model junctionModel = readModel( in );
+			junctionModel.setPhysicalUnits( endPointModel.getSpaceUnits(), endPointModel.getTimeUnits() );
+
+			final Map< Integer, Spot > spotsByID = new HashMap<>();
+			for ( final Spot spot : junctionModel.getSpots().iterable( false ) )
+				spotsByID.put( Integer.valueOf( spot.ID() ), spot );
+			for ( final Spot spot : endPointModel.getSpots().iterable( false ) )
+				spotsByID.put( Integer.valueOf( spot.ID() ), spot );
+
+			final Map< Spot, Spot > junctionMap = readJunctionMap( in, spotsByID );
+
+			final Map< Integer, Graph[] > graphs = new HashMap<>();
+			final Map< Integer, List< Point > > endPointPixels = new HashMap<>();
+			final Map< Spot, Vertex > spotMap = new HashMap<>();
+			final Map< Integer, Map< Vertex, Spot > > vertexMaps = new HashMap<>();
+			readGraphs( in, spotsByID, graphs, endPointPixels, spotMap, vertexMaps );
+
+			final DetectionResults detectionResults = new DetectionResults(
+					junctionModel.getSpots(),
+					endPointModel.getSpots(),
+					junctionMap,
+					spotMap,
+					vertexMaps,
+					graphs,
+					endPointPixels,
+					origin );
+			return new DendriteDynamicsSession( detectionResults, junctionModel, skeletonChannel, skeletonize, completeGraphs );
+		}
+	}
+
+	/*
+	 * MODEL.
+	 */
+
+	static void writeModel( final DataOutputStream out, final Model model ) throws IOException
+	{
+		final SpotCollection spots = model.getSpots();
+		out.writeInt( spots.getNSpots( false ) );
+		for ( final Integer frame : spots.keySet() )
+			for ( final Spot spot : spots.iterable( frame.intValue(), false ) )
+				writeSpot( out, spot, frame.intValue() );
+
+		final TrackModel trackModel = model.getTrackModel();
+		final Set< Integer > trackIDs = trackModel.trackIDs( false );
+		out.writeInt( trackIDs.size() );
+		for ( final Integer trackID : trackIDs )
+		{
+			out.writeInt( trackID.intValue() );
+			writeString( out, trackModel.name( trackID ) );
+			out.writeBoolean( trackModel.isVisible( trackID ) );
+			final Set< DefaultWeightedEdge > edges = trackModel.trackEdges( trackID );
+			out.writeInt( edges.size() );
+			for ( final DefaultWeightedEdge edge : edges )
+			{
+				out.writeInt( trackModel.getEdgeSource( edge ).ID() );
+				out.writeInt( trackModel.getEdgeTarget( edge ).ID() );
+				out.writeDouble( trackModel.getEdgeWeight( edge ) );
+			}
+		}
+	}
+
+	static Model readModel( final DataInputStream in ) throws IOException
+	{
+		final Map< Integer, Spot > spotsByID = new HashMap<>();
+		final SpotCollection spots = new SpotCollection();
+		final int nSpots = in.readInt();
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			final int frame = in.readInt();
+			final Spot spot = readSpot( in );
+			spots.add( spot, Integer.valueOf( frame ) );
+			spotsByID.put( Integer.valueOf( spot.ID() ), spot );
+		}
+
+		final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph = new SimpleWeightedGraph<>( DefaultWeightedEdge.class );
+		final Map< Integer, Set< Spot > > trackSpots = new HashMap<>();
+		final Map< Integer, Set< DefaultWeightedEdge > > trackEdges = new HashMap<>();
+		final Map< Integer, Boolean > trackVisibility = new HashMap<>();
+		final Map< Integer, String > trackNames = new HashMap<>();
+		final int nTracks = in.readInt();
+		for ( int i = 0; i < nTracks; i++ )
+		{
+			final Integer trackID = Integer.valueOf( in.readInt() );
+			trackNames.put( trackID, readString( in ) );
+			trackVisibility.put( trackID, Boolean.valueOf( in.readBoolean() ) );
+
+			final Set< Spot > tSpots = new HashSet<>();
+			final Set< DefaultWeightedEdge > tEdges = new HashSet<>();
+			final int nEdges = in.readInt();
+			for ( int j = 0; j < nEdges; j++ )
+			{
+				final Spot source = spotsByID.get( Integer.valueOf( in.readInt() ) );
+				final Spot target = spotsByID.get( Integer.valueOf( in.readInt() ) );
+				final double weight = in.readDouble();
+				if ( null == source || null == target )
+					throw new IOException( "Track " + trackID + " links a spot that is not in the file." );
+
+				graph.addVertex( source );
+				graph.addVertex( target );
+				final DefaultWeightedEdge edge = graph.addEdge( source, target );
+				graph.setEdgeWeight( edge, weight );
+				tSpots.add( source );
+				tSpots.add( target );
+				tEdges.add( edge );
+			}
+			trackSpots.put( trackID, tSpots );
+			trackEdges.put( trackID, tEdges );
+		}
+
+		final Model model = new Model();
+		model.setSpots( spots, false );
+		model.getTrackModel().from( graph, trackSpots, trackEdges, trackVisibility, trackNames );
+		return model;
+	}
+
+	private static void writeSpot( final DataOutputStream out, final Spot spot, final int frame ) throws IOException
+	{
+		out.writeInt( frame );
+		out.writeInt( spot.ID() );
+		writeString( out, spot.getName() );
+		final Map< String, Double > features = spot.getFeatures();
+		out.writeInt( features.size() );
+		for ( final Map.Entry< String, Double > feature : features.entrySet() )
+		{
+			out.writeUTF( feature.getKey() );
+			out.writeDouble( null == feature.getValue() ? Double.NaN : feature.getValue().doubleValue() );
+		}
+	}
+
+	private static Spot readSpot( final DataInputStream in ) throws IOException
+	{
+		final Spot spot = new Spot( in.readInt() );
+		spot.setName( readString( in ) );
+		final int nFeatures = in.readInt();
+		for ( int i = 0; i < nFeatures; i++ )
+		{
+			final String feature = in.readUTF();
+			spot.putFeature( feature, Double.valueOf( in.readDouble() ) );
+		}
+		return spot;
+	}
+
+	/*
+	 * JUNCTION MAP.
+	 */
+
+	static void writeJunctionMap( final DataOutputStream out, final Map< Spot, Spot > junctionMap ) throws IOException
+	{
+		out.writeInt( junctionMap.size() );
+		for ( final Map.Entry< Spot, Spot > entry : junctionMap.entrySet() )
+		{
+			out.writeInt( entry.getKey().ID() );
+			out.writeInt( entry.getValue().ID() );
+		}
+	}
+
+	static Map< Spot, Spot > readJunctionMap( final DataInputStream in, final Map< Integer, Spot > spotsByID ) throws IOException
+	{
+		final int n = in.readInt();
+		final Map< Spot, Spot > junctionMap = new HashMap<>( 2 * n );
+		for ( int i = 0; i < n; i++ )
+		{
+			final Spot endPoint = spotsByID.get( Integer.valueOf( in.readInt() ) );
+			final Spot junction = spotsByID.get( Integer.valueOf( in.readInt() ) );
+			// End-points may have been removed from the model since.
+			if ( null != endPoint && null != junction )
+				junctionMap.put( endPoint, junction );
+		}
+		return junctionMap;
+	}
+
+	/*
+	 * SKELETON GRAPHS.
+	 */
+
+	static void writeGraphs( final DataOutputStream out, final DetectionResults detectionResults ) throws IOException
+	{
+		final Set< Integer > frames = detectionResults.getGraphFrames();
+		out.writeInt( frames.size() );
+		for ( final Integer frame : frames )
+		{
+			out.writeInt( frame.intValue() );
+			writePoints( out, detectionResults.getEndPointPixels( frame.intValue() ) );
+
+			final Graph[] graphs = detectionResults.getGraphs( frame.intValue() );
+			out.writeInt( graphs.length );
+			for ( final Graph graph : graphs )
+			{
+				final List< Vertex > vertices = graph.getVertices();
+				final Map< Vertex, Integer > indices = new HashMap<>( 2 * vertices.size() );
+				out.writeInt( vertices.size() );
+				for ( final Vertex vertex : vertices )
+				{
+					indices.put( vertex, Integer.valueOf( indices.size() ) );
+					writePoints( out, vertex.getPoints() );
+					final Spot spot = detectionResults.getSpotFor( frame.intValue(), vertex );
+					out.writeInt( null == spot ? -1 : spot.ID() );
+				}
+
+				final List< Edge > edges = graph.getEdges();
+				out.writeInt( edges.size() );
+				for ( final Edge edge : edges )
+				{
+					out.writeInt( indices.get( edge.getV1() ).intValue() );
+					out.writeInt( indices.get( edge.getV2() ).intValue() );
+					out.writeDouble( edge.getLength() );
+					out.writeDouble( edge.getLength_ra() );
+					out.writeDouble( edge.getColor() );
+					out.writeDouble( edge.getColor3rd() );
+					writePoints( out, edge.getSlabs() );
+				}
+			}
+		}
+	}
+
+	static void readGraphs(
+			final DataInputStream in,
+			final Map< Integer, Spot > spotsByID,
+			final Map< Integer, Graph[] > graphsMap,
+			final Map< Integer, List< Point > > endPointPixels,
+			final Map< Spot, Vertex > spotMap,
+			final Map< Integer, Map< Vertex, Spot > > vertexMaps ) throws IOException
+	{
+		final int nFrames = in.readInt();
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			final Integer frame = Integer.valueOf( in.readInt() );
+			endPointPixels.put( frame, readPoints( in ) );
+			final Map< Vertex, Spot > vertexMap = new HashMap<>();
+			vertexMaps.put( frame, vertexMap );
+
+			final Graph[] graphs = new Graph[ in.readInt() ];
+			for ( int g = 0; g < graphs.length; g++ )
+			{
+				final Graph graph = new Graph();
+				final Vertex[] vertices = new Vertex[ in.readInt() ];
+				for ( int v = 0; v < vertices.length; v++ )
+				{
+					final Vertex vertex = new Vertex();
+					for ( final Point point : readPoints( in ) )
+						vertex.addPoint( point );
+					graph.addVertex( vertex );
+					vertices[ v ] = vertex;
+
+					final Spot spot = spotsByID.get( Integer.valueOf( in.readInt() ) );
+					if ( null != spot )
+					{
+						spotMap.put( spot, vertex );
+						vertexMap.put( vertex, spot );
+					}
+				}
+
+				final int nEdges = in.readInt();
+				for ( int e = 0; e < nEdges; e++ )
+				{
+					final Vertex v1 = vertices[ in.readInt() ];
+					final Vertex v2 = vertices[ in.readInt() ];
+					final double length = in.readDouble();
+					// Branch lengths are measured with the running average length.
+					final double lengthRA = in.readDouble();
+					final double color = in.readDouble();
+					final double color3rd = in.readDouble();
+					final Edge edge = new Edge( v1, v2, readPoints( in ), length, color3rd, color, lengthRA );
+					graph.addEdge( edge );
+					if ( !v1.getBranches().contains( edge ) )
+						v1.setBranch( edge );
+					if ( !v2.getBranches().contains( edge ) )
+						v2.setBranch( edge );
+				}
+				graphs[ g ] = graph;
+			}
+			graphsMap.put( frame, graphs );
+		}
+	}
+
+	/*
+	 * PRIMITIVES.
+	 */
+
+	private static void writePoints( final DataOutputStream out, final List< Point > points ) throws IOException
+	{
+		out.writeInt( points.size() );
+		for ( final Point p : points )
+		{
+			out.writeInt( p.x );
+			out.writeInt( p.y );
+			out.writeInt( p.z );
+		}
+	}
+
+	private static ArrayList< Point > readPoints( final DataInputStream in ) throws IOException
+	{
+		final int n = in.readInt();
+		final ArrayList< Point > points = new ArrayList<>( n );
+		for ( int i = 0; i < n; i++ )
+			points.add( new Point( in.readInt(), in.readInt(), in.readInt() ) );
+		return points;
+	}
+
+	private static void writeString( final DataOutputStream out, final String str ) throws IOException
+	{
+		out.writeBoolean( null != str );
+		if ( null != str )
+			out.writeUTF( str );
+	}
+
+	private static String readString( final DataInputStream in ) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
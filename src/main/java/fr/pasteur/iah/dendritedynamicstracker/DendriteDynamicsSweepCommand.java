@@ -0,0 +1,350 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.ItemIO;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.features.track.TrackDurationAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackSpotQualityFeatureAnalyzer;
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.DendriteAnalyzerProfile;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.DendriteTrackNIncorrectIDs;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.tracking.SkeletonEndPointTrackerFactory;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+import net.imglib2.multithreading.SimpleMultiThreading;
+
+/**
+ * Runs the detection step of the Dendrite Dynamics Tracker once, then the
+ * tracking and analysis steps for every combination of the specified
+ * parameter values, in parallel. Each combination works on its own copy of
+ * the detected spots. The results are summarized in a table for comparison.
+ */
+@Plugin( type = Command.class, name = "Dendrite Dynamics Tracker parameter sweep", menuPath = "Plugins>Tracking>Dendrite Dynamics Tracker parameter sweep" )
+public class DendriteDynamicsSweepCommand extends ContextCommand
+{
+
+	private static final String[] MERGE_STRINGS = new String[] {
+			"No",
+			"Yes",
+			"Both"
+	};
+
+	@Parameter
+	private LogService log;
+
+	@Parameter
+	private StatusService status;
+
+	@Parameter
+	private OpService ops;
+
+	@Parameter( type = ItemIO.INPUT )
+	private ImagePlus imp = null;
+
+	@Parameter( type = ItemIO.INPUT, label = "In what channel is the skeleton?" )
+	private int skeletonChannel = 2;
+
+	@Parameter( type = ItemIO.INPUT, label = "Skeletonize this channel (binary mask)?" )
+	private boolean skeletonize = false;
+
+	@Parameter( type = ItemIO.INPUT, label = "In what channel is raw data?" )
+	private int dataChannel = 1;
+
+	@Parameter( label = "Cycle-prunning method.", choices = {
+			"No prunning",
+			"Shortest branch",
+			"Lowest intensity pixel",
+			"Lowest intensity branch"
+	} )
+	private String cyclePrunningMethodStr = DendriteDynamicsTrackerCommand.PRUNNING_METHOD_STRINGS[ 3 ];
+
+	@Parameter( type = ItemIO.INPUT, label = "Discard terminal branches shorter than (0 to keep all)." )
+	private double minBranchLength = 0.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Merge connected junctions closer than (0 to keep all)." )
+	private double junctionMergeRadius = 0.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Only re-analyze skeleton parts that changed between frames?" )
+	private boolean incrementalDetection = false;
+
+	@Parameter( type = ItemIO.INPUT, label = "Max linking distances for junctions (comma-separated)." )
+	private String junctionMaxLinkingDistances = "3, 5, 7";
+
+	@Parameter( type = ItemIO.INPUT, label = "Max linking distances for end-points (comma-separated)." )
+	private String endPointMaxLinkingDistances = "3, 5, 7";
+
+	@Parameter( type = ItemIO.INPUT, label = "Matched cost-factors for end-points (comma-separated)." )
+	private String matchedCostFactors = String.valueOf( SkeletonEndPointTrackerFactory.DEFAULT_MATCHED_COST_FACTOR );
+
+	@Parameter( label = "Merge junction tracks with end-results?", choices = {
+			"No",
+			"Yes",
+			"Both"
+	} )
+	private String mergeJunctionTracksStr = MERGE_STRINGS[ 0 ];
+
+	@Parameter( type = ItemIO.INPUT, label = "Exclude dendrites found at the image borders?" )
+	private boolean pruneBorderDendrites = true;
+
+	@Parameter( type = ItemIO.INPUT, label = "Number of configurations to run in parallel." )
+	private int numThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+
+	@Override
+	public void run()
+	{
+		final double[] junctionDistances = parseGrid( junctionMaxLinkingDistances );
+		final double[] endPointDistances = parseGrid( endPointMaxLinkingDistances );
+		final double[] costFactors = parseGrid( matchedCostFactors );
+		if ( null == junctionDistances || null == endPointDistances || null == costFactors )
+		{
+			log.error( "Could not parse the parameter values. Please enter comma-separated numbers." );
+			return;
+		}
+
+		final boolean[] merges;
+		if ( MERGE_STRINGS[ 2 ].equals( mergeJunctionTracksStr ) )
+			merges = new boolean[] { false, true };
+		else
+			merges = new boolean[] { MERGE_STRINGS[ 1 ].equals( mergeJunctionTracksStr ) };
+
+		final List< Configuration > configurations = new ArrayList<>();
+		for ( final double junctionDistance : junctionDistances )
+			for ( final double endPointDistance : endPointDistances )
+				for ( final double costFactor : costFactors )
+					for ( final boolean merge : merges )
+						configurations.add( new Configuration( junctionDistance, endPointDistance, costFactor, merge ) );
+
+		/*
+		 * Detect junctions and end-points, once.
+		 */
+
+		final SkeletonKeyPointsDetector skeletonKeyPointOp = ( SkeletonKeyPointsDetector ) Functions.unary(
+				ops, SkeletonKeyPointsDetector.class, DetectionResults.class, ImagePlus.class,
+				skeletonChannel, dataChannel, DendriteDynamicsTrackerCommand.getPrunningMethod( cyclePrunningMethodStr ), skeletonize,
+				minBranchLength, junctionMergeRadius, incrementalDetection );
+		final DetectionResults detectionResults = skeletonKeyPointOp.calculate( imp );
+		if ( null == detectionResults )
+			return;
+
+		/*
+		 * Track and analyze each configuration.
+		 */
+
+		final ArrayBlockingQueue< Configuration > queue = new ArrayBlockingQueue<>( configurations.size(), false, configurations );
+		final AtomicInteger progress = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, configurations.size() ) ) );
+		// Share the processors between the configurations evaluated at once.
+		final int numThreadsPerConfiguration = Math.max( 1, Runtime.getRuntime().availableProcessors() / threads.length );
+		for ( int ithread = 0; ithread < threads.length; ithread++ )
+		{
+			threads[ ithread ] = new Thread( "Dendrite Dynamics Tracker sweep thread " + ( 1 + ithread ) + "/" + threads.length )
+			{
+				@Override
+				public void run()
+				{
+					Configuration configuration;
+					while ( ( configuration = queue.poll() ) != null )
+					{
+						evaluate( configuration, detectionResults.copy(), numThreadsPerConfiguration );
+						status.showProgress( progress.incrementAndGet(), configurations.size() );
+					}
+				}
+			};
+		}
+		status.showStatus( "Evaluating " + configurations.size() + " configurations." );
+		SimpleMultiThreading.startAndJoin( threads );
+
+		/*
+		 * Comparison table.
+		 */
+
+		final ResultsTable table = new ResultsTable();
+		for ( final Configuration configuration : configurations )
+		{
+			table.incrementCounter();
+			table.addValue( "JunctionMaxLinkingDistance", configuration.junctionMaxLinkingDistance );
+			table.addValue( "EndPointMaxLinkingDistance", configuration.endPointMaxLinkingDistance );
+			table.addValue( "MatchedCostFactor", configuration.matchedCostFactor );
+			table.addValue( "MergeJunctionTracks", configuration.mergeJunctionTracks ? "Yes" : "No" );
+			if ( null != configuration.errorMessage )
+			{
+				table.addValue( "Error", configuration.errorMessage );
+				continue;
+			}
+			table.addValue( "NBranchTracks", configuration.nTracks );
+			table.addValue( "MeanTrackDuration", configuration.meanTrackDuration );
+			table.addValue( "TotalNIncorrectIDs", configuration.totalNIncorrectIDs );
+		}
+		table.show( "Dendrite Dynamics Tracker sweep on " + imp.getShortTitle() );
+	}
+
+	private void evaluate( final Configuration configuration, final DetectionResults detectionResults, final int numThreads )
+	{
+		final Model junctionModel = DendriteDynamicsTrackerCommand.trackJunctions(
+				detectionResults,
+				imp,
+				configuration.junctionMaxLinkingDistance,
+				numThreads,
+				errorMessage -> configuration.errorMessage = "Junction tracking failed: " + errorMessage );
+		if ( null == junctionModel )
+			return;
+
+		final TrackMate endPointTrackmate = DendriteDynamicsTrackerCommand.trackEndPoints(
+				detectionResults,
+				junctionModel,
+				imp,
+				configuration.endPointMaxLinkingDistance,
+				configuration.matchedCostFactor,
+				configuration.mergeJunctionTracks,
+				DendriteAnalyzerProfile.DDT_MINIMAL,
+				numThreads,
+				errorMessage -> configuration.errorMessage = "End-point tracking failed: " + errorMessage );
+		if ( null == endPointTrackmate )
+			return;
+
+		if ( pruneBorderDendrites )
+			DendriteTrackFilter.pruneBorderTracks(
+					endPointTrackmate.getModel(),
+					DendriteDynamicsTrackerCommand.getRoi2D( imp ),
+					new double[] { imp.getCalibration().pixelWidth, imp.getCalibration().pixelHeight } );
+
+		final DendriteTrackAnalysis analysis = new DendriteTrackAnalysis( endPointTrackmate, junctionModel, detectionResults );
+		if ( !analysis.checkInput() || !analysis.process() )
+		{
+			configuration.errorMessage = analysis.getErrorMessage();
+			return;
+		}
+
+		/*
+		 * Summarize branch tracks.
+		 */
+
+		final Model model = endPointTrackmate.getModel();
+		final FeatureModel featureModel = model.getFeatureModel();
+		int nTracks = 0;
+		double sumDuration = 0.;
+		int totalNIncorrectIDs = 0;
+		for ( final Integer trackID : model.getTrackModel().trackIDs( true ) )
+		{
+			final Double meanQuality = featureModel.getTrackFeature( trackID, TrackSpotQualityFeatureAnalyzer.TRACK_MEAN_QUALITY );
+			if ( null == meanQuality || meanQuality.doubleValue() != SkeletonKeyPointsDetector.END_POINTS_QUALITY_VALUE )
+				continue;
+
+			nTracks++;
+			final Double duration = featureModel.getTrackFeature( trackID, TrackDurationAnalyzer.TRACK_DURATION );
+			if ( null != duration )
+				sumDuration += duration.doubleValue();
+			final Double nIncorrectIDs = featureModel.getTrackFeature( trackID, DendriteTrackNIncorrectIDs.FEATURE );
+			if ( null != nIncorrectIDs )
+				totalNIncorrectIDs += nIncorrectIDs.intValue();
+		}
+		configuration.nTracks = nTracks;
+		configuration.meanTrackDuration = ( nTracks == 0 ) ? Double.NaN : sumDuration / nTracks;
+		configuration.totalNIncorrectIDs = totalNIncorrectIDs;
+	}
+
+	private static double[] parseGrid( final String str )
+	{
+		final String[] tokens = str.split( "[,;\\s]+" );
+		final List< Double > values = new ArrayList<>( tokens.length );
+		for ( final String token : tokens )
+		{
+			if ( token.isEmpty() )
+				continue;
+			try
+			{
+				values.add( Double.valueOf( token ) );
+			}
+			catch ( final NumberFormatException e )
+			{
+				return null;
+			}
+		}
+		if ( values.isEmpty() )
+			return null;
+
+		return values.stream().mapToDouble( Double::doubleValue ).toArray();
+	}
+
+	/**
+	 * One combination of tracking parameters, and the summary of its results.
+	 */
+	private static final class Configuration
+	{
+
+		private final double junctionMaxLinkingDistance;
+
+		private final double endPointMaxLinkingDistance;
+
+		private final double matchedCostFactor;
+
+		private final boolean mergeJunctionTracks;
+
+		private int nTracks;
+
+		private double meanTrackDuration = Double.NaN;
+
+		private int totalNIncorrectIDs;
+
+		private String errorMessage;
+
+		private Configuration(
+				final double junctionMaxLinkingDistance,
+				final double endPointMaxLinkingDistance,
+				final double matchedCostFactor,
+				final boolean mergeJunctionTracks )
+		{
+			this.junctionMaxLinkingDistance = junctionMaxLinkingDistance;
+			this.endPointMaxLinkingDistance = endPointMaxLinkingDistance;
+			this.matchedCostFactor = matchedCostFactor;
+			this.mergeJunctionTracks = mergeJunctionTracks;
+		}
+	}
+}
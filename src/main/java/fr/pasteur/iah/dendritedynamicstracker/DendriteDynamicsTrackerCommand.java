@@ -35,8 +35,16 @@ package fr.pasteur.iah.dendritedynamicstracker;
 import static fiji.plugin.trackmate.gui.Icons.TRACKMATE_ICON;
 
 import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import javax.swing.JFrame;
 
@@ -45,10 +53,12 @@ import org.scijava.ItemIO;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.command.ContextCommand;
+import org.scijava.command.Previewable;
 import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.SelectionModel;
@@ -70,22 +80,32 @@ import fiji.plugin.trackmate.tracking.TrackerKeys;
 import fiji.plugin.trackmate.tracking.jaqaman.SimpleSparseLAPTrackerFactory;
 import fiji.plugin.trackmate.visualization.TrackMateModelView;
 import fiji.plugin.trackmate.visualization.hyperstack.HyperStackDisplayer;
+import fr.pasteur.iah.dendritedynamicstracker.DendriteDynamicsCSVExporter.BranchFileLayout;
+import fr.pasteur.iah.dendritedynamicstracker.DendriteDynamicsCheckpoint.Stage;
+import fr.pasteur.iah.dendritedynamicstracker.DendriteDynamicsCheckpoint.State;
 import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.DendriteAnalyzerProfile;
 import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.JunctionIDAnalyzerFactory;
 import fr.pasteur.iah.dendritedynamicstracker.trackmate.tracking.SkeletonEndPointTrackerFactory;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.gui.Overlay;
 import ij.gui.Roi;
+import ij.io.FileInfo;
 import net.imagej.ops.OpService;
 import net.imagej.ops.special.function.Functions;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 
 @Plugin( type = Command.class, name = "Dendrite Dynamics Tracker", menuPath = "Plugins>Tracking>Dendrite Dynamics Tracker" )
-public class DendriteDynamicsTrackerCommand extends ContextCommand
+public class DendriteDynamicsTrackerCommand extends ContextCommand implements Previewable
 {
 
-	private static final String[] PRUNNING_METHOD_STRINGS = new String[] {
+	/**
+	 * The names of the cycle-prunning methods, indexed by their AnalyzeSkeleton
+	 * constant.
+	 */
+	static final String[] PRUNNING_METHOD_STRINGS = new String[] {
 			"No prunning",
 			"Shortest branch",
 			"Lowest intensity pixel",
@@ -107,6 +127,9 @@ public class DendriteDynamicsTrackerCommand extends ContextCommand
 	@Parameter( type = ItemIO.INPUT, label = "In what channel is the skeleton?" )
 	private int skeletonChannel = 2;
 
+	@Parameter( type = ItemIO.INPUT, label = "Skeletonize this channel (binary mask)?" )
+	private boolean skeletonize = false;
+
 	@Parameter( type = ItemIO.INPUT, label = "In what channel is raw data?" )
 	private int dataChannel = 1;
 
@@ -121,6 +144,15 @@ public class DendriteDynamicsTrackerCommand extends ContextCommand
 	} )
 	private String cyclePrunningMethodStr = PRUNNING_METHOD_STRINGS[ 3 ];
 
+	@Parameter( type = ItemIO.INPUT, label = "Discard terminal branches shorter than (0 to keep all)." )
+	private double minBranchLength = 0.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Merge connected junctions closer than (0 to keep all)." )
+	private double junctionMergeRadius = 0.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Only re-analyze skeleton parts that changed between frames?" )
+	private boolean incrementalDetection = false;
+
 	@Parameter( type = ItemIO.INPUT, label = "Max linking distance for end-points." )
 	private double endPointMaxLinkingDistance = 5.;
 
@@ -133,58 +165,276 @@ public class DendriteDynamicsTrackerCommand extends ContextCommand
 	@Parameter( type = ItemIO.INPUT, label = "Merge junction tracks with end-results?" )
 	private boolean mergeJunctionTracks = false;
 
+	@Parameter( label = "Features to compute on end-point tracks.", choices = {
+			"All TrackMate analyzers",
+			"DDT minimal"
+	} )
+	private String analyzerProfileStr = DendriteAnalyzerProfile.ALL.toString();
+
 	@Parameter( type = ItemIO.INPUT, label = "Export branch lengths and statistics to CSV files?" )
 	private boolean exportToCSV = false;
 
+	@Parameter( label = "Branch length CSV layout.", choices = {
+			"One CSV file per branch",
+			"Single CSV file",
+			"Single gzipped CSV file"
+	} )
+	private String branchFileLayoutStr = BranchFileLayout.PER_TRACK_FILES.toString();
+
+	@Parameter( type = ItemIO.INPUT, label = "Export results to a binary file?" )
+	private boolean exportToBinary = false;
+
+	@Parameter( type = ItemIO.INPUT, label = "Export only, without building the TrackMate model?" )
+	private boolean exportOnly = false;
+
+	@Parameter( type = ItemIO.INPUT, label = "Save checkpoints after each stage?" )
+	private boolean saveCheckpoints = false;
+
+	@Parameter( type = ItemIO.INPUT, label = "Resume from matching checkpoints?" )
+	private boolean resumeFromCheckpoints = false;
+
+	@Parameter( type = ItemIO.INPUT, label = "Preview?" )
+	private boolean showPreview = false;
+
+	@Parameter( type = ItemIO.INPUT, label = "Preview: process one frame every", min = "1" )
+	private int previewFrameStep = 5;
+
+	/**
+	 * The overlay of the source image before we started previewing.
+	 */
+	private Overlay overlayBeforePreview;
+
+	private volatile boolean previewing = false;
+
+	private final DendriteDynamicsPreview previewCache = new DendriteDynamicsPreview();
+
+	/**
+	 * Runs the previews off the event dispatch thread, one at a time.
+	 */
+	private ExecutorService previewExecutor;
+
+	/**
+	 * Incremented at each preview request. A preview only shows its overlay
+	 * if no other request was made meanwhile.
+	 */
+	private final AtomicLong previewRequest = new AtomicLong();
+
+	@Override
+	public void preview()
+	{
+		if ( null == imp )
+			return;
+
+		if ( !showPreview )
+		{
+			// Keep the cached results in case the preview is checked again.
+			hideOverlay();
+			return;
+		}
+
+		if ( !previewing )
+		{
+			overlayBeforePreview = imp.getOverlay();
+			previewing = true;
+		}
+
+		// Read the parameters now, they may change while the preview runs.
+		final int prunningMethod = getPrunningMethod( cyclePrunningMethodStr );
+		final int skeletonChannel = this.skeletonChannel;
+		final int dataChannel = this.dataChannel;
+		final boolean skeletonize = this.skeletonize;
+		final double minBranchLength = this.minBranchLength;
+		final double junctionMergeRadius = this.junctionMergeRadius;
+		final boolean incrementalDetection = this.incrementalDetection;
+		final String detectionKey = getCheckpointKeys( prunningMethod )[ Stage.DETECTION.ordinal() ];
+		final int previewFrameStep = this.previewFrameStep;
+		final double junctionMaxLinkingDistance = this.junctionMaxLinkingDistance;
+		final double endPointMaxLinkingDistance = this.endPointMaxLinkingDistance;
+		final double matchedCostFactor = this.matchedCostFactor;
+		final boolean pruneBorderDendrites = this.pruneBorderDendrites;
+		final boolean mergeJunctionTracks = this.mergeJunctionTracks;
+
+		final long request = previewRequest.incrementAndGet();
+		if ( null == previewExecutor )
+			previewExecutor = Executors.newSingleThreadExecutor( r -> new Thread( r, "Dendrite Dynamics Tracker preview" ) );
+		previewExecutor.submit( () -> {
+			// Skip the requests made obsolete by newer ones.
+			if ( request != previewRequest.get() )
+				return;
+
+			final Overlay overlay = previewCache.preview(
+					() -> ( SkeletonKeyPointsDetector ) Functions.unary(
+							ops, SkeletonKeyPointsDetector.class, DetectionResults.class, ImagePlus.class,
+							skeletonChannel, dataChannel, prunningMethod, skeletonize,
+							minBranchLength, junctionMergeRadius, incrementalDetection ),
+					detectionKey,
+					imp,
+					previewFrameStep,
+					junctionMaxLinkingDistance,
+					endPointMaxLinkingDistance,
+					matchedCostFactor,
+					pruneBorderDendrites,
+					mergeJunctionTracks );
+			if ( null != overlay && request == previewRequest.get() && previewing )
+				imp.setOverlay( overlay );
+		} );
+	}
+
+	@Override
+	public void cancel()
+	{
+		restoreOverlay();
+	}
+
+	private void hideOverlay()
+	{
+		previewRequest.incrementAndGet();
+		if ( !previewing )
+			return;
+
+		imp.setOverlay( overlayBeforePreview );
+		previewing = false;
+	}
+
+	/**
+	 * Restores the overlay of the source image and releases the preview
+	 * resources, without waiting for a running preview to finish.
+	 */
+	private void restoreOverlay()
+	{
+		hideOverlay();
+		if ( null == previewExecutor )
+			return;
+
+		previewExecutor.submit( previewCache::clear );
+		previewExecutor.shutdown();
+		previewExecutor = null;
+	}
+
 	@Override
 	public void run()
 	{
+		restoreOverlay();
+
+		if ( exportOnly && mergeJunctionTracks )
+		{
+			log.error( "Merging junction tracks is not supported when only exporting results. "
+					+ "Uncheck one of the two options." );
+			return;
+		}
+
+		final int prunningMethod = getPrunningMethod( cyclePrunningMethodStr );
+
+		/*
+		 * Resume from checkpoints.
+		 */
+
+		final String[] keys = getCheckpointKeys( prunningMethod );
+		final DendriteDynamicsCheckpoint checkpoint = new DendriteDynamicsCheckpoint( imp,
+				new File( DendriteDynamicsCSVExporter.determineRootSaveFolder( imp ) ) );
+		State restored = null;
+		if ( resumeFromCheckpoints )
+		{
+			try
+			{
+				restored = checkpoint.restoreLatest( keys );
+			}
+			catch ( final IOException e )
+			{
+				log.warn( "Could not read checkpoint, starting from detection: " + e.getMessage() );
+			}
+			if ( null != restored )
+				log.info( "Resuming after stage " + restored.stage + "." );
+		}
+		final int completed = ( null == restored ) ? -1 : restored.stage.ordinal();
 
 		/*
 		 * Detect junctions and end-points.
 		 */
 
-		final int prunningMethod = getPrunningMethod( cyclePrunningMethodStr );
-		final SkeletonKeyPointsDetector skeletonKeyPointOp = ( SkeletonKeyPointsDetector ) Functions.unary(
-				ops, SkeletonKeyPointsDetector.class, DetectionResults.class, ImagePlus.class,
-				skeletonChannel, dataChannel, prunningMethod );
+		final DetectionResults detectionResults;
+		if ( completed >= Stage.DETECTION.ordinal() )
+		{
+			detectionResults = restored.detectionResults;
+		}
+		else
+		{
+			final SkeletonKeyPointsDetector skeletonKeyPointOp = ( SkeletonKeyPointsDetector ) Functions.unary(
+					ops, SkeletonKeyPointsDetector.class, DetectionResults.class, ImagePlus.class,
+					skeletonChannel, dataChannel, prunningMethod, skeletonize,
+					minBranchLength, junctionMergeRadius, incrementalDetection );
 
-		final DetectionResults detectionResults = skeletonKeyPointOp.calculate( imp );
-		if ( null == detectionResults )
+			detectionResults = skeletonKeyPointOp.calculate( imp );
+			if ( null == detectionResults )
+				return;
+
+			saveCheckpoint( checkpoint, Stage.DETECTION, keys, detectionResults, null, null );
+		}
+
+		if ( exportOnly )
+		{
+			log.info( "Exporting results only. Track IDs are numbered by order of appearance "
+					+ "and differ from those of the TrackMate pipeline." );
+			if ( getAnalyzerProfile( analyzerProfileStr ) != DendriteDynamicsLeanEngine.ANALYZER_PROFILE )
+				log.warn( "Only the track features of the " + DendriteDynamicsLeanEngine.ANALYZER_PROFILE
+						+ " analyzer profile are computed when exporting results only." );
+			exportOnly( detectionResults );
 			return;
+		}
 
 		/*
 		 * Track junctions.
 		 */
 
-		status.showStatus( "Tracking junctions." );
-		final Model junctionModel = trackJunctions(
-				detectionResults,
-				imp,
-				junctionMaxLinkingDistance );
-		if ( null == junctionModel )
-			return;
+		final Model junctionModel;
+		if ( completed >= Stage.JUNCTION_TRACKING.ordinal() )
+		{
+			junctionModel = restored.junctionModel;
+		}
+		else
+		{
+			status.showStatus( "Tracking junctions." );
+			junctionModel = trackJunctions(
+					detectionResults,
+					imp,
+					junctionMaxLinkingDistance );
+			if ( null == junctionModel )
+				return;
+
+			saveCheckpoint( checkpoint, Stage.JUNCTION_TRACKING, keys, detectionResults, junctionModel, null );
+		}
 
 		/*
 		 * Track end-points.
 		 */
 
-		status.showStatus( "Tracking end-points." );
-		final TrackMate endPointTrackmate = trackEndPoints(
-				detectionResults,
-				junctionModel,
-				imp,
-				endPointMaxLinkingDistance,
-				matchedCostFactor,
-				mergeJunctionTracks );
-		if ( null == endPointTrackmate )
-			return;
+		final TrackMate endPointTrackmate;
+		if ( completed >= Stage.END_POINT_TRACKING.ordinal() )
+		{
+			endPointTrackmate = restoreEndPoints( restored );
+		}
+		else
+		{
+			status.showStatus( "Tracking end-points." );
+			endPointTrackmate = trackEndPoints(
+					detectionResults,
+					junctionModel,
+					imp,
+					endPointMaxLinkingDistance,
+					matchedCostFactor,
+					mergeJunctionTracks,
+					getAnalyzerProfile( analyzerProfileStr ) );
+			if ( null == endPointTrackmate )
+				return;
+
+			saveCheckpoint( checkpoint, Stage.END_POINT_TRACKING, keys, detectionResults, junctionModel, endPointTrackmate.getModel() );
+		}
 
 		/*
 		 * Prune dendrites found at the border of the images.
 		 */
 
-		if ( pruneBorderDendrites )
+		if ( pruneBorderDendrites && completed < Stage.BORDER_PRUNING.ordinal() )
 		{
 			final Interval roi = getRoi2D( imp );
 			final double[] calibration = new double[] {
@@ -192,47 +442,109 @@ public class DendriteDynamicsTrackerCommand extends ContextCommand
 					imp.getCalibration().pixelHeight };
 			DendriteTrackFilter.pruneBorderTracks( endPointTrackmate.getModel(), roi, calibration );
 
+			saveCheckpoint( checkpoint, Stage.BORDER_PRUNING, keys, detectionResults, junctionModel, endPointTrackmate.getModel() );
 		}
 
 		/*
 		 * Analyze results.
 		 */
 
-		status.showStatus( "Analyzing dendrite tracks." );
-		final DendriteTrackAnalysis dendriteTrackAnalysis = new DendriteTrackAnalysis( endPointTrackmate, junctionModel, detectionResults );
-		if ( !dendriteTrackAnalysis.checkInput() || !dendriteTrackAnalysis.process() )
+		if ( completed < Stage.PATCHING.ordinal() )
 		{
-			log.error( "Error while performing dendrite track analysis: " + dendriteTrackAnalysis.getErrorMessage() );
-			return;
+			status.showStatus( "Analyzing dendrite tracks." );
+			final DendriteTrackAnalysis dendriteTrackAnalysis = new DendriteTrackAnalysis( endPointTrackmate, junctionModel, detectionResults );
+			if ( !dendriteTrackAnalysis.checkInput() || !dendriteTrackAnalysis.process() )
+			{
+				log.error( "Error while performing dendrite track analysis: " + dendriteTrackAnalysis.getErrorMessage() );
+				return;
+			}
+
+			saveCheckpoint( checkpoint, Stage.PATCHING, keys, detectionResults, junctionModel, endPointTrackmate.getModel() );
 		}
 
+		// Keep intermediate results for the actions that operate on the model.
+		DendriteDynamicsSession.register( endPointTrackmate.getModel(),
+				new DendriteDynamicsSession( detectionResults, junctionModel, skeletonChannel, skeletonize,
+						DendriteDynamicsSession.hasCompleteGraphs( prunningMethod, minBranchLength, junctionMergeRadius, null != imp.getRoi() ) ) );
+
 		/*
-		 * Export to CSV files.
+		 * Export to CSV and binary files.
 		 */
 
 		if ( exportToCSV )
 		{
-			final DendriteDynamicsCSVExporter exporter = new DendriteDynamicsCSVExporter( endPointTrackmate );
+			final DendriteDynamicsCSVExporter exporter = new DendriteDynamicsCSVExporter( endPointTrackmate, getBranchFileLayout( branchFileLayoutStr ) );
 			if ( !exporter.checkInput() || !exporter.process() )
 				log.error( "Error while exporting results:\n" + exporter.getErrorMessage() );
 
 		}
 
+		if ( exportToBinary )
+		{
+			final DendriteDynamicsBinaryExporter exporter = new DendriteDynamicsBinaryExporter( endPointTrackmate );
+			if ( !exporter.checkInput() || !exporter.process() )
+				log.error( "Error while exporting results:\n" + exporter.getErrorMessage() );
+		}
+
 		/*
 		 * Display results.
 		 */
 
+		display( endPointTrackmate, imp, DisplaySettingsIO.readUserDefault() );
+	}
+
+	/**
+	 * Tracks, analyzes and exports the specified detection results without
+	 * building TrackMate models. Only the track features of the DDT minimal
+	 * analyzer profile are computed.
+	 */
+	private void exportOnly( final DetectionResults detectionResults )
+	{
+		status.showStatus( "Tracking and analyzing dendrites." );
+		final DendriteDynamicsLeanEngine engine = new DendriteDynamicsLeanEngine(
+				detectionResults,
+				imp,
+				junctionMaxLinkingDistance,
+				endPointMaxLinkingDistance,
+				matchedCostFactor,
+				pruneBorderDendrites );
+		if ( !engine.checkInput() || !engine.process() )
+		{
+			log.error( "Error while performing dendrite track analysis: " + engine.getErrorMessage() );
+			return;
+		}
+
+		if ( exportToCSV )
+		{
+			final DendriteDynamicsCSVExporter exporter = new DendriteDynamicsCSVExporter( engine, getBranchFileLayout( branchFileLayoutStr ) );
+			if ( !exporter.checkInput() || !exporter.process() )
+				log.error( "Error while exporting results:\n" + exporter.getErrorMessage() );
+		}
+
+		if ( exportToBinary )
+		{
+			final DendriteDynamicsBinaryExporter exporter = new DendriteDynamicsBinaryExporter( engine );
+			if ( !exporter.checkInput() || !exporter.process() )
+				log.error( "Error while exporting results:\n" + exporter.getErrorMessage() );
+		}
+	}
+
+	/**
+	 * Displays the specified TrackMate results on the specified image, and
+	 * opens the TrackMate wizard on them.
+	 */
+	static void display( final TrackMate trackmate, final ImagePlus imp, final DisplaySettings displaySettings )
+	{
 		// Main objects.
-		final Model model = endPointTrackmate.getModel();
+		final Model model = trackmate.getModel();
 		final SelectionModel selectionModel = new SelectionModel( model );
-		final DisplaySettings displaySettings = DisplaySettingsIO.readUserDefault();
 
 		// Main view.
 		final TrackMateModelView displayer2 = new HyperStackDisplayer( model, selectionModel, imp, displaySettings );
 		displayer2.render();
 
 		// Wizard.
-		final WizardSequence sequence = new TrackMateWizardSequence( endPointTrackmate, selectionModel, displaySettings );
+		final WizardSequence sequence = new TrackMateWizardSequence( trackmate, selectionModel, displaySettings );
 		sequence.setCurrent( ConfigureViewsDescriptor.KEY );
 		final JFrame frame = sequence.run( "TrackMate on " + imp.getShortTitle() );
 		frame.setIconImage( TRACKMATE_ICON.getImage() );
@@ -248,27 +560,55 @@ public class DendriteDynamicsTrackerCommand extends ContextCommand
 			final double matchedCostFactor,
 			final boolean mergeJunctionTracks )
 	{
+		return trackEndPoints( detectionResults, junctionModel, imp, endPointMaxLinkingDistance, matchedCostFactor, mergeJunctionTracks, DendriteAnalyzerProfile.ALL );
+	}
+
+	/**
+	 * Tracks end-points, computing the features of the specified analyzer
+	 * profile only.
+	 */
+	public static TrackMate trackEndPoints(
+			final DetectionResults detectionResults,
+			final Model junctionModel,
+			final ImagePlus imp,
+			final double endPointMaxLinkingDistance,
+			final double matchedCostFactor,
+			final boolean mergeJunctionTracks,
+			final DendriteAnalyzerProfile analyzerProfile )
+	{
+		return trackEndPoints( detectionResults, junctionModel, imp, endPointMaxLinkingDistance, matchedCostFactor,
+				mergeJunctionTracks, analyzerProfile, Runtime.getRuntime().availableProcessors(),
+				DendriteDynamicsTrackerCommand::showTrackingError );
+	}
+
+	/**
+	 * Tracks end-points, computing the features of the specified analyzer
+	 * profile only, with the specified number of threads. Tracking errors are
+	 * passed to the specified handler. The returned TrackMate instance keeps
+	 * this number of threads for later feature computations.
+	 */
+	public static TrackMate trackEndPoints(
+			final DetectionResults detectionResults,
+			final Model junctionModel,
+			final ImagePlus imp,
+			final double endPointMaxLinkingDistance,
+			final double matchedCostFactor,
+			final boolean mergeJunctionTracks,
+			final DendriteAnalyzerProfile analyzerProfile,
+			final int numThreads,
+			final Consumer< String > errorHandler )
+	{
 
 		final Model endPointModel = new Model();
 		endPointModel.setPhysicalUnits( imp.getCalibration().getUnits(), imp.getCalibration().getTimeUnit() );
 		endPointModel.setSpots( detectionResults.endPointSpots, false );
 
-		final Settings endPointSettings = new Settings( imp );
-		endPointSettings.detectorFactory = new ManualDetectorFactory<>();
-		endPointSettings.trackerFactory = new SkeletonEndPointTrackerFactory();
-
-		endPointSettings.addAllAnalyzers();
-
-		endPointSettings.addSpotAnalyzerFactory( new JunctionIDAnalyzerFactory<>() );
-		endPointSettings.trackerSettings = new HashMap<>();
-		endPointSettings.trackerSettings.put( TrackerKeys.KEY_LINKING_MAX_DISTANCE, Double.valueOf( endPointMaxLinkingDistance ) );
-		endPointSettings.trackerSettings.put( TrackerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR, Double.valueOf( TrackerKeys.DEFAULT_ALTERNATIVE_LINKING_COST_FACTOR ) );
-		endPointSettings.trackerSettings.put( SkeletonEndPointTrackerFactory.KEY_MATCHED_COST_FACTOR, Double.valueOf( matchedCostFactor ) );
-
+		final Settings endPointSettings = createEndPointSettings( imp, endPointMaxLinkingDistance, matchedCostFactor, analyzerProfile );
 		final TrackMate endPointTrackmate = new TrackMate( endPointModel, endPointSettings );
+		endPointTrackmate.setNumThreads( numThreads );
 		if ( !endPointTrackmate.checkInput() || !endPointTrackmate.process() )
 		{
-			IJ.error( "Problem with tracking.", endPointTrackmate.getErrorMessage() );
+			errorHandler.accept( endPointTrackmate.getErrorMessage() );
 			return null;
 		}
 
@@ -280,24 +620,190 @@ public class DendriteDynamicsTrackerCommand extends ContextCommand
 			endPointModel.getTrackModel().setName( branchTrackID, "Branch_" + branchTrackID );
 
 		/*
-		 * Merge with junction results.
+		 * Merge with junction results. TrackMate computed the features of the
+		 * end-point tracks already, they must be computed again only for the
+		 * merged ones.
 		 */
 
 		if ( mergeJunctionTracks )
+		{
 			merge( endPointModel, junctionModel );
-
-		endPointTrackmate.computeSpotFeatures( false );
-		endPointTrackmate.computeEdgeFeatures( false );
-		endPointTrackmate.computeTrackFeatures( false );
+			endPointTrackmate.computeSpotFeatures( false );
+			endPointTrackmate.computeEdgeFeatures( false );
+			endPointTrackmate.computeTrackFeatures( false );
+		}
 
 		return endPointTrackmate;
 	}
 
+	/**
+	 * Creates the settings used to track end-points.
+	 */
+	public static Settings createEndPointSettings(
+			final ImagePlus imp,
+			final double endPointMaxLinkingDistance,
+			final double matchedCostFactor )
+	{
+		return createEndPointSettings( imp, endPointMaxLinkingDistance, matchedCostFactor, DendriteAnalyzerProfile.ALL );
+	}
+
+	/**
+	 * Creates the settings used to track end-points, with the analyzers of
+	 * the specified profile.
+	 */
+	public static Settings createEndPointSettings(
+			final ImagePlus imp,
+			final double endPointMaxLinkingDistance,
+			final double matchedCostFactor,
+			final DendriteAnalyzerProfile analyzerProfile )
+	{
+		final Settings endPointSettings = new Settings( imp );
+		endPointSettings.detectorFactory = new ManualDetectorFactory<>();
+		endPointSettings.trackerFactory = new SkeletonEndPointTrackerFactory();
+
+		analyzerProfile.addAnalyzers( endPointSettings );
+
+		endPointSettings.addSpotAnalyzerFactory( new JunctionIDAnalyzerFactory<>() );
+		endPointSettings.trackerSettings = createEndPointTrackerSettings( endPointMaxLinkingDistance, matchedCostFactor );
+		return endPointSettings;
+	}
+
+	/**
+	 * Creates the settings of the end-point tracker.
+	 */
+	public static Map< String, Object > createEndPointTrackerSettings(
+			final double endPointMaxLinkingDistance,
+			final double matchedCostFactor )
+	{
+		final Map< String, Object > trackerSettings = new HashMap<>();
+		trackerSettings.put( TrackerKeys.KEY_LINKING_MAX_DISTANCE, Double.valueOf( endPointMaxLinkingDistance ) );
+		trackerSettings.put( TrackerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR, Double.valueOf( TrackerKeys.DEFAULT_ALTERNATIVE_LINKING_COST_FACTOR ) );
+		trackerSettings.put( SkeletonEndPointTrackerFactory.KEY_MATCHED_COST_FACTOR, Double.valueOf( matchedCostFactor ) );
+		return trackerSettings;
+	}
+
+	/**
+	 * Rebuilds the end-point TrackMate from a restored checkpoint. Spot
+	 * features are restored with the spots, edge and track features are
+	 * computed again, and the track features set by patching are put back.
+	 */
+	private TrackMate restoreEndPoints( final State restored )
+	{
+		final Settings settings = createEndPointSettings( imp, endPointMaxLinkingDistance, matchedCostFactor, getAnalyzerProfile( analyzerProfileStr ) );
+		final TrackMate trackmate = new TrackMate( restored.endPointModel, settings );
+		final FeatureModel featureModel = restored.endPointModel.getFeatureModel();
+		DendriteDynamicsCheckpoint.declareSpotFeatures( featureModel, settings.getSpotAnalyzerFactories() );
+		trackmate.computeEdgeFeatures( false );
+		trackmate.computeTrackFeatures( false );
+		if ( restored.stage == Stage.PATCHING )
+			DendriteTrackAnalysis.computeBranchFeatures( trackmate );
+		DendriteDynamicsCheckpoint.restoreTrackFeatures( featureModel, restored.trackFeatures );
+		return trackmate;
+	}
+
+	private void saveCheckpoint(
+			final DendriteDynamicsCheckpoint checkpoint,
+			final Stage stage,
+			final String[] keys,
+			final DetectionResults detectionResults,
+			final Model junctionModel,
+			final Model endPointModel )
+	{
+		if ( !saveCheckpoints )
+			return;
+
+		try
+		{
+			checkpoint.save( stage, keys[ stage.ordinal() ], detectionResults, junctionModel, endPointModel, skeletonChannel, skeletonize );
+		}
+		catch ( final IOException e )
+		{
+			log.warn( "Could not save the checkpoint after stage " + stage + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Returns, for each stage, a key describing the input image and all the
+	 * parameters the stage and the stages before it depend on.
+	 */
+	private String[] getCheckpointKeys( final int prunningMethod )
+	{
+		final String[] keys = new String[ Stage.values().length ];
+		final StringBuilder key = new StringBuilder( getImageKey( imp ) );
+
+		key.append( ";skeletonChannel=" ).append( skeletonChannel )
+				.append( ";skeletonize=" ).append( skeletonize )
+				.append( ";dataChannel=" ).append( dataChannel )
+				.append( ";prunningMethod=" ).append( prunningMethod )
+				.append( ";minBranchLength=" ).append( minBranchLength )
+				.append( ";junctionMergeRadius=" ).append( junctionMergeRadius )
+				.append( ";incrementalDetection=" ).append( incrementalDetection );
+		keys[ Stage.DETECTION.ordinal() ] = key.toString();
+
+		key.append( ";junctionMaxLinkingDistance=" ).append( junctionMaxLinkingDistance );
+		keys[ Stage.JUNCTION_TRACKING.ordinal() ] = key.toString();
+
+		key.append( ";endPointMaxLinkingDistance=" ).append( endPointMaxLinkingDistance )
+				.append( ";matchedCostFactor=" ).append( matchedCostFactor )
+				.append( ";mergeJunctionTracks=" ).append( mergeJunctionTracks )
+				.append( ";analyzerProfile=" ).append( getAnalyzerProfile( analyzerProfileStr ).name() );
+		keys[ Stage.END_POINT_TRACKING.ordinal() ] = key.toString();
+
+		key.append( ";pruneBorderDendrites=" ).append( pruneBorderDendrites );
+		keys[ Stage.BORDER_PRUNING.ordinal() ] = key.toString();
+		keys[ Stage.PATCHING.ordinal() ] = key.toString();
+		return keys;
+	}
+
+	private static String getImageKey( final ImagePlus imp )
+	{
+		final StringBuilder key = new StringBuilder();
+		key.append( "image=" ).append( imp.getTitle() )
+				.append( ";dimensions=" ).append( Arrays.toString( imp.getDimensions() ) )
+				.append( ";calibration=" ).append( imp.getCalibration().pixelWidth )
+				.append( ',' ).append( imp.getCalibration().pixelHeight )
+				.append( ',' ).append( imp.getCalibration().pixelDepth )
+				.append( ',' ).append( imp.getCalibration().frameInterval );
+
+		final Roi roi = imp.getRoi();
+		if ( null != roi )
+		{
+			final Rectangle bounds = roi.getBounds();
+			key.append( ";roi=" ).append( bounds.x ).append( ',' ).append( bounds.y )
+					.append( ',' ).append( bounds.width ).append( ',' ).append( bounds.height );
+		}
+
+		final FileInfo fileInfo = imp.getOriginalFileInfo();
+		if ( null != fileInfo && null != fileInfo.directory && null != fileInfo.fileName )
+		{
+			final File file = new File( fileInfo.directory, fileInfo.fileName );
+			key.append( ";file=" ).append( file.getAbsolutePath() )
+					.append( ',' ).append( file.length() )
+					.append( ',' ).append( file.lastModified() );
+		}
+		return key.toString();
+	}
+
 	public static Model trackJunctions(
 			final DetectionResults detectionResults,
 			ImagePlus imp,
 			final double junctionMaxLinkingDistance )
 	{
+		return trackJunctions( detectionResults, imp, junctionMaxLinkingDistance,
+				Runtime.getRuntime().availableProcessors(), DendriteDynamicsTrackerCommand::showTrackingError );
+	}
+
+	/**
+	 * Tracks junctions with the specified number of threads. Tracking errors
+	 * are passed to the specified handler.
+	 */
+	public static Model trackJunctions(
+			final DetectionResults detectionResults,
+			final ImagePlus imp,
+			final double junctionMaxLinkingDistance,
+			final int numThreads,
+			final Consumer< String > errorHandler )
+	{
 
 		final Model junctionModel = new Model();
 		junctionModel.setPhysicalUnits( imp.getCalibration().getUnits(), imp.getCalibration().getTimeUnit() );
@@ -314,9 +820,10 @@ public class DendriteDynamicsTrackerCommand extends ContextCommand
 		junctionSettings.trackerSettings.put( TrackerKeys.KEY_ALLOW_GAP_CLOSING, Boolean.FALSE );
 
 		final TrackMate junctionTrackmate = new TrackMate( junctionModel, junctionSettings );
+		junctionTrackmate.setNumThreads( numThreads );
 		if ( !junctionTrackmate.execTracking() )
 		{
-			IJ.error( "Problem with tracking.", junctionTrackmate.getErrorMessage() );
+			errorHandler.accept( junctionTrackmate.getErrorMessage() );
 			return null;
 		}
 		junctionTrackmate.computeSpotFeatures( false );
@@ -352,7 +859,17 @@ public class DendriteDynamicsTrackerCommand extends ContextCommand
 		return junctionModel;
 	}
 
-	private static final int getPrunningMethod( final String cyclePrunningMethodStr )
+	private static void showTrackingError( final String errorMessage )
+	{
+		IJ.error( "Problem with tracking.", errorMessage );
+	}
+
+	/**
+	 * Returns the AnalyzeSkeleton constant of the cycle-prunning method with
+	 * the specified name, or the one of the "Lowest intensity branch" method
+	 * if the name is unknown.
+	 */
+	static final int getPrunningMethod( final String cyclePrunningMethodStr )
 	{
 		for ( int i = 0; i < PRUNNING_METHOD_STRINGS.length; i++ )
 			if ( PRUNNING_METHOD_STRINGS[ i ].equals( cyclePrunningMethodStr ) )
@@ -361,6 +878,24 @@ public class DendriteDynamicsTrackerCommand extends ContextCommand
 		return 3;
 	}
 
+	private static final BranchFileLayout getBranchFileLayout( final String branchFileLayoutStr )
+	{
+		for ( final BranchFileLayout layout : BranchFileLayout.values() )
+			if ( layout.toString().equals( branchFileLayoutStr ) )
+				return layout;
+
+		return BranchFileLayout.PER_TRACK_FILES;
+	}
+
+	private static final DendriteAnalyzerProfile getAnalyzerProfile( final String analyzerProfileStr )
+	{
+		for ( final DendriteAnalyzerProfile profile : DendriteAnalyzerProfile.values() )
+			if ( profile.toString().equals( analyzerProfileStr ) )
+				return profile;
+
+		return DendriteAnalyzerProfile.ALL;
+	}
+
 	private static void merge( final Model model, final Model modelToMerge )
 	{
 		final int nNewTracks = modelToMerge.getTrackModel().nTracks( true );
@@ -463,7 +998,7 @@ public class DendriteDynamicsTrackerCommand extends ContextCommand
 		}
 	}
 
-	private static Interval getRoi2D( ImagePlus imp )
+	static Interval getRoi2D( final ImagePlus imp )
 	{
 		final long[] min = new long[ 2 ];
 		final long[] max = new long[ 2 ];
@@ -0,0 +1,305 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackModel;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.BranchLengthAnalyzerFactory;
+import net.imglib2.multithreading.SimpleMultiThreading;
+
+/**
+ * Frame by frame statistics of a dendrite tracking results: how many branches
+ * appear, disappear and are present at each frame, and the total branch
+ * length.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class DendriteFrameStatistics
+{
+
+	public final int nFrames;
+
+	public final double[] times;
+
+	public final int[] branchAdditions;
+
+	public final int[] branchDeletions;
+
+	public final int[] branchesAlive;
+
+	public final double[] totalBranchLength;
+
+	private DendriteFrameStatistics( final int nFrames )
+	{
+		this.nFrames = nFrames;
+		this.times = new double[ nFrames ];
+		this.branchAdditions = new int[ nFrames ];
+		this.branchDeletions = new int[ nFrames ];
+		this.branchesAlive = new int[ nFrames ];
+		this.totalBranchLength = new double[ nFrames ];
+	}
+
+	/**
+	 * Computes the frame statistics of the visible tracks and spots of the
+	 * specified model, using as many threads as there are cores.
+	 *
+	 * @param model
+	 *            the model to compute statistics from.
+	 * @param nFrames
+	 *            the number of frames in the source movie.
+	 * @param frameInterval
+	 *            the frame interval, in physical units.
+	 * @return a new {@link DendriteFrameStatistics}.
+	 */
+	public static DendriteFrameStatistics compute( final Model model, final int nFrames, final double frameInterval )
+	{
+		return compute( model, nFrames, frameInterval, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Computes the frame statistics of the visible tracks and spots of the
+	 * specified model.
+	 * <p>
+	 * The spots are scanned once, frames being distributed over several
+	 * threads. Each thread accumulates branch additions and deletions in its
+	 * own per-frame arrays, and the first and last frame of the tracks it
+	 * meets. These partial results are reduced at the end.
+	 *
+	 * @param model
+	 *            the model to compute statistics from.
+	 * @param nFrames
+	 *            the number of frames in the source movie.
+	 * @param frameInterval
+	 *            the frame interval, in physical units.
+	 * @param numThreads
+	 *            how many threads to use.
+	 * @return a new {@link DendriteFrameStatistics}.
+	 */
+	public static DendriteFrameStatistics compute( final Model model, final int nFrames, final double frameInterval, final int numThreads )
+	{
+		final DendriteFrameStatistics stats = new DendriteFrameStatistics( nFrames );
+
+		// Time array.
+		for ( int t = 0; t < nFrames; t++ )
+			stats.times[ t ] = t * frameInterval;
+
+		final TrackModel trackModel = model.getTrackModel();
+		final SpotCollection spots = model.getSpots();
+		final AtomicInteger ai = new AtomicInteger( 0 );
+
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, nFrames ) ) );
+
+		// Branches birth and death - one pair per thread.
+		final int[][] additionsList = new int[ threads.length ][ nFrames ];
+		final int[][] deletionsList = new int[ threads.length ][ nFrames ];
+
+		// First and last frame of the tracks - one map per thread.
+		final List< Map< Integer, int[] > > trackSpanList = new ArrayList<>( threads.length );
+
+		for ( int ithread = 0; ithread < threads.length; ithread++ )
+		{
+			final int[] branchAdditions = additionsList[ ithread ];
+			final int[] branchDeletions = deletionsList[ ithread ];
+			final Map< Integer, int[] > trackSpans = new HashMap<>();
+			trackSpanList.add( trackSpans );
+
+			threads[ ithread ] = new Thread( "Dendrite frame statistics thread " + ( 1 + ithread ) + "/" + threads.length )
+			{
+				@Override
+				public void run()
+				{
+					for ( int frame = ai.getAndIncrement(); frame < nFrames; frame = ai.getAndIncrement() )
+					{
+						double tb = 0.;
+						for ( final Spot spot : spots.iterable( frame, false ) )
+						{
+							final Integer trackID = trackModel.trackIDOf( spot );
+							if ( null != trackID )
+							{
+								// Tracks are counted when visible, whatever
+								// the visibility of their spots.
+								if ( trackModel.isVisible( trackID ) )
+								{
+									final int[] span = trackSpans.get( trackID );
+									if ( null == span )
+									{
+										trackSpans.put( trackID, new int[] { frame, frame } );
+									}
+									else
+									{
+										span[ 0 ] = Math.min( span[ 0 ], frame );
+										span[ 1 ] = Math.max( span[ 1 ], frame );
+									}
+								}
+							}
+
+							if ( !isVisible( spot ) )
+								continue;
+
+							// Lonely spots, that do not belong in a track.
+							if ( null == trackID )
+							{
+								branchAdditions[ frame ]++;
+								if ( frame + 1 < nFrames )
+									branchDeletions[ frame + 1 ]++;
+							}
+
+							// Total branch length at this frame.
+							final Double branchLength = spot.getFeature( BranchLengthAnalyzerFactory.FEATURE );
+							if ( null != branchLength && !branchLength.isNaN() )
+								tb += branchLength.doubleValue();
+						}
+						stats.totalBranchLength[ frame ] = tb;
+					}
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+
+		/*
+		 * Reduce.
+		 */
+
+		final int[] branchAdditions = stats.branchAdditions;
+		final int[] branchDeletions = stats.branchDeletions;
+		for ( int i = 0; i < threads.length; i++ )
+		{
+			for ( int t = 0; t < nFrames; t++ )
+			{
+				branchAdditions[ t ] += additionsList[ i ][ t ];
+				branchDeletions[ t ] += deletionsList[ i ][ t ];
+			}
+		}
+
+		// A track spans over several threads.
+		final Map< Integer, int[] > trackSpans = new HashMap<>();
+		for ( final Map< Integer, int[] > map : trackSpanList )
+		{
+			for ( final Map.Entry< Integer, int[] > entry : map.entrySet() )
+			{
+				final int[] span = trackSpans.get( entry.getKey() );
+				if ( null == span )
+				{
+					trackSpans.put( entry.getKey(), entry.getValue() );
+				}
+				else
+				{
+					span[ 0 ] = Math.min( span[ 0 ], entry.getValue()[ 0 ] );
+					span[ 1 ] = Math.max( span[ 1 ], entry.getValue()[ 1 ] );
+				}
+			}
+		}
+		for ( final int[] span : trackSpans.values() )
+		{
+			branchAdditions[ span[ 0 ] ]++;
+			branchDeletions[ span[ 1 ] ]++;
+		}
+
+		// Branches alive.
+		final int[] nBranch = stats.branchesAlive;
+		if ( nFrames > 0 )
+			nBranch[ 0 ] = branchAdditions[ 0 ] - branchDeletions[ 0 ];
+		for ( int t = 1; t < nBranch.length; t++ )
+			nBranch[ t ] = nBranch[ t - 1 ] + branchAdditions[ t ] - branchDeletions[ t ];
+
+		return stats;
+	}
+
+	/**
+	 * Computes the frame statistics from the frame span of each track and the
+	 * frame of each lonely spot.
+	 *
+	 * @param nFrames
+	 *            the number of frames in the source movie.
+	 * @param frameInterval
+	 *            the frame interval, in physical units.
+	 * @param firstFrames
+	 *            the first frame of each track.
+	 * @param lastFrames
+	 *            the last frame of each track.
+	 * @param lonelyFrames
+	 *            the frame of each spot that does not belong in a track.
+	 * @param totalBranchLength
+	 *            the total branch length at each frame. Copied.
+	 * @return a new {@link DendriteFrameStatistics}.
+	 */
+	public static DendriteFrameStatistics compute(
+			final int nFrames,
+			final double frameInterval,
+			final int[] firstFrames,
+			final int[] lastFrames,
+			final int[] lonelyFrames,
+			final double[] totalBranchLength )
+	{
+		final DendriteFrameStatistics stats = new DendriteFrameStatistics( nFrames );
+		for ( int t = 0; t < nFrames; t++ )
+			stats.times[ t ] = t * frameInterval;
+		System.arraycopy( totalBranchLength, 0, stats.totalBranchLength, 0, nFrames );
+
+		final int[] branchAdditions = stats.branchAdditions;
+		final int[] branchDeletions = stats.branchDeletions;
+		for ( final int frame : lonelyFrames )
+		{
+			branchAdditions[ frame ]++;
+			if ( frame + 1 < nFrames )
+				branchDeletions[ frame + 1 ]++;
+		}
+		for ( int i = 0; i < firstFrames.length; i++ )
+		{
+			branchAdditions[ firstFrames[ i ] ]++;
+			branchDeletions[ lastFrames[ i ] ]++;
+		}
+
+		final int[] nBranch = stats.branchesAlive;
+		if ( nFrames > 0 )
+			nBranch[ 0 ] = branchAdditions[ 0 ] - branchDeletions[ 0 ];
+		for ( int t = 1; t < nBranch.length; t++ )
+			nBranch[ t ] = nBranch[ t - 1 ] + branchAdditions[ t ] - branchDeletions[ t ];
+
+		return stats;
+	}
+
+	private static final boolean isVisible( final Spot spot )
+	{
+		final Double visibility = spot.getFeature( SpotCollection.VISIBILITY );
+		return null != visibility && visibility.doubleValue() > 0.;
+	}
+}
@@ -35,10 +35,12 @@ package fr.pasteur.iah.dendritedynamicstracker;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Function;
 
 import javax.swing.BoxLayout;
 import javax.swing.JFrame;
@@ -56,11 +58,10 @@ import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.TrackModel;
 import fiji.plugin.trackmate.features.track.TrackSpotQualityFeatureAnalyzer;
 import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
-import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.BranchGrowPhaseAnalyzer;
 import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.BranchLengthAnalyzerFactory;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.DendriteFeatureScheduler;
 import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.DendriteTrackNIncorrectIDs;
 import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.JunctionIDAnalyzerFactory;
-import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.TotalBranchTravelAnalyzer;
 import net.imglib2.algorithm.Algorithm;
 import sc.fiji.analyzeSkeleton.Edge;
 import sc.fiji.analyzeSkeleton.Vertex;
@@ -70,6 +71,14 @@ public class DendriteTrackAnalysis implements Algorithm
 
 	private static final boolean DO_PATCH = true;
 
+	/**
+	 * The features written by patching.
+	 */
+	private static final List< String > PATCHED_FEATURES = Arrays.asList(
+			BranchLengthAnalyzerFactory.FEATURE,
+			JunctionIDAnalyzerFactory.FEATURE,
+			DendriteTrackNIncorrectIDs.FEATURE );
+
 	private final TrackMate endPointTrackMate;
 
 	private final Model junctionModel;
@@ -95,6 +104,7 @@ public class DendriteTrackAnalysis implements Algorithm
 		final TrackModel trackModel = model.getTrackModel();
 		final FeatureModel featureModel = model.getFeatureModel();
 		final Set< Integer > trackIDs = trackModel.trackIDs( true );
+		final List< Integer > patchedTrackIDs = new ArrayList<>( trackIDs.size() );
 		for ( final Integer trackID : trackIDs )
 		{
 			/*
@@ -111,16 +121,14 @@ public class DendriteTrackAnalysis implements Algorithm
 			 * that stems from the branch?
 			 */
 			patchTrack( trackID );
+			patchedTrackIDs.add( trackID );
 		}
 
 		/*
 		 * Re-compute the features for the branches features now.
 		 */
 
-		endPointTrackMate.getSettings().addEdgeAnalyzer( new BranchGrowPhaseAnalyzer() );
-		endPointTrackMate.getSettings().addTrackAnalyzer( new TotalBranchTravelAnalyzer() );
-		endPointTrackMate.computeTrackFeatures( true );
-		endPointTrackMate.computeEdgeFeatures( true );
+		computeBranchFeatures( endPointTrackMate, patchedTrackIDs );
 
 		/*
 		 * Massage and export analysis results.
@@ -132,6 +140,28 @@ public class DendriteTrackAnalysis implements Algorithm
 		return true;
 	}
 
+	/**
+	 * Adds the branch analyzers to the settings of the specified end-point
+	 * TrackMate, and computes the edge and track features with them on all
+	 * its visible tracks. Other features are not computed again.
+	 *
+	 * @param endPointTrackMate
+	 *            the end-point TrackMate, after patching.
+	 */
+	public static void computeBranchFeatures( final TrackMate endPointTrackMate )
+	{
+		computeBranchFeatures( endPointTrackMate, endPointTrackMate.getModel().getTrackModel().trackIDs( true ) );
+	}
+
+	/**
+	 * Computes again the features that depend on the patched branch length
+	 * and junction ID, on the specified tracks only.
+	 */
+	static void computeBranchFeatures( final TrackMate endPointTrackMate, final Collection< Integer > trackIDs )
+	{
+		DendriteFeatureScheduler.recompute( endPointTrackMate, trackIDs, PATCHED_FEATURES );
+	}
+
 	private void exportAnalysis()
 	{
 		// TODO Auto-generated method stub
@@ -149,6 +179,44 @@ public class DendriteTrackAnalysis implements Algorithm
 		final List< Spot > spots = new ArrayList<>( trackModel.trackSpots( trackID ) );
 		spots.sort( Spot.frameComparator );
 
+		final TrackModel junctionTrackModel = junctionModel.getTrackModel();
+		final BranchPatch patch = patch( spots, detectionResults, junctionTrackModel::trackIDOf );
+
+		/*
+		 * Store the possibly corrected branch length and junction ID in
+		 * TrackMate features.
+		 */
+
+		for ( int t = 0; t < spots.size(); t++ )
+		{
+			final Spot spot = spots.get( t );
+			final double bl = patch.branchLength[ t ];
+			final double jid = patch.junctionIDs[ t ];
+			spot.putFeature( BranchLengthAnalyzerFactory.FEATURE, Double.valueOf( bl ) );
+			spot.putFeature( JunctionIDAnalyzerFactory.FEATURE, Double.valueOf( jid ) );
+			spot.setName( "->" + (int) jid );
+		}
+		endPointTrackMate.getModel().getFeatureModel().putTrackFeature(
+				trackID, DendriteTrackNIncorrectIDs.FEATURE, Double.valueOf( patch.nUncorrectedIDJumps ) );
+	}
+
+	/**
+	 * Computes the branch length and junction ID of each end-point of a
+	 * branch track, patched when the end-point does not connect to the main
+	 * junction track of the branch.
+	 *
+	 * @param spots
+	 *            the end-points of the branch track, sorted by frame.
+	 * @param detectionResults
+	 *            the detection results the end-points come from.
+	 * @param junctionTrackIDOf
+	 *            returns the ID of the track of a junction, or
+	 *            <code>null</code> if the junction is not in a track or is
+	 *            <code>null</code>.
+	 * @return the patched values.
+	 */
+	static BranchPatch patch( final List< Spot > spots, final DetectionResults detectionResults, final Function< Spot, Integer > junctionTrackIDOf )
+	{
 		/*
 		 * Collect raw branch length and junction ID.
 		 */
@@ -163,7 +231,7 @@ public class DendriteTrackAnalysis implements Algorithm
 			time[ i ] = spot.getFeature( Spot.POSITION_T );
 
 			final Spot junction = detectionResults.junctionMap.get( spot );
-			final Integer junctionTrackID = junctionModel.getTrackModel().trackIDOf( junction );
+			final Integer junctionTrackID = junctionTrackIDOf.apply( junction );
 			junctionIDs[ i ] = ( junctionTrackID != null )
 					? junctionTrackID.doubleValue()
 					: Double.NaN;
@@ -172,11 +240,9 @@ public class DendriteTrackAnalysis implements Algorithm
 			if ( vertex == null )
 				continue;
 
-			final Edge predecessor = vertex.getBranches().get( 0 );
-			if ( null == predecessor )
-				continue;
-
-			final double length = predecessor.getLength_ra();
+			// Walk through the junctions dissolved by spur suppression.
+			final int frame = spot.getFeature( Spot.FRAME ).intValue();
+			final double length = SkeletonFrameAnalysis.branchLength( vertex, v -> null == detectionResults.getSpotFor( frame, v ) );
 			branchLength[ i ] = length;
 		}
 
@@ -258,6 +324,7 @@ public class DendriteTrackAnalysis implements Algorithm
 
 					final Spot endPointSpot = spots.get( t );
 					final Vertex endPointVertex = detectionResults.getVertexFor( endPointSpot );
+					final int frame = endPointSpot.getFeature( Spot.FRAME ).intValue();
 					queue.add( Collections.singletonList( endPointVertex ) );
 
 					while ( !queue.isEmpty() )
@@ -271,10 +338,10 @@ public class DendriteTrackAnalysis implements Algorithm
 
 						visited.add( vertex );
 
-						final Spot junctionCandidate = detectionResults.getSpotFor( vertex );
+						final Spot junctionCandidate = detectionResults.getSpotFor( frame, vertex );
 						if ( null != junctionCandidate )
 						{
-							final Integer junctionCandidateID = junctionModel.getTrackModel().trackIDOf( junctionCandidate );
+							final Integer junctionCandidateID = junctionTrackIDOf.apply( junctionCandidate );
 							if ( null != junctionCandidateID )
 							{
 								if ( junctionCandidateID.doubleValue() == candidate )
@@ -352,22 +419,7 @@ public class DendriteTrackAnalysis implements Algorithm
 			nUncorrectedIDJumps = 0;
 		}
 
-		/*
-		 * Store the possibly corrected branch length and junction ID in
-		 * TrackMate features.
-		 */
-
-		for ( int t = 0; t < spots.size(); t++ )
-		{
-			final Spot spot = spots.get( t );
-			final double bl = bestBranchLength[ t ];
-			final double jid = bestJunctionIDs[ t ];
-			spot.putFeature( BranchLengthAnalyzerFactory.FEATURE, Double.valueOf( bl ) );
-			spot.putFeature( JunctionIDAnalyzerFactory.FEATURE, Double.valueOf( jid ) );
-			spot.setName( "->" + (int) jid );
-		}
-		endPointTrackMate.getModel().getFeatureModel().putTrackFeature(
-				trackID, DendriteTrackNIncorrectIDs.FEATURE, Double.valueOf( nUncorrectedIDJumps ) );
+		return new BranchPatch( bestBranchLength, bestJunctionIDs, nUncorrectedIDJumps );
 	}
 
 	@SuppressWarnings( "unused" )
@@ -415,4 +467,25 @@ public class DendriteTrackAnalysis implements Algorithm
 	{
 		return errorMessage;
 	}
+
+	/**
+	 * The patched branch length and junction ID of each end-point of a branch
+	 * track, in frame order.
+	 */
+	static final class BranchPatch
+	{
+
+		final double[] branchLength;
+
+		final double[] junctionIDs;
+
+		final int nUncorrectedIDJumps;
+
+		private BranchPatch( final double[] branchLength, final double[] junctionIDs, final int nUncorrectedIDJumps )
+		{
+			this.branchLength = branchLength;
+			this.junctionIDs = junctionIDs;
+			this.nUncorrectedIDJumps = nUncorrectedIDJumps;
+		}
+	}
 }
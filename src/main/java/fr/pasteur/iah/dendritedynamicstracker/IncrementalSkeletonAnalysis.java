@@ -0,0 +1,442 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.Edge;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.SkeletonResult;
+import sc.fiji.analyzeSkeleton.Vertex;
+
+/**
+ * Analyzes consecutive frames of a skeleton movie, re-analyzing only the
+ * connected components of the skeleton that changed since the previous frame.
+ * The graphs of the other components, with their vertices and branch lengths,
+ * are reused as they are.
+ * <p>
+ * Instances keep the previous frame, and must be fed with consecutive frames
+ * by a single thread. The graph of a skeleton component only depends on its
+ * pixels, so this cannot be used with the prunning methods that read the raw
+ * data.
+ */
+class IncrementalSkeletonAnalysis
+{
+
+	private final AnalyzeSkeleton_ skelAnalyzer = new AnalyzeSkeleton_();
+
+	private final boolean skeletonize;
+
+	private final int prunningMethod;
+
+	private final double minBranchLength;
+
+	private final double junctionMergeRadius;
+
+	private final double frameInterval;
+
+	private final double[] calibration;
+
+	private final int[] start;
+
+	private int width;
+
+	private int height;
+
+	private int depth;
+
+	/**
+	 * The skeleton pixels of the current and previous frames, packed in frames
+	 * {@link #current} and <code>1 - current</code>.
+	 */
+	private PackedSkeleton pixels;
+
+	private int current;
+
+	private boolean hasPrevious;
+
+	private int[] labels;
+
+	private Graph[] previousGraphs;
+
+	private List< Point > previousEndPoints;
+
+	IncrementalSkeletonAnalysis(
+			final boolean skeletonize,
+			final int prunningMethod,
+			final double minBranchLength,
+			final double junctionMergeRadius,
+			final double frameInterval,
+			final double[] calibration,
+			final int[] start )
+	{
+		this.skeletonize = skeletonize;
+		this.prunningMethod = prunningMethod;
+		this.minBranchLength = minBranchLength;
+		this.junctionMergeRadius = junctionMergeRadius;
+		this.frameInterval = frameInterval;
+		this.calibration = calibration;
+		this.start = start;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified prunning method can be used
+	 * with incremental analysis.
+	 */
+	static boolean supports( final int prunningMethod )
+	{
+		return !SkeletonKeyPointsDetector.needsRawData( prunningMethod );
+	}
+
+	/**
+	 * Analyzes the next frame.
+	 *
+	 * @param skeletonFrame
+	 *            the skeleton of this frame, or its binary mask if the
+	 *            skeletonize option was set.
+	 * @param frame
+	 *            the frame, 0-based. Must follow the frame given to the
+	 *            previous call, if any.
+	 * @return a new analysis.
+	 */
+	SkeletonFrameAnalysis analyze( final ImagePlus skeletonFrame, final int frame )
+	{
+		if ( skeletonize )
+			SkeletonFrameAnalysis.skeletonize( skeletonFrame );
+		read( skeletonFrame );
+
+		final Graph[] graphs;
+		final List< Point > endPoints;
+		final int nLabels = hasPrevious ? label() : 0;
+		final boolean[] reanalyze = hasPrevious ? findChangedComponents( nLabels ) : null;
+		if ( null == reanalyze )
+		{
+			// First frame, or we could not match the previous graphs.
+			final SkeletonResult result = SkeletonFrameAnalysis.run( skelAnalyzer, skeletonFrame, null, prunningMethod );
+			graphs = result.getGraph();
+			endPoints = result.getListOfEndPoints();
+		}
+		else
+		{
+			final List< Graph > graphList = new ArrayList<>();
+			final List< Point > endPointList = new ArrayList<>();
+
+			// Reuse the graphs of unchanged components.
+			for ( final Graph graph : previousGraphs )
+			{
+				final int label = labels[ index( anchor( graph ) ) ];
+				if ( !reanalyze[ label ] )
+					graphList.add( graph );
+			}
+			for ( final Point p : previousEndPoints )
+			{
+				final int label = labels[ index( p ) ];
+				if ( label > 0 && !reanalyze[ label ] )
+					endPointList.add( p );
+			}
+
+			// Analyze the others, cropped to their bounding box.
+			final SkeletonResult result = analyzeChanged( skeletonFrame, nLabels, reanalyze );
+			if ( null != result )
+			{
+				if ( null != result.getGraph() )
+					graphList.addAll( Arrays.asList( result.getGraph() ) );
+				if ( null != result.getListOfEndPoints() )
+					endPointList.addAll( result.getListOfEndPoints() );
+			}
+			graphs = graphList.toArray( new Graph[ graphList.size() ] );
+			endPoints = endPointList;
+		}
+
+		current = 1 - current;
+		hasPrevious = true;
+		previousGraphs = graphs;
+		previousEndPoints = endPoints;
+
+		return SkeletonFrameAnalysis.build( graphs, endPoints,
+				minBranchLength, junctionMergeRadius, frame, frameInterval, calibration, start );
+	}
+
+	/**
+	 * Packs the skeleton pixels of the frame in the {@link #current} frame of
+	 * {@link #pixels}.
+	 */
+	private void read( final ImagePlus skeletonFrame )
+	{
+		final ImageStack stack = skeletonFrame.getStack();
+		if ( null == pixels || width != stack.getWidth() || height != stack.getHeight() || depth != stack.getSize() )
+		{
+			width = stack.getWidth();
+			height = stack.getHeight();
+			depth = stack.getSize();
+			pixels = new PackedSkeleton( width, height, depth, 2 );
+			labels = new int[ width * height * depth ];
+			hasPrevious = false;
+		}
+		pixels.setFrame( current, stack );
+	}
+
+	/**
+	 * Labels the 26-connected components of the current frame in
+	 * {@link #labels}, starting from 1.
+	 *
+	 * @return the number of components.
+	 */
+	private int label()
+	{
+		Arrays.fill( labels, 0 );
+		int[] queue = new int[ 256 ];
+		int nLabels = 0;
+
+		// Seed from the set bits of the packed frame.
+		final long[] cur = pixels.words( current );
+		final int wordsPerRow = pixels.wordsPerRow();
+		for ( int i = 0; i < cur.length; i++ )
+		{
+			long word = cur[ i ];
+			final int row = i / wordsPerRow;
+			while ( word != 0L )
+			{
+				final int bit = Long.numberOfTrailingZeros( word );
+				word &= word - 1L;
+				final int seed = row * width + ( ( i % wordsPerRow ) << 6 ) + bit;
+				if ( labels[ seed ] != 0 )
+					continue;
+
+				nLabels++;
+				labels[ seed ] = nLabels;
+				int head = 0;
+				int tail = 0;
+				queue[ tail++ ] = seed;
+				while ( head < tail )
+				{
+					final int index = queue[ head++ ];
+					final int x = index % width;
+					final int y = ( index / width ) % height;
+					final int z = index / ( width * height );
+					for ( int zn = Math.max( 0, z - 1 ); zn <= Math.min( depth - 1, z + 1 ); zn++ )
+					{
+						for ( int yn = Math.max( 0, y - 1 ); yn <= Math.min( height - 1, y + 1 ); yn++ )
+						{
+							for ( int xn = Math.max( 0, x - 1 ); xn <= Math.min( width - 1, x + 1 ); xn++ )
+							{
+								final int neighbor = ( zn * height + yn ) * width + xn;
+								if ( labels[ neighbor ] != 0 || !pixels.get( xn, yn, zn, current ) )
+									continue;
+
+								labels[ neighbor ] = nLabels;
+								if ( tail == queue.length )
+								{
+									// Compact the queue, grow it if it is full.
+									System.arraycopy( queue, head, queue, 0, tail - head );
+									tail -= head;
+									head = 0;
+									if ( tail == queue.length )
+										queue = Arrays.copyOf( queue, 2 * queue.length );
+								}
+								queue[ tail++ ] = neighbor;
+							}
+						}
+					}
+				}
+			}
+		}
+		return nLabels;
+	}
+
+	/**
+	 * Finds the components of the current frame that must be re-analyzed:
+	 * those with pixels added since the previous frame, those adjacent to
+	 * pixels removed since the previous frame, and those the previous graphs
+	 * do not cover.
+	 *
+	 * @return whether each component must be re-analyzed, indexed by label,
+	 *         or <code>null</code> if the previous graphs cannot be matched
+	 *         to components.
+	 */
+	private boolean[] findChangedComponents( final int nLabels )
+	{
+		final boolean[] changed = new boolean[ nLabels + 1 ];
+		changed[ 0 ] = true;
+
+		// Compare the frames 64 pixels at a time.
+		final long[] cur = pixels.words( current );
+		final long[] prev = pixels.words( 1 - current );
+		final int wordsPerRow = pixels.wordsPerRow();
+		for ( int i = 0; i < cur.length; i++ )
+		{
+			long diff = cur[ i ] ^ prev[ i ];
+			final int row = i / wordsPerRow;
+			final int y = row % height;
+			final int z = row / height;
+			while ( diff != 0L )
+			{
+				final int bit = Long.numberOfTrailingZeros( diff );
+				diff &= diff - 1L;
+				final int x = ( ( i % wordsPerRow ) << 6 ) + bit;
+				if ( ( cur[ i ] & ( 1L << bit ) ) != 0L )
+				{
+					// Added pixel.
+					changed[ labels[ ( z * height + y ) * width + x ] ] = true;
+					continue;
+				}
+
+				// Removed pixel: its former component is around it.
+				for ( int zn = Math.max( 0, z - 1 ); zn <= Math.min( depth - 1, z + 1 ); zn++ )
+					for ( int yn = Math.max( 0, y - 1 ); yn <= Math.min( height - 1, y + 1 ); yn++ )
+						for ( int xn = Math.max( 0, x - 1 ); xn <= Math.min( width - 1, x + 1 ); xn++ )
+							changed[ labels[ ( zn * height + yn ) * width + xn ] ] = true;
+			}
+		}
+
+		final boolean[] covered = new boolean[ nLabels + 1 ];
+		for ( final Graph graph : previousGraphs )
+		{
+			final Point anchor = anchor( graph );
+			if ( null == anchor )
+				return null;
+			covered[ labels[ index( anchor ) ] ] = true;
+		}
+		for ( int label = 1; label <= nLabels; label++ )
+			if ( !covered[ label ] )
+				changed[ label ] = true;
+
+		return changed;
+	}
+
+	/**
+	 * Analyzes the components to re-analyze, on a crop of the frame around
+	 * them, and moves the result points back to frame coordinates.
+	 *
+	 * @return the analysis result, or <code>null</code> if there is nothing to
+	 *         re-analyze.
+	 */
+	private SkeletonResult analyzeChanged( final ImagePlus skeletonFrame, final int nLabels, final boolean[] reanalyze )
+	{
+		int xmin = width, ymin = height, zmin = depth;
+		int xmax = -1, ymax = -1, zmax = -1;
+		for ( int index = 0; index < labels.length; index++ )
+		{
+			if ( labels[ index ] == 0 || !reanalyze[ labels[ index ] ] )
+				continue;
+			final int x = index % width;
+			final int y = ( index / width ) % height;
+			final int z = index / ( width * height );
+			xmin = Math.min( xmin, x );
+			ymin = Math.min( ymin, y );
+			zmin = Math.min( zmin, z );
+			xmax = Math.max( xmax, x );
+			ymax = Math.max( ymax, y );
+			zmax = Math.max( zmax, z );
+		}
+		if ( xmax < 0 )
+			return null;
+
+		final int cw = xmax - xmin + 1;
+		final int ch = ymax - ymin + 1;
+		final ImageStack crop = new ImageStack( cw, ch );
+		for ( int z = zmin; z <= zmax; z++ )
+		{
+			final byte[] pixels = new byte[ cw * ch ];
+			for ( int y = ymin; y <= ymax; y++ )
+			{
+				for ( int x = xmin; x <= xmax; x++ )
+				{
+					final int label = labels[ ( z * height + y ) * width + x ];
+					if ( label != 0 && reanalyze[ label ] )
+						pixels[ ( y - ymin ) * cw + ( x - xmin ) ] = ( byte ) 255;
+				}
+			}
+			crop.addSlice( new ByteProcessor( cw, ch, pixels ) );
+		}
+		final ImagePlus cropImp = new ImagePlus( "", crop );
+		cropImp.setCalibration( skeletonFrame.getCalibration() );
+
+		final SkeletonResult result = SkeletonFrameAnalysis.run( skelAnalyzer, cropImp, null, prunningMethod );
+		translate( result, xmin, ymin, zmin );
+		return result;
+	}
+
+	private static void translate( final SkeletonResult result, final int dx, final int dy, final int dz )
+	{
+		final Set< Point > points = Collections.newSetFromMap( new IdentityHashMap<>() );
+		if ( null != result.getListOfEndPoints() )
+			points.addAll( result.getListOfEndPoints() );
+		if ( null != result.getGraph() )
+		{
+			for ( final Graph graph : result.getGraph() )
+			{
+				for ( final Vertex vertex : graph.getVertices() )
+					points.addAll( vertex.getPoints() );
+				for ( final Edge edge : graph.getEdges() )
+					points.addAll( edge.getSlabs() );
+			}
+		}
+		for ( final Point p : points )
+		{
+			p.x += dx;
+			p.y += dy;
+			p.z += dz;
+		}
+	}
+
+	/**
+	 * Returns a pixel of the specified graph, or <code>null</code> if it has
+	 * none.
+	 */
+	private static Point anchor( final Graph graph )
+	{
+		for ( final Vertex vertex : graph.getVertices() )
+			if ( !vertex.getPoints().isEmpty() )
+				return vertex.getPoints().get( 0 );
+		for ( final Edge edge : graph.getEdges() )
+			if ( !edge.getSlabs().isEmpty() )
+				return edge.getSlabs().get( 0 );
+		return null;
+	}
+
+	private int index( final Point p )
+	{
+		return ( p.z * height + p.y ) * width + p.x;
+	}
+}
@@ -0,0 +1,540 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.features.track.TrackDurationAnalyzer;
+import fiji.plugin.trackmate.tracking.SpotTracker;
+import fiji.plugin.trackmate.tracking.TrackerKeys;
+import fiji.plugin.trackmate.tracking.jaqaman.SparseLAPFrameToFrameTracker;
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.BranchLengthAnalyzerFactory;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.JunctionIDAnalyzerFactory;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.TotalBranchTravelAnalyzer;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.tracking.SkeletonEndPointTracker;
+import ij.ImagePlus;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+
+/**
+ * Tracks dendrites while they are acquired, one frame at a time.
+ * <p>
+ * Each new frame is detected, then its junctions and end-points are linked to
+ * the ones of the previous frame, with the same frame-to-frame trackers than
+ * the batch analysis. Junction tracking does not close gaps and end-point
+ * tracking is done frame to frame, so the tracks are the same than if the
+ * whole movie had been analyzed at once. The branch length of the end-points
+ * and the duration and branch travel of their tracks are updated as frames
+ * come.
+ * <p>
+ * The spots and tracks of all frames are kept in the junction and end-point
+ * models. The skeleton graphs, that make most of the memory used by the
+ * detection, are only kept for the last frames.
+ * <p>
+ * Frames must be added in acquisition order. Instances are thread-safe.
+ */
+public class LiveDendriteTracker
+{
+
+	private static final int[] START = new int[ 3 ];
+
+	private final int prunningMethod;
+
+	private final boolean skeletonize;
+
+	private final double minBranchLength;
+
+	private final double junctionMergeRadius;
+
+	private final boolean incremental;
+
+	private final double frameInterval;
+
+	private final int windowSize;
+
+	private final Map< String, Object > junctionTrackerSettings;
+
+	private final Map< String, Object > endPointTrackerSettings;
+
+	private final Model junctionModel = new Model();
+
+	private final Model endPointModel = new Model();
+
+	private final AnalyzeSkeleton_ skelAnalyzer = new AnalyzeSkeleton_();
+
+	/**
+	 * The analyses of the last frames, the last one being the analysis of the
+	 * last frame added.
+	 */
+	private final ArrayDeque< SkeletonFrameAnalysis > window = new ArrayDeque<>();
+
+	/**
+	 * The branch travel of the end-point tracks present in the last frame,
+	 * stored against their last end-point.
+	 */
+	private Map< Spot, BranchTravel > travels = new HashMap<>();
+
+	private IncrementalSkeletonAnalysis delta;
+
+	private double[] calibration;
+
+	private int nFrames;
+
+	private long processingTime;
+
+	private String errorMessage;
+
+	/**
+	 * Creates a new live tracker.
+	 *
+	 * @param prunningMethod
+	 *            the cycle prunning method.
+	 * @param skeletonize
+	 *            whether the frames are binary masks to skeletonize.
+	 * @param minBranchLength
+	 *            the length below which terminal branches are discarded. 0
+	 *            to keep all the branches.
+	 * @param junctionMergeRadius
+	 *            the distance below which connected junctions are merged. 0
+	 *            to keep all the junctions.
+	 * @param incremental
+	 *            if <code>true</code>, only the skeleton parts that changed
+	 *            since the previous frame are analyzed again.
+	 * @param junctionMaxLinkingDistance
+	 *            the max linking distance for junctions.
+	 * @param endPointMaxLinkingDistance
+	 *            the max linking distance for end-points.
+	 * @param matchedCostFactor
+	 *            the cost factor for end-points that have the same junction.
+	 * @param frameInterval
+	 *            the time between two frames.
+	 * @param windowSize
+	 *            how many frames to keep the skeleton graphs of, at least 1.
+	 */
+	public LiveDendriteTracker(
+			final int prunningMethod,
+			final boolean skeletonize,
+			final double minBranchLength,
+			final double junctionMergeRadius,
+			final boolean incremental,
+			final double junctionMaxLinkingDistance,
+			final double endPointMaxLinkingDistance,
+			final double matchedCostFactor,
+			final double frameInterval,
+			final int windowSize )
+	{
+		this.prunningMethod = prunningMethod;
+		this.skeletonize = skeletonize;
+		this.minBranchLength = minBranchLength;
+		this.junctionMergeRadius = junctionMergeRadius;
+		this.incremental = incremental && IncrementalSkeletonAnalysis.supports( prunningMethod );
+		this.frameInterval = frameInterval;
+		this.windowSize = Math.max( 1, windowSize );
+
+		this.junctionTrackerSettings = new HashMap<>();
+		junctionTrackerSettings.put( TrackerKeys.KEY_LINKING_MAX_DISTANCE, Double.valueOf( junctionMaxLinkingDistance ) );
+		junctionTrackerSettings.put( TrackerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR, Double.valueOf( TrackerKeys.DEFAULT_ALTERNATIVE_LINKING_COST_FACTOR ) );
+		junctionTrackerSettings.put( TrackerKeys.KEY_LINKING_FEATURE_PENALTIES, new HashMap<>() );
+		this.endPointTrackerSettings = DendriteDynamicsTrackerCommand.createEndPointTrackerSettings( endPointMaxLinkingDistance, matchedCostFactor );
+
+		final FeatureModel featureModel = endPointModel.getFeatureModel();
+		featureModel.declareSpotFeatures(
+				Arrays.asList( BranchLengthAnalyzerFactory.FEATURE, JunctionIDAnalyzerFactory.FEATURE ),
+				map( BranchLengthAnalyzerFactory.FEATURE, "Branch length", JunctionIDAnalyzerFactory.FEATURE, "Junction ID" ),
+				map( BranchLengthAnalyzerFactory.FEATURE, "Branch length", JunctionIDAnalyzerFactory.FEATURE, "Junction ID" ),
+				map( BranchLengthAnalyzerFactory.FEATURE, Dimension.LENGTH, JunctionIDAnalyzerFactory.FEATURE, Dimension.NONE ),
+				map( BranchLengthAnalyzerFactory.FEATURE, Boolean.FALSE, JunctionIDAnalyzerFactory.FEATURE, Boolean.TRUE ) );
+		featureModel.declareTrackFeatures(
+				Arrays.asList( TrackDurationAnalyzer.TRACK_START, TrackDurationAnalyzer.TRACK_STOP, TrackDurationAnalyzer.TRACK_DURATION ),
+				TrackDurationAnalyzer.FEATURE_NAMES,
+				TrackDurationAnalyzer.FEATURE_SHORT_NAMES,
+				TrackDurationAnalyzer.FEATURE_DIMENSIONS,
+				TrackDurationAnalyzer.IS_INT );
+		featureModel.declareTrackFeatures(
+				TotalBranchTravelAnalyzer.FEATURES,
+				TotalBranchTravelAnalyzer.FEATURE_NAMES,
+				TotalBranchTravelAnalyzer.FEATURE_SHORT_NAMES,
+				TotalBranchTravelAnalyzer.FEATURE_DIMENSIONS,
+				TotalBranchTravelAnalyzer.IS_INT );
+	}
+
+	/**
+	 * Detects and tracks the next frame.
+	 *
+	 * @param skeletonFrame
+	 *            the skeleton of this frame, 2D or 3D, or its binary mask if
+	 *            the frames are skeletonized. Its calibration is used for all
+	 *            the frames.
+	 * @param dataFrame
+	 *            the raw data of this frame, or <code>null</code> if the
+	 *            prunning method does not need it.
+	 * @return <code>true</code> if the frame was tracked.
+	 */
+	public synchronized boolean addFrame( final ImagePlus skeletonFrame, final ImagePlus dataFrame )
+	{
+		final long begin = System.currentTimeMillis();
+		if ( SkeletonKeyPointsDetector.needsRawData( prunningMethod ) && null == dataFrame )
+		{
+			errorMessage = "The prunning method requires the raw data of each frame.";
+			return false;
+		}
+
+		if ( null == calibration )
+		{
+			calibration = new double[] {
+					skeletonFrame.getCalibration().pixelWidth,
+					skeletonFrame.getCalibration().pixelHeight,
+					skeletonFrame.getCalibration().pixelDepth };
+			junctionModel.setPhysicalUnits( skeletonFrame.getCalibration().getUnits(), skeletonFrame.getCalibration().getTimeUnit() );
+			endPointModel.setPhysicalUnits( skeletonFrame.getCalibration().getUnits(), skeletonFrame.getCalibration().getTimeUnit() );
+			if ( incremental )
+				delta = new IncrementalSkeletonAnalysis( skeletonize, prunningMethod, minBranchLength, junctionMergeRadius, frameInterval, calibration, START );
+		}
+
+		/*
+		 * Detect junctions and end-points.
+		 */
+
+		final int frame = nFrames;
+		final SkeletonFrameAnalysis analysis = ( null != delta )
+				? delta.analyze( skeletonFrame, frame )
+				: SkeletonFrameAnalysis.analyze( skelAnalyzer, skeletonFrame, skeletonize, dataFrame,
+						prunningMethod, minBranchLength, junctionMergeRadius, frame, frameInterval, calibration, START );
+		final SkeletonFrameAnalysis previous = window.peekLast();
+
+		/*
+		 * Track junctions.
+		 */
+
+		final SimpleWeightedGraph< Spot, DefaultWeightedEdge > junctionLinks = ( null == previous )
+				? null
+				: link( new SparseLAPFrameToFrameTracker( spots( previous.junctions, analysis.junctions, frame ), junctionTrackerSettings ) );
+		if ( null != previous && null == junctionLinks )
+			return false;
+		add( junctionModel, analysis.junctions, frame, junctionLinks );
+
+		/*
+		 * Assign to each end-point the track ID of the junction they match. A
+		 * junction track made of a single spot takes the ID of the spot it is
+		 * linked to, so the previous end-points are updated as well.
+		 */
+
+		if ( null != previous )
+			assignJunctionIDs( previous );
+		assignJunctionIDs( analysis );
+
+		final Map< Spot, Double > branchLengths = new HashMap<>( 2 * analysis.endPoints.size() );
+		for ( final Spot endPoint : analysis.endPoints )
+		{
+			final double length = SkeletonFrameAnalysis.branchLength( analysis.spotMap.get( endPoint ), v -> !analysis.vertexMap.containsKey( v ) );
+			endPoint.putFeature( BranchLengthAnalyzerFactory.FEATURE, Double.valueOf( length ) );
+			branchLengths.put( endPoint, Double.valueOf( length ) );
+		}
+
+		/*
+		 * Track end-points.
+		 */
+
+		final SimpleWeightedGraph< Spot, DefaultWeightedEdge > endPointLinks = ( null == previous )
+				? null
+				: link( new SkeletonEndPointTracker( spots( previous.endPoints, analysis.endPoints, frame ), endPointTrackerSettings ) );
+		if ( null != previous && null == endPointLinks )
+			return false;
+		add( endPointModel, analysis.endPoints, frame, endPointLinks );
+
+		/*
+		 * Update the branch track features.
+		 */
+
+		final TrackModel trackModel = endPointModel.getTrackModel();
+		final Map< Spot, BranchTravel > newTravels = new HashMap<>( 2 * analysis.endPoints.size() );
+		for ( final Spot endPoint : analysis.endPoints )
+		{
+			BranchTravel travel = null;
+			if ( null != endPointLinks && endPointLinks.containsVertex( endPoint ) )
+			{
+				for ( final DefaultWeightedEdge edge : endPointLinks.edgesOf( endPoint ) )
+				{
+					final Spot source = endPointLinks.getEdgeSource( edge );
+					if ( source != endPoint )
+						travel = travels.remove( source );
+				}
+			}
+			if ( null == travel )
+				travel = new BranchTravel( frame, branchLengths.get( endPoint ).doubleValue() );
+
+			travel.extend( frame, branchLengths.get( endPoint ).doubleValue() );
+			newTravels.put( endPoint, travel );
+
+			final Integer trackID = trackModel.trackIDOf( endPoint );
+			if ( null == trackID )
+				continue;
+			trackModel.setName( trackID, "Branch_" + trackID );
+			putTrackFeatures( trackID, travel, frame );
+		}
+
+		// The tracks that stopped at the previous frame are now over.
+		for ( final Map.Entry< Spot, BranchTravel > entry : travels.entrySet() )
+		{
+			final Integer trackID = trackModel.trackIDOf( entry.getKey() );
+			if ( null != trackID )
+				putTrackFeatures( trackID, entry.getValue(), frame );
+		}
+		travels = newTravels;
+
+		final TrackModel junctionTrackModel = junctionModel.getTrackModel();
+		for ( final Spot junction : analysis.junctions )
+		{
+			final Integer junctionTrackID = junctionTrackModel.trackIDOf( junction );
+			if ( null != junctionTrackID )
+				junctionTrackModel.setName( junctionTrackID, "Junction_" + junctionTrackID );
+		}
+
+		/*
+		 * Only keep the graphs of the last frames.
+		 */
+
+		window.addLast( analysis );
+		while ( window.size() > windowSize )
+			window.removeFirst();
+
+		nFrames++;
+		processingTime = System.currentTimeMillis() - begin;
+		return true;
+	}
+
+	/**
+	 * Returns the detection results of the frames still in the window. Frames
+	 * before it have no results.
+	 */
+	public synchronized DetectionResults getDetectionResults()
+	{
+		final SkeletonFrameAnalysis[] analyses = new SkeletonFrameAnalysis[ nFrames ];
+		int frame = nFrames - window.size();
+		for ( final SkeletonFrameAnalysis analysis : window )
+			analyses[ frame++ ] = analysis;
+		return SkeletonFrameAnalysis.collect( analyses, START );
+	}
+
+	public Model getJunctionModel()
+	{
+		return junctionModel;
+	}
+
+	public Model getEndPointModel()
+	{
+		return endPointModel;
+	}
+
+	/**
+	 * Returns the number of frames added so far.
+	 */
+	public synchronized int getNFrames()
+	{
+		return nFrames;
+	}
+
+	/**
+	 * Returns the time it took to process the last frame, in ms.
+	 */
+	public synchronized long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	private void assignJunctionIDs( final SkeletonFrameAnalysis analysis )
+	{
+		final TrackModel junctionTrackModel = junctionModel.getTrackModel();
+		for ( final Spot endPoint : analysis.endPoints )
+		{
+			final Spot junction = analysis.junctionMap.get( endPoint );
+			final Integer junctionTrackID = ( null == junction ) ? null : junctionTrackModel.trackIDOf( junction );
+			if ( null == junctionTrackID )
+			{
+				endPoint.setName( "no junction" );
+				continue;
+			}
+
+			endPoint.putFeature( JunctionIDAnalyzerFactory.FEATURE, Double.valueOf( junctionTrackID.doubleValue() ) );
+			endPoint.setName( "->" + junctionTrackID );
+		}
+	}
+
+	private void putTrackFeatures( final Integer trackID, final BranchTravel travel, final int frame )
+	{
+		final FeatureModel featureModel = endPointModel.getFeatureModel();
+		featureModel.putTrackFeature( trackID, TrackDurationAnalyzer.TRACK_START, Double.valueOf( travel.firstFrame * frameInterval ) );
+		featureModel.putTrackFeature( trackID, TrackDurationAnalyzer.TRACK_STOP, Double.valueOf( travel.lastFrame * frameInterval ) );
+		featureModel.putTrackFeature( trackID, TrackDurationAnalyzer.TRACK_DURATION, Double.valueOf( ( travel.lastFrame - travel.firstFrame ) * frameInterval ) );
+		featureModel.putTrackFeature( trackID, TotalBranchTravelAnalyzer.ACCUMULATIVE_BRANCH_DISTANCE, Double.valueOf( travel.accumulativeDistance( frame ) ) );
+		featureModel.putTrackFeature( trackID, TotalBranchTravelAnalyzer.NET_BRANCH_DISTANCE, Double.valueOf( travel.netDistance( frame ) ) );
+	}
+
+	/**
+	 * Runs the specified tracker, and returns its links, or <code>null</code>
+	 * if it failed.
+	 */
+	private SimpleWeightedGraph< Spot, DefaultWeightedEdge > link( final SpotTracker tracker )
+	{
+		tracker.setNumThreads( 1 );
+		if ( !tracker.checkInput() || !tracker.process() )
+		{
+			errorMessage = tracker.getErrorMessage();
+			return null;
+		}
+		return tracker.getResult();
+	}
+
+	/**
+	 * Adds the spots of the specified frame to the specified model, with their
+	 * links to the previous frame.
+	 */
+	private static void add( final Model model, final List< Spot > spots, final int frame, final SimpleWeightedGraph< Spot, DefaultWeightedEdge > links )
+	{
+		model.beginUpdate();
+		try
+		{
+			final Integer key = Integer.valueOf( frame );
+			for ( final Spot spot : spots )
+				model.addSpotTo( spot, key );
+
+			if ( null == links )
+				return;
+
+			for ( final DefaultWeightedEdge edge : links.edgeSet() )
+				model.addEdge( links.getEdgeSource( edge ), links.getEdgeTarget( edge ), links.getEdgeWeight( edge ) );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+	}
+
+	/**
+	 * Returns a spot collection with the spots of the previous and of the
+	 * specified frames only, to link them.
+	 */
+	private static SpotCollection spots( final List< Spot > previous, final List< Spot > current, final int frame )
+	{
+		final SpotCollection spots = new SpotCollection();
+		final Integer previousKey = Integer.valueOf( frame - 1 );
+		for ( final Spot spot : previous )
+			spots.add( spot, previousKey );
+		final Integer key = Integer.valueOf( frame );
+		for ( final Spot spot : current )
+			spots.add( spot, key );
+		spots.setVisible( true );
+		return spots;
+	}
+
+	private static < V > Map< String, V > map( final String key1, final V value1, final String key2, final V value2 )
+	{
+		final Map< String, V > map = new HashMap<>( 4 );
+		map.put( key1, value1 );
+		map.put( key2, value2 );
+		return map;
+	}
+
+	/**
+	 * The branch length history of a branch track, summarized to compute the
+	 * {@link TotalBranchTravelAnalyzer} features as frames are added. The
+	 * first frame added plays the role of the first frame of the movie, the
+	 * last one the role of its last frame.
+	 */
+	private static final class BranchTravel
+	{
+
+		private final int firstFrame;
+
+		private final double firstLength;
+
+		private int lastFrame;
+
+		private double lastLength;
+
+		private double accumulativeDistance;
+
+		private BranchTravel( final int firstFrame, final double firstLength )
+		{
+			this.firstFrame = firstFrame;
+			this.firstLength = firstLength;
+			this.lastFrame = firstFrame;
+			// A branch that appears after the first frame grows from 0.
+			this.lastLength = ( firstFrame == 0 ) ? firstLength : 0.;
+		}
+
+		private void extend( final int frame, final double length )
+		{
+			accumulativeDistance += Math.abs( length - lastLength );
+			lastLength = length;
+			lastFrame = frame;
+		}
+
+		private double accumulativeDistance( final int frame )
+		{
+			// A branch that disappeared goes to 0.
+			return ( lastFrame < frame ) ? accumulativeDistance + lastLength : accumulativeDistance;
+		}
+
+		private double netDistance( final int frame )
+		{
+			final boolean atStart = firstFrame == 0;
+			final boolean atEnd = lastFrame == frame;
+			if ( atStart && atEnd )
+				return lastLength - firstLength;
+			if ( atStart )
+				return -firstLength;
+			if ( atEnd )
+				return lastLength;
+			return 0.;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.scijava.ItemIO;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.features.track.TrackDurationAnalyzer;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.TotalBranchTravelAnalyzer;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.tracking.SkeletonEndPointTrackerFactory;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.Duplicator;
+
+/**
+ * Tracks dendrites during acquisition, by watching a folder in which the
+ * microscope writes one TIFF file per time-point. Files are processed in the
+ * order of their names as soon as they are completely written, and the
+ * command stops when no new file appeared for the specified time. The branch
+ * track features are then saved in the folder.
+ * <p>
+ * The folder is polled rather than watched with a file-system watch service,
+ * which does not report the changes made through network shares.
+ */
+@Plugin( type = Command.class, name = "Dendrite Dynamics Tracker live", menuPath = "Plugins>Tracking>Dendrite Dynamics Tracker live" )
+public class LiveDendriteTrackerCommand extends ContextCommand
+{
+
+	private static final long POLLING_INTERVAL = 1000; // ms
+
+	@Parameter
+	private LogService log;
+
+	@Parameter
+	private StatusService status;
+
+	@Parameter( type = ItemIO.INPUT, label = "Folder to watch", style = "directory" )
+	private File folder;
+
+	@Parameter( type = ItemIO.INPUT, label = "In what channel is the skeleton?" )
+	private int skeletonChannel = 2;
+
+	@Parameter( type = ItemIO.INPUT, label = "Skeletonize this channel (binary mask)?" )
+	private boolean skeletonize = false;
+
+	@Parameter( type = ItemIO.INPUT, label = "In what channel is raw data?" )
+	private int dataChannel = 1;
+
+	@Parameter( type = ItemIO.INPUT, label = "Max linking distance for junctions." )
+	private double junctionMaxLinkingDistance = 5.;
+
+	@Parameter( label = "Cycle-prunning method.", choices = {
+			"No prunning",
+			"Shortest branch",
+			"Lowest intensity pixel",
+			"Lowest intensity branch"
+	} )
+	private String cyclePrunningMethodStr = DendriteDynamicsTrackerCommand.PRUNNING_METHOD_STRINGS[ 1 ];
+
+	@Parameter( type = ItemIO.INPUT, label = "Discard terminal branches shorter than (0 to keep all)." )
+	private double minBranchLength = 0.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Merge connected junctions closer than (0 to keep all)." )
+	private double junctionMergeRadius = 0.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Only re-analyze skeleton parts that changed between frames?" )
+	private boolean incrementalDetection = true;
+
+	@Parameter( type = ItemIO.INPUT, label = "Max linking distance for end-points." )
+	private double endPointMaxLinkingDistance = 5.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Matched cost-factor for end-points." )
+	private double matchedCostFactor = SkeletonEndPointTrackerFactory.DEFAULT_MATCHED_COST_FACTOR.doubleValue();
+
+	@Parameter( type = ItemIO.INPUT, label = "Frame interval." )
+	private double frameInterval = 30.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Keep the skeleton graphs of the last frames.", min = "1" )
+	private int windowSize = 10;
+
+	@Parameter( type = ItemIO.INPUT, label = "Stop when no new file for (s).", min = "1" )
+	private int idleTimeout = 300;
+
+	@Override
+	public void run()
+	{
+		final int prunningMethod = DendriteDynamicsTrackerCommand.getPrunningMethod( cyclePrunningMethodStr );
+		final LiveDendriteTracker tracker = new LiveDendriteTracker(
+				prunningMethod,
+				skeletonize,
+				minBranchLength,
+				junctionMergeRadius,
+				incrementalDetection,
+				junctionMaxLinkingDistance,
+				endPointMaxLinkingDistance,
+				matchedCostFactor,
+				frameInterval,
+				windowSize );
+		final boolean needsData = SkeletonKeyPointsDetector.needsRawData( prunningMethod );
+
+		final Set< String > processed = new HashSet<>();
+		final Map< String, Long > sizes = new HashMap<>();
+		final Duplicator duplicator = new Duplicator();
+		long lastFrameTime = System.currentTimeMillis();
+		while ( !isCanceled() && System.currentTimeMillis() - lastFrameTime < idleTimeout * 1000L )
+		{
+			for ( final File file : findCompleteFiles( processed, sizes ) )
+			{
+				processed.add( file.getName() );
+				final ImagePlus imp = IJ.openImage( file.getAbsolutePath() );
+				if ( null == imp )
+				{
+					log.warn( "Could not open " + file + ", skipping it." );
+					continue;
+				}
+				if ( imp.getNChannels() < Math.max( skeletonChannel, needsData ? dataChannel : 1 ) )
+				{
+					log.warn( "Not enough channels in " + file + ", skipping it." );
+					continue;
+				}
+
+				final ImagePlus skeletonFrame = duplicator.run( imp, skeletonChannel, skeletonChannel, 1, imp.getNSlices(), 1, 1 );
+				final ImagePlus dataFrame = needsData
+						? duplicator.run( imp, dataChannel, dataChannel, 1, imp.getNSlices(), 1, 1 )
+						: null;
+				if ( !tracker.addFrame( skeletonFrame, dataFrame ) )
+				{
+					log.error( "Error while tracking " + file + ": " + tracker.getErrorMessage() );
+					return;
+				}
+
+				final Model endPointModel = tracker.getEndPointModel();
+				final String msg = String.format( "Frame %d (%s): %d branches in %d tracks, processed in %d ms.",
+						tracker.getNFrames(), file.getName(),
+						endPointModel.getSpots().getNSpots( tracker.getNFrames() - 1, false ),
+						endPointModel.getTrackModel().nTracks( false ),
+						tracker.getProcessingTime() );
+				log.info( msg );
+				status.showStatus( msg );
+				lastFrameTime = System.currentTimeMillis();
+			}
+
+			try
+			{
+				Thread.sleep( POLLING_INTERVAL );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		if ( tracker.getNFrames() == 0 )
+		{
+			log.warn( "No frame found in " + folder + "." );
+			return;
+		}
+
+		final File file = new File( folder, "live-branch-tracks.csv" );
+		try
+		{
+			exportTracks( tracker.getEndPointModel(), file );
+			log.info( "Branch track features saved to " + file + "." );
+		}
+		catch ( final IOException e )
+		{
+			log.error( "Could not save the branch track features: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Returns the TIFF files of the folder not processed yet and whose size did
+	 * not change since the previous call, sorted by name. We stop at the first
+	 * file still being written, so that frames are never added out of order.
+	 */
+	private File[] findCompleteFiles( final Set< String > processed, final Map< String, Long > sizes )
+	{
+		final File[] files = folder.listFiles( ( dir, name ) -> !processed.contains( name )
+				&& ( name.toLowerCase().endsWith( ".tif" ) || name.toLowerCase().endsWith( ".tiff" ) ) );
+		if ( null == files )
+			return new File[ 0 ];
+
+		Arrays.sort( files );
+		int nComplete = 0;
+		for ( final File file : files )
+		{
+			final Long size = Long.valueOf( file.length() );
+			final Long previousSize = sizes.put( file.getName(), size );
+			if ( !size.equals( previousSize ) )
+				break;
+			nComplete++;
+		}
+		return Arrays.copyOf( files, nComplete );
+	}
+
+	private static void exportTracks( final Model model, final File file ) throws IOException
+	{
+		final String[] features = new String[] {
+				TrackDurationAnalyzer.TRACK_START,
+				TrackDurationAnalyzer.TRACK_STOP,
+				TrackDurationAnalyzer.TRACK_DURATION,
+				TotalBranchTravelAnalyzer.ACCUMULATIVE_BRANCH_DISTANCE,
+				TotalBranchTravelAnalyzer.NET_BRANCH_DISTANCE };
+
+		final FeatureModel featureModel = model.getFeatureModel();
+		try (NumericCSVWriter writer = new NumericCSVWriter( new FileWriter( file ) ))
+		{
+			writer.write( "Name" ).write( "TrackID" );
+			for ( final String feature : features )
+				writer.write( feature );
+			writer.endLine();
+
+			for ( final Integer trackID : model.getTrackModel().trackIDs( false ) )
+			{
+				writer.write( model.getTrackModel().name( trackID ) ).write( trackID.intValue() );
+				for ( final String feature : features )
+				{
+					final Double val = featureModel.getTrackFeature( trackID, feature );
+					writer.write( null == val ? Double.NaN : val.doubleValue() );
+				}
+				writer.endLine();
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettingsIO;
+import fiji.plugin.trackmate.io.TmXmlReader;
+import ij.ImagePlus;
+
+/**
+ * Reopens the results of the Dendrite Dynamics Tracker saved in a TrackMate
+ * XML file. If the sidecar file written next to it is found, the junction
+ * model and the skeleton graphs are restored too, so that the actions that
+ * need them do not have to start again from raw data.
+ */
+@Plugin( type = Command.class, name = "Load Dendrite Dynamics Tracker results", menuPath = "Plugins>Tracking>Load Dendrite Dynamics Tracker results" )
+public class LoadDendriteDynamicsSessionCommand extends ContextCommand
+{
+
+	@Parameter
+	private LogService log;
+
+	@Parameter( type = ItemIO.INPUT, label = "TrackMate file" )
+	private File file;
+
+	@Override
+	public void run()
+	{
+		final TmXmlReader reader = new TmXmlReader( file );
+		if ( !reader.isReadingOk() )
+		{
+			log.error( "Could not read " + file + ":\n" + reader.getErrorMessage() );
+			return;
+		}
+
+		final Model model = reader.getModel();
+		if ( !reader.isReadingOk() )
+		{
+			log.error( "Could not read the model in " + file + ":\n" + reader.getErrorMessage() );
+			return;
+		}
+
+		final ImagePlus imp = reader.readImage();
+		if ( null == imp )
+		{
+			log.error( "Could not open the image of " + file + ":\n" + reader.getErrorMessage() );
+			return;
+		}
+		final Settings settings = reader.readSettings( imp );
+		imp.show();
+
+		final File sidecar = DendriteDynamicsSessionIO.sidecarFileFor( file );
+		if ( sidecar.exists() )
+		{
+			try
+			{
+				DendriteDynamicsSession.register( model, DendriteDynamicsSessionIO.read( sidecar, model ) );
+			}
+			catch ( final IOException e )
+			{
+				log.warn( "Could not read the Dendrite Dynamics Tracker data in " + sidecar + ": " + e.getMessage() );
+			}
+		}
+		else
+		{
+			log.info( "No Dendrite Dynamics Tracker data found next to " + file + ". Only the tracks are loaded." );
+		}
+
+		DisplaySettings displaySettings = reader.getDisplaySettings();
+		if ( null == displaySettings )
+			displaySettings = DisplaySettingsIO.readUserDefault();
+		DendriteDynamicsTrackerCommand.display( new TrackMate( model, settings ), imp, displaySettings );
+	}
+}
@@ -0,0 +1,292 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * A read-only virtual stack backed by an uncompressed TIFF file. Each plane
+ * is memory-mapped only when it is requested and copied into a new
+ * processor, so only the planes being processed are held in memory. It can
+ * be read from several threads at once.
+ * <p>
+ * Only uncompressed 8-bit, 16-bit and 32-bit float grayscale TIFF files are
+ * supported, in either byte order.
+ */
+public class MappedTiffVirtualStack extends VirtualStack
+{
+
+	private final File file;
+
+	private final FileChannel channel;
+
+	private final FileInfo info;
+
+	private final long[] offsets;
+
+	private final int bytesPerPixel;
+
+	private MappedTiffVirtualStack( final File file, final FileChannel channel, final FileInfo info, final long[] offsets )
+	{
+		super( info.width, info.height, null, file.getParent() );
+		this.file = file;
+		this.channel = channel;
+		this.info = info;
+		this.offsets = offsets;
+		this.bytesPerPixel = info.getBytesPerPixel();
+	}
+
+	/**
+	 * Opens the specified TIFF file as a memory-mapped hyperstack. Its
+	 * dimensions and calibration are read from the ImageJ metadata if there
+	 * are some.
+	 *
+	 * @param file
+	 *            the TIFF file.
+	 * @return a new {@link ImagePlus}.
+	 * @throws IOException
+	 *             if the file cannot be read, or is compressed or of an
+	 *             unsupported pixel type.
+	 */
+	public static ImagePlus open( final File file ) throws IOException
+	{
+		final FileInfo[] infos = new TiffDecoder( file.getParent() + File.separator, file.getName() ).getTiffInfo();
+		if ( null == infos || infos.length == 0 )
+			throw new IOException( "Could not read TIFF metadata from " + file );
+
+		final FileInfo info = infos[ 0 ];
+		if ( info.compression > FileInfo.COMPRESSION_NONE )
+			throw new IOException( "Compressed TIFF files cannot be memory-mapped: " + file );
+		if ( info.fileType != FileInfo.GRAY8
+				&& info.fileType != FileInfo.GRAY16_UNSIGNED
+				&& info.fileType != FileInfo.GRAY16_SIGNED
+				&& info.fileType != FileInfo.GRAY32_FLOAT )
+			throw new IOException( "Unsupported pixel type in " + file + ". Only 8-bit, 16-bit and 32-bit float grayscale images are supported." );
+
+		/*
+		 * ImageJ stacks store all planes contiguously and describe them with
+		 * one IFD. Other TIFF stacks have one IFD per plane.
+		 */
+		final long planeBytes = ( long ) info.width * info.height * info.getBytesPerPixel();
+		final long[] offsets;
+		if ( infos.length == 1 )
+		{
+			offsets = new long[ Math.max( 1, info.nImages ) ];
+			for ( int i = 0; i < offsets.length; i++ )
+				offsets[ i ] = info.getOffset() + i * ( planeBytes + info.gapBetweenImages );
+		}
+		else
+		{
+			offsets = new long[ infos.length ];
+			for ( int i = 0; i < infos.length; i++ )
+			{
+				if ( infos[ i ].width != info.width || infos[ i ].height != info.height || infos[ i ].fileType != info.fileType )
+					throw new IOException( "All planes must have the same size and type in " + file );
+				if ( infos[ i ].compression > FileInfo.COMPRESSION_NONE )
+					throw new IOException( "Compressed TIFF files cannot be memory-mapped: " + file );
+				offsets[ i ] = infos[ i ].getOffset();
+			}
+		}
+
+		final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+		final MappedTiffVirtualStack stack = new MappedTiffVirtualStack( file, channel, info, offsets );
+		final ImagePlus imp = new ImagePlus( file.getName(), stack );
+		imp.setFileInfo( info );
+
+		final Properties props = parseDescription( info.description );
+		final int nChannels = getInt( props, "channels", 1 );
+		final int nSlices = getInt( props, "slices", 1 );
+		final int nFrames = getInt( props, "frames", offsets.length / ( nChannels * nSlices ) );
+		if ( nChannels * nSlices * nFrames == offsets.length )
+		{
+			imp.setDimensions( nChannels, nSlices, nFrames );
+			imp.setOpenAsHyperStack( true );
+		}
+
+		final Calibration calibration = imp.getCalibration();
+		calibration.pixelWidth = info.pixelWidth;
+		calibration.pixelHeight = info.pixelHeight;
+		calibration.pixelDepth = getDouble( props, "spacing", info.pixelDepth );
+		calibration.frameInterval = getDouble( props, "finterval", info.frameInterval );
+		if ( null != info.unit )
+			calibration.setUnit( info.unit );
+		if ( null != props.getProperty( "tunit" ) )
+			calibration.setTimeUnit( props.getProperty( "tunit" ) );
+		return imp;
+	}
+
+	@Override
+	public ImageProcessor getProcessor( final int n )
+	{
+		final int width = info.width;
+		final int height = info.height;
+		final int nPixels = width * height;
+		final MappedByteBuffer buffer;
+		try
+		{
+			buffer = channel.map( FileChannel.MapMode.READ_ONLY, offsets[ n - 1 ], ( long ) nPixels * bytesPerPixel );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Could not read plane " + n + " of " + file + ": " + e.getMessage(), e );
+		}
+		buffer.order( info.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
+
+		switch ( info.fileType )
+		{
+		case FileInfo.GRAY8:
+		{
+			final byte[] pixels = new byte[ nPixels ];
+			buffer.get( pixels );
+			return new ByteProcessor( width, height, pixels );
+		}
+		case FileInfo.GRAY16_SIGNED:
+		{
+			final short[] pixels = new short[ nPixels ];
+			buffer.asShortBuffer().get( pixels );
+			// Shift signed values to the unsigned range, like ImageJ does.
+			for ( int i = 0; i < nPixels; i++ )
+				pixels[ i ] = ( short ) ( pixels[ i ] + 32768 );
+			return new ShortProcessor( width, height, pixels, null );
+		}
+		case FileInfo.GRAY16_UNSIGNED:
+		{
+			final short[] pixels = new short[ nPixels ];
+			buffer.asShortBuffer().get( pixels );
+			return new ShortProcessor( width, height, pixels, null );
+		}
+		default:
+		{
+			final float[] pixels = new float[ nPixels ];
+			buffer.asFloatBuffer().get( pixels );
+			return new FloatProcessor( width, height, pixels );
+		}
+		}
+	}
+
+	@Override
+	public Object getPixels( final int n )
+	{
+		return getProcessor( n ).getPixels();
+	}
+
+	@Override
+	public int getSize()
+	{
+		return offsets.length;
+	}
+
+	@Override
+	public String getSliceLabel( final int n )
+	{
+		return null;
+	}
+
+	@Override
+	public int getBitDepth()
+	{
+		return bytesPerPixel * 8;
+	}
+
+	@Override
+	public void deleteSlice( final int n )
+	{
+		throw new UnsupportedOperationException( "Memory-mapped stacks are read-only." );
+	}
+
+	/**
+	 * Closes the underlying file.
+	 */
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	private static Properties parseDescription( final String description )
+	{
+		final Properties props = new Properties();
+		if ( null == description || !description.startsWith( "ImageJ" ) )
+			return props;
+
+		try
+		{
+			props.load( new StringReader( description ) );
+		}
+		catch ( final IOException e )
+		{
+			// Cannot happen with a StringReader.
+		}
+		return props;
+	}
+
+	private static int getInt( final Properties props, final String key, final int defaultValue )
+	{
+		try
+		{
+			return Integer.parseInt( props.getProperty( key, String.valueOf( defaultValue ) ).trim() );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return defaultValue;
+		}
+	}
+
+	private static double getDouble( final Properties props, final String key, final double defaultValue )
+	{
+		try
+		{
+			return Double.parseDouble( props.getProperty( key, String.valueOf( defaultValue ) ).trim() );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A minimal CSV writer that formats numbers directly in a reusable character
+ * buffer, so that writing a line of numbers does not create any String.
+ * <p>
+ * The output is identical to what an opencsv <code>CSVWriter</code> configured
+ * with the default separator, no quote character, the default escape character
+ * and the default line end would produce: numbers are formatted as with
+ * {@link Double#toString(double)} and {@link Integer#toString(int)}, text cells
+ * have the separator, quote and new-line characters escaped, and
+ * <code>null</code> cells are written as empty cells.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class NumericCSVWriter implements Closeable, Flushable
+{
+
+	private static final char SEPARATOR = ',';
+
+	private static final char ESCAPE = '"';
+
+	private static final char LINE_END = '\n';
+
+	private final Writer out;
+
+	private final StringBuilder line;
+
+	private char[] buffer;
+
+	private boolean firstCell;
+
+	public NumericCSVWriter( final Writer out )
+	{
+		this.out = out;
+		this.line = new StringBuilder( 256 );
+		this.buffer = new char[ 256 ];
+		this.firstCell = true;
+	}
+
+	public NumericCSVWriter write( final int val )
+	{
+		separate();
+		line.append( val );
+		return this;
+	}
+
+	public NumericCSVWriter write( final double val )
+	{
+		separate();
+		line.append( val );
+		return this;
+	}
+
+	public NumericCSVWriter write( final String str )
+	{
+		separate();
+		if ( null == str )
+			return this;
+
+		for ( int i = 0; i < str.length(); i++ )
+		{
+			final char c = str.charAt( i );
+			if ( c == ESCAPE || c == SEPARATOR || c == LINE_END )
+				line.append( ESCAPE );
+			line.append( c );
+		}
+		return this;
+	}
+
+	/**
+	 * Writes the specified text cells as a complete line.
+	 */
+	public void writeLine( final String[] cells ) throws IOException
+	{
+		for ( final String cell : cells )
+			write( cell );
+		endLine();
+	}
+
+	/**
+	 * Terminates the current line and sends it to the underlying writer.
+	 */
+	public void endLine() throws IOException
+	{
+		line.append( LINE_END );
+		final int length = line.length();
+		if ( buffer.length < length )
+			buffer = new char[ Math.max( length, 2 * buffer.length ) ];
+		line.getChars( 0, length, buffer, 0 );
+		out.write( buffer, 0, length );
+		line.setLength( 0 );
+		firstCell = true;
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		out.close();
+	}
+
+	private void separate()
+	{
+		if ( firstCell )
+			firstCell = false;
+		else
+			line.append( SEPARATOR );
+	}
+}
@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+
+/**
+ * Opens an uncompressed TIFF file as a memory-mapped virtual hyperstack, so
+ * that the Dendrite Dynamics Tracker can process movies larger than the
+ * available memory. Planes are only read when the detector needs them. The
+ * file is closed when the image is closed.
+ * <p>
+ * The pruned-skeleton export still packs the whole skeleton channel in
+ * memory, at one bit per pixel.
+ */
+@Plugin( type = Command.class, name = "Open TIFF memory-mapped for Dendrite Dynamics Tracker", menuPath = "Plugins>Tracking>Open TIFF memory-mapped for Dendrite Dynamics Tracker" )
+public class OpenMappedTiffCommand extends ContextCommand
+{
+
+	@Parameter
+	private LogService log;
+
+	@Parameter( type = ItemIO.INPUT, label = "Uncompressed TIFF file" )
+	private File file;
+
+	@Override
+	public void run()
+	{
+		final ImagePlus imp;
+		try
+		{
+			imp = MappedTiffVirtualStack.open( file );
+		}
+		catch ( final IOException e )
+		{
+			log.error( "Could not open " + file + ": " + e.getMessage() );
+			return;
+		}
+
+		// Release the file, and the lock on it on Windows, with the image.
+		final MappedTiffVirtualStack stack = ( MappedTiffVirtualStack ) imp.getStack();
+		ImagePlus.addImageListener( new ImageListener()
+		{
+			@Override
+			public void imageOpened( final ImagePlus image )
+			{}
+
+			@Override
+			public void imageUpdated( final ImagePlus image )
+			{}
+
+			@Override
+			public void imageClosed( final ImagePlus image )
+			{
+				if ( image != imp )
+					return;
+
+				ImagePlus.removeImageListener( this );
+				try
+				{
+					stack.close();
+				}
+				catch ( final IOException e )
+				{
+					log.warn( "Could not close " + file + ": " + e.getMessage() );
+				}
+			}
+		} );
+		imp.show();
+	}
+}
@@ -0,0 +1,369 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.awt.Rectangle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import net.imglib2.multithreading.SimpleMultiThreading;
+
+/**
+ * A skeleton movie stored with one bit per pixel.
+ * <p>
+ * Each row of each slice is packed in whole <code>long</code> words, the bit
+ * <code>x % 64</code> of the word <code>x / 64</code> being the pixel at
+ * <code>x</code>. Frames are stored in separate arrays, so different frames
+ * can be modified concurrently.
+ */
+public class PackedSkeleton
+{
+
+	private final int width;
+
+	private final int height;
+
+	private final int depth;
+
+	private final int nFrames;
+
+	private final int wordsPerRow;
+
+	private final long[][] words;
+
+	/**
+	 * Creates an empty skeleton movie.
+	 */
+	public PackedSkeleton( final int width, final int height, final int depth, final int nFrames )
+	{
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.nFrames = nFrames;
+		this.wordsPerRow = ( width + 63 ) >>> 6;
+		this.words = new long[ nFrames ][ wordsPerRow * height * depth ];
+	}
+
+	/**
+	 * Packs one channel of the specified image. Any non-zero pixel is part of
+	 * the skeleton.
+	 *
+	 * @param imp
+	 *            the image.
+	 * @param channel
+	 *            the channel, 1-based.
+	 * @param numThreads
+	 *            how many threads to use.
+	 * @return a new packed skeleton.
+	 */
+	public static PackedSkeleton fromImage( final ImagePlus imp, final int channel, final int numThreads )
+	{
+		return fromImage( imp, channel, new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() ), numThreads );
+	}
+
+	/**
+	 * Packs a region of one channel of the specified image. Any non-zero pixel
+	 * is part of the skeleton.
+	 *
+	 * @param imp
+	 *            the image.
+	 * @param channel
+	 *            the channel, 1-based.
+	 * @param bounds
+	 *            the region to pack. Must be in the image.
+	 * @param numThreads
+	 *            how many threads to use.
+	 * @return a new packed skeleton, with the size of the region.
+	 */
+	public static PackedSkeleton fromImage( final ImagePlus imp, final int channel, final Rectangle bounds, final int numThreads )
+	{
+		return fromImage( imp, channel, bounds, numThreads, null );
+	}
+
+	/**
+	 * Packs a region of one channel of the specified image, and calls the
+	 * specified consumer on each frame as soon as it is packed, from the
+	 * packing thread. Per-frame work done there runs in parallel with the
+	 * packing of the other frames.
+	 *
+	 * @param imp
+	 *            the image.
+	 * @param channel
+	 *            the channel, 1-based.
+	 * @param bounds
+	 *            the region to pack. Must be in the image.
+	 * @param numThreads
+	 *            how many threads to use.
+	 * @param onFramePacked
+	 *            called with the skeleton and the 0-based frame once this
+	 *            frame is packed. May be <code>null</code>.
+	 * @return a new packed skeleton, with the size of the region.
+	 */
+	public static PackedSkeleton fromImage(
+			final ImagePlus imp,
+			final int channel,
+			final Rectangle bounds,
+			final int numThreads,
+			final ObjIntConsumer< PackedSkeleton > onFramePacked )
+	{
+		final int nSlices = imp.getNSlices();
+		final int nFramesImp = imp.getNFrames();
+		final PackedSkeleton skeleton = new PackedSkeleton( bounds.width, bounds.height, nSlices, nFramesImp );
+		final ImageStack stack = imp.getStack();
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		for ( int ithread = 0; ithread < threads.length; ithread++ )
+		{
+			threads[ ithread ] = new Thread( "Skeleton packing thread " + ( 1 + ithread ) + "/" + threads.length )
+			{
+				@Override
+				public void run()
+				{
+					for ( int t = ai.getAndIncrement(); t < nFramesImp; t = ai.getAndIncrement() )
+					{
+						for ( int z = 0; z < nSlices; z++ )
+							skeleton.pack( stack.getProcessor( imp.getStackIndex( channel, z + 1, t + 1 ) ), bounds.x, bounds.y, z, t );
+						if ( null != onFramePacked )
+							onFramePacked.accept( skeleton, t );
+					}
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+		return skeleton;
+	}
+
+	/**
+	 * Replaces the specified frame by the content of the specified stack,
+	 * which must have the size of this skeleton.
+	 */
+	public void setFrame( final int t, final ImageStack stack )
+	{
+		for ( int z = 0; z < depth; z++ )
+			pack( stack.getProcessor( z + 1 ), 0, 0, z, t );
+	}
+
+	private void pack( final ImageProcessor ip, final int x0, final int y0, final int z, final int t )
+	{
+		final long[] frame = words[ t ];
+		for ( int y = 0; y < height; y++ )
+		{
+			final int row = rowIndex( y, z );
+			for ( int w = 0; w < wordsPerRow; w++ )
+			{
+				long word = 0L;
+				final int xstart = w << 6;
+				final int xend = Math.min( width, xstart + 64 );
+				for ( int x = xstart; x < xend; x++ )
+					if ( ip.getf( x0 + x, y0 + y ) != 0f )
+						word |= 1L << ( x - xstart );
+				frame[ row + w ] = word;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the specified frame by the skeleton of its pixels.
+	 */
+	public void skeletonize( final int t )
+	{
+		final ImagePlus frame = new ImagePlus( "", toStack( t ) );
+		SkeletonFrameAnalysis.skeletonize( frame );
+		setFrame( t, frame.getStack() );
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	public int getNFrames()
+	{
+		return nFrames;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified pixel is part of the
+	 * skeleton. Pixels out of the skeleton bounds are not.
+	 */
+	public boolean get( final int x, final int y, final int z, final int t )
+	{
+		if ( x < 0 || y < 0 || z < 0 || x >= width || y >= height || z >= depth )
+			return false;
+		return ( words[ t ][ rowIndex( y, z ) + ( x >>> 6 ) ] & ( 1L << ( x & 63 ) ) ) != 0L;
+	}
+
+	/**
+	 * Adds or removes the specified pixel from the skeleton. Pixels out of the
+	 * skeleton bounds are ignored.
+	 */
+	public void set( final int x, final int y, final int z, final int t, final boolean value )
+	{
+		if ( x < 0 || y < 0 || z < 0 || x >= width || y >= height || z >= depth )
+			return;
+		final int index = rowIndex( y, z ) + ( x >>> 6 );
+		if ( value )
+			words[ t ][ index ] |= 1L << ( x & 63 );
+		else
+			words[ t ][ index ] &= ~( 1L << ( x & 63 ) );
+	}
+
+	/**
+	 * Returns the number of skeleton pixels in the specified frame.
+	 */
+	public long count( final int t )
+	{
+		long count = 0L;
+		for ( final long word : words[ t ] )
+			count += Long.bitCount( word );
+		return count;
+	}
+
+	/**
+	 * Returns the words of the specified frame, indexed by
+	 * <code>(z * height + y) * wordsPerRow + x / 64</code>.
+	 */
+	long[] words( final int t )
+	{
+		return words[ t ];
+	}
+
+	int wordsPerRow()
+	{
+		return wordsPerRow;
+	}
+
+	int rowIndex( final int y, final int z )
+	{
+		return ( z * height + y ) * wordsPerRow;
+	}
+
+	/**
+	 * Returns one slice of the specified frame as a binary 8-bit image, with
+	 * skeleton pixels set to 255.
+	 */
+	public ByteProcessor toProcessor( final int z, final int t )
+	{
+		final long[] frame = words[ t ];
+		final byte[] pixels = new byte[ width * height ];
+		for ( int y = 0; y < height; y++ )
+		{
+			final int row = rowIndex( y, z );
+			for ( int w = 0; w < wordsPerRow; w++ )
+			{
+				long word = frame[ row + w ];
+				while ( word != 0L )
+				{
+					final int x = ( w << 6 ) + Long.numberOfTrailingZeros( word );
+					pixels[ y * width + x ] = ( byte ) 255;
+					word &= word - 1L;
+				}
+			}
+		}
+		return new ByteProcessor( width, height, pixels );
+	}
+
+	/**
+	 * Returns the specified frame as a binary 8-bit stack, that can be given
+	 * to AnalyzeSkeleton.
+	 */
+	public ImageStack toStack( final int t )
+	{
+		final ImageStack stack = new ImageStack( width, height );
+		for ( int z = 0; z < depth; z++ )
+			stack.addSlice( toProcessor( z, t ) );
+		return stack;
+	}
+
+	/**
+	 * Returns a 8-bit hyperstack view of this skeleton, with 1 channel. Slices
+	 * are unpacked when they are displayed or saved, so the view does not
+	 * take more memory than this skeleton.
+	 */
+	public ImagePlus toImagePlus( final String title )
+	{
+		final ImagePlus imp = new ImagePlus( title, new PackedSkeletonStack() );
+		imp.setDimensions( 1, depth, nFrames );
+		imp.setOpenAsHyperStack( true );
+		return imp;
+	}
+
+	private final class PackedSkeletonStack extends VirtualStack
+	{
+
+		PackedSkeletonStack()
+		{
+			super( width, height, null, null );
+		}
+
+		@Override
+		public ImageProcessor getProcessor( final int n )
+		{
+			return toProcessor( ( n - 1 ) % depth, ( n - 1 ) / depth );
+		}
+
+		@Override
+		public int getSize()
+		{
+			return depth * nFrames;
+		}
+
+		@Override
+		public String getSliceLabel( final int n )
+		{
+			return "t" + ( 1 + ( n - 1 ) / depth );
+		}
+
+		@Override
+		public int getBitDepth()
+		{
+			return 8;
+		}
+	}
+}
@@ -0,0 +1,556 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.Edge;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.SkeletonResult;
+import sc.fiji.analyzeSkeleton.Vertex;
+import sc.fiji.skeletonize3D.Skeletonize3D_;
+
+/**
+ * The junctions and end-points found in the skeleton of a single frame, with
+ * the graphs they were extracted from. Shared by the skeleton key-point
+ * detectors, whatever their input is.
+ */
+class SkeletonFrameAnalysis
+{
+
+	private static final boolean PRUNE_ENDS = false; // Don't prune branch ends.
+
+	private static final boolean SHORT_PATH = false; // Don't compute shortest path.
+
+	private static final boolean SILENT = true;
+
+	private static final boolean VERBOSE = false;
+
+	/**
+	 * Junctions found in this frame.
+	 */
+	final List< Spot > junctions = new ArrayList<>();
+
+	/**
+	 * End-points found in this frame.
+	 */
+	final List< Spot > endPoints = new ArrayList<>();
+
+	/**
+	 * Maps a graph vertex to the spot created from it.
+	 */
+	final Map< Vertex, Spot > vertexMap = new HashMap<>();
+
+	/**
+	 * Maps a spot to the graph vertex that created it.
+	 */
+	final Map< Spot, Vertex > spotMap = new HashMap<>();
+
+	/**
+	 * Maps an end-point to its junction.
+	 */
+	final Map< Spot, Spot > junctionMap = new HashMap<>();
+
+	final Graph[] graphs;
+
+	final List< Point > endPointPixels;
+
+	private SkeletonFrameAnalysis( final Graph[] graphs, final List< Point > endPointPixels )
+	{
+		this.graphs = graphs;
+		this.endPointPixels = endPointPixels;
+	}
+
+	/**
+	 * Analyzes the skeleton of one frame.
+	 *
+	 * @param skelAnalyzer
+	 *            the analyzer to use. Not thread-safe, use one per thread.
+	 * @param skeletonFrame
+	 *            the skeleton of this frame, or the binary mask of this frame
+	 *            if <code>skeletonize</code> is <code>true</code>.
+	 * @param skeletonize
+	 *            if <code>true</code>, the mask is skeletonized in place
+	 *            before being analyzed.
+	 * @param origImpFrame
+	 *            the raw data of this frame, or <code>null</code> if the
+	 *            prunning method does not need it.
+	 * @param prunningMethod
+	 *            the cycle prunning method.
+	 * @param minBranchLength
+	 *            the length below which a terminal branch is considered to be
+	 *            a spur and is discarded with its end-point. 0 to keep all
+	 *            the branches.
+	 * @param junctionMergeRadius
+	 *            the distance below which junctions directly connected to
+	 *            each other are merged in a single spot. 0 to keep all the
+	 *            junctions.
+	 * @param frame
+	 *            the frame, 0-based.
+	 * @param frameInterval
+	 *            the frame interval.
+	 * @param calibration
+	 *            the pixel sizes in X, Y and Z.
+	 * @param start
+	 *            the pixel position of the frame images in the source.
+	 * @return a new analysis.
+	 */
+	static SkeletonFrameAnalysis analyze(
+			final AnalyzeSkeleton_ skelAnalyzer,
+			final ImagePlus skeletonFrame,
+			final boolean skeletonize,
+			final ImagePlus origImpFrame,
+			final int prunningMethod,
+			final double minBranchLength,
+			final double junctionMergeRadius,
+			final int frame,
+			final double frameInterval,
+			final double[] calibration,
+			final int[] start )
+	{
+		if ( skeletonize )
+			skeletonize( skeletonFrame );
+
+		final SkeletonResult result = run( skelAnalyzer, skeletonFrame, origImpFrame, prunningMethod );
+		return build( result.getGraph(), result.getListOfEndPoints(),
+				minBranchLength, junctionMergeRadius, frame, frameInterval, calibration, start );
+	}
+
+	/**
+	 * Runs the skeleton analysis on one frame.
+	 */
+	static SkeletonResult run(
+			final AnalyzeSkeleton_ skelAnalyzer,
+			final ImagePlus skeletonFrame,
+			final ImagePlus origImpFrame,
+			final int prunningMethod )
+	{
+		skelAnalyzer.setup( "", skeletonFrame );
+		return skelAnalyzer.run( prunningMethod, PRUNE_ENDS, SHORT_PATH, origImpFrame, SILENT, VERBOSE, null );
+	}
+
+	/**
+	 * Creates the junction and end-point spots of one frame from its skeleton
+	 * graphs. See
+	 * {@link #analyze(AnalyzeSkeleton_, ImagePlus, boolean, ImagePlus, int, double, double, int, double, double[], int[])}
+	 * for parameters.
+	 *
+	 * @param graphs
+	 *            the skeleton graphs of this frame.
+	 * @param endPointPixels
+	 *            the end-point pixels of this frame.
+	 * @return a new analysis.
+	 */
+	static SkeletonFrameAnalysis build(
+			final Graph[] graphs,
+			final List< Point > endPointPixels,
+			final double minBranchLength,
+			final double junctionMergeRadius,
+			final int frame,
+			final double frameInterval,
+			final double[] calibration,
+			final int[] start )
+	{
+		final SkeletonFrameAnalysis analysis = new SkeletonFrameAnalysis( graphs, endPointPixels );
+		for ( final Graph graph : graphs )
+		{
+			final List< Vertex > vertices = graph.getVertices();
+
+			/*
+			 * Discard spurs, before they make spots.
+			 */
+
+			final Set< Vertex > discarded = ( minBranchLength > 0. )
+					? findSpurs( vertices, minBranchLength )
+					: Collections.emptySet();
+
+			/*
+			 * Find junctions.
+			 */
+
+			final List< Vertex > junctionVertices = new ArrayList<>();
+			for ( final Vertex vertex : vertices )
+				if ( vertex.getBranches().size() != 1 && !discarded.contains( vertex ) )
+					junctionVertices.add( vertex );
+
+			for ( final List< Vertex > cluster : clusterJunctions( junctionVertices, junctionMergeRadius, calibration ) )
+			{
+				final List< Point > points = new ArrayList<>();
+				boolean isJunction = false;
+				for ( final Vertex vertex : cluster )
+				{
+					points.addAll( vertex.getPoints() );
+					isJunction |= vertex.getBranches().size() > 1;
+				}
+
+				// Isolated vertices, without branches, are stored with the
+				// junctions but keep the end-point radius and quality.
+				final Spot spot = toSpot( points, isJunction, calibration, start );
+				spot.putFeature( Spot.POSITION_T, frame * frameInterval );
+				for ( final Vertex vertex : cluster )
+					analysis.vertexMap.put( vertex, spot );
+				analysis.spotMap.put( spot, cluster.get( 0 ) );
+
+				analysis.junctions.add( spot );
+			}
+
+			/*
+			 * Find end points and link them to their junction.
+			 */
+
+			for ( final Vertex vertex : vertices )
+			{
+				if ( vertex.getBranches().size() != 1 || discarded.contains( vertex ) )
+					continue;
+
+				final Spot spot = toSpot( vertex.getPoints(), false, calibration, start );
+				spot.putFeature( Spot.POSITION_T, frame * frameInterval );
+				analysis.vertexMap.put( vertex, spot );
+				analysis.spotMap.put( spot, vertex );
+
+				analysis.endPoints.add( spot );
+
+				// Find matching junction.
+				final List< Edge > path = branchPath( vertex, discarded::contains );
+				if ( path.isEmpty() )
+					continue;
+
+				final Vertex oppositeVertex = oppositeEnd( vertex, path );
+				final Spot junctionSpot = analysis.vertexMap.get( oppositeVertex );
+				if ( null != junctionSpot )
+					analysis.junctionMap.put( spot, junctionSpot );
+
+			}
+
+		}
+		return analysis;
+	}
+
+	/**
+	 * Replaces the content of the specified frame by the skeleton of its
+	 * non-zero pixels.
+	 *
+	 * @param frame
+	 *            the frame to skeletonize, of any type, 2D or 3D.
+	 */
+	static void skeletonize( final ImagePlus frame )
+	{
+		final ImageStack source = frame.getStack();
+		final int width = source.getWidth();
+		final int height = source.getHeight();
+		final ImageStack binary = new ImageStack( width, height );
+		for ( int z = 1; z <= source.getSize(); z++ )
+		{
+			final ImageProcessor ip = source.getProcessor( z );
+			final byte[] pixels = new byte[ width * height ];
+			for ( int i = 0; i < pixels.length; i++ )
+				if ( ip.getf( i ) != 0f )
+					pixels[ i ] = ( byte ) 255;
+			binary.addSlice( new ByteProcessor( width, height, pixels ) );
+		}
+		frame.setStack( binary );
+
+		final Skeletonize3D_ skeletonizer = new Skeletonize3D_();
+		skeletonizer.setup( "", frame );
+		skeletonizer.run( null );
+	}
+
+	/**
+	 * Gathers the analyses of all frames in a single detection result.
+	 *
+	 * @param analyses
+	 *            the analysis of each frame, indexed by frame.
+	 * @param start
+	 *            the pixel position of the frame images in the source.
+	 * @return a new detection result.
+	 */
+	static DetectionResults collect( final SkeletonFrameAnalysis[] analyses, final int[] start )
+	{
+		final Map< Spot, Spot > junctionMap = new HashMap<>();
+		final SpotCollection junctionsSpots = new SpotCollection();
+		final SpotCollection endPointSpots = new SpotCollection();
+		final Map< Spot, Vertex > spotMap = new HashMap<>();
+		final Map< Integer, Map< Vertex, Spot > > vertexMaps = new HashMap<>();
+		final Map< Integer, Graph[] > graphs = new HashMap<>();
+		final Map< Integer, List< Point > > endPointPixels = new HashMap<>();
+
+		for ( int frame = 0; frame < analyses.length; frame++ )
+		{
+			final SkeletonFrameAnalysis analysis = analyses[ frame ];
+			if ( null == analysis )
+				continue;
+
+			final Integer key = Integer.valueOf( frame );
+			junctionMap.putAll( analysis.junctionMap );
+			junctionsSpots.put( key, analysis.junctions );
+			endPointSpots.put( key, analysis.endPoints );
+			spotMap.putAll( analysis.spotMap );
+			vertexMaps.put( key, analysis.vertexMap );
+			graphs.put( key, analysis.graphs );
+			endPointPixels.put( key, analysis.endPointPixels );
+		}
+		junctionsSpots.setVisible( true );
+		endPointSpots.setVisible( true );
+
+		return new DetectionResults(
+				junctionsSpots,
+				endPointSpots,
+				junctionMap,
+				spotMap,
+				vertexMaps,
+				graphs,
+				endPointPixels,
+				start );
+	}
+
+	/**
+	 * Returns the edges from the specified end-point to the first vertex that
+	 * was not discarded, walking through the junctions that were left with two
+	 * branches once their spurs were discarded.
+	 *
+	 * @param endPoint
+	 *            the end-point vertex.
+	 * @param discarded
+	 *            whether a vertex was discarded at detection.
+	 * @return the path, possibly empty.
+	 */
+	static List< Edge > branchPath( final Vertex endPoint, final Predicate< Vertex > discarded )
+	{
+		final List< Edge > path = new ArrayList<>();
+		final Set< Vertex > visited = new HashSet<>();
+		Vertex vertex = endPoint;
+		Edge edge = endPoint.getBranches().isEmpty() ? null : endPoint.getBranches().get( 0 );
+		while ( null != edge && visited.add( vertex ) )
+		{
+			path.add( edge );
+			final Vertex opposite = edge.getOppositeVertex( vertex );
+			if ( opposite.getBranches().size() == 1 || !discarded.test( opposite ) )
+				break;
+
+			// Continue on the branch that is neither where we come from nor a
+			// discarded spur.
+			final Edge incoming = edge;
+			edge = null;
+			for ( final Edge branch : opposite.getBranches() )
+			{
+				if ( branch == incoming )
+					continue;
+				final Vertex next = branch.getOppositeVertex( opposite );
+				if ( next.getBranches().size() == 1 && discarded.test( next ) )
+					continue;
+				edge = branch;
+				break;
+			}
+			vertex = opposite;
+		}
+		return path;
+	}
+
+	/**
+	 * Returns the length of the branch that ends at the specified end-point.
+	 *
+	 * @param endPoint
+	 *            the end-point vertex.
+	 * @param discarded
+	 *            whether a vertex was discarded at detection.
+	 * @return the branch length, in physical units.
+	 */
+	static double branchLength( final Vertex endPoint, final Predicate< Vertex > discarded )
+	{
+		double length = 0.;
+		for ( final Edge edge : branchPath( endPoint, discarded ) )
+			length += edge.getLength_ra();
+		return length;
+	}
+
+	private static Vertex oppositeEnd( final Vertex endPoint, final List< Edge > path )
+	{
+		Vertex vertex = endPoint;
+		for ( final Edge edge : path )
+			vertex = edge.getOppositeVertex( vertex );
+		return vertex;
+	}
+
+	/**
+	 * Returns the spurs of a graph, that is the end-points of terminal branches
+	 * shorter than the specified length, and the junctions left with two
+	 * branches once the spurs are removed. Shortest spurs are removed first,
+	 * and a junction is never turned into an end-point. Isolated branches
+	 * shorter than the specified length are discarded with both their
+	 * end-points.
+	 */
+	private static Set< Vertex > findSpurs( final List< Vertex > vertices, final double minBranchLength )
+	{
+		final List< Vertex > candidates = new ArrayList<>();
+		for ( final Vertex vertex : vertices )
+			if ( vertex.getBranches().size() == 1 && vertex.getBranches().get( 0 ).getLength_ra() < minBranchLength )
+				candidates.add( vertex );
+		candidates.sort( Comparator.comparingDouble( v -> v.getBranches().get( 0 ).getLength_ra() ) );
+
+		final Set< Vertex > discarded = new HashSet<>();
+		final Map< Vertex, Integer > degrees = new HashMap<>();
+		for ( final Vertex vertex : candidates )
+		{
+			if ( discarded.contains( vertex ) )
+				continue;
+
+			final Vertex opposite = vertex.getBranches().get( 0 ).getOppositeVertex( vertex );
+			if ( opposite.getBranches().size() == 1 )
+			{
+				discarded.add( vertex );
+				discarded.add( opposite );
+				continue;
+			}
+
+			final int degree = degrees.getOrDefault( opposite, opposite.getBranches().size() );
+			if ( degree <= 2 )
+				continue;
+
+			discarded.add( vertex );
+			degrees.put( opposite, degree - 1 );
+		}
+
+		for ( final Map.Entry< Vertex, Integer > entry : degrees.entrySet() )
+			if ( entry.getValue().intValue() == 2 )
+				discarded.add( entry.getKey() );
+
+		return discarded;
+	}
+
+	/**
+	 * Groups the junctions that are connected by an edge and closer than the
+	 * specified radius. Junctions are not grouped if the radius is 0.
+	 */
+	private static List< List< Vertex > > clusterJunctions( final List< Vertex > junctions, final double radius, final double[] calibration )
+	{
+		final Map< Vertex, List< Vertex > > clusters = new HashMap<>();
+		for ( final Vertex vertex : junctions )
+			clusters.put( vertex, new ArrayList<>( Collections.singletonList( vertex ) ) );
+
+		final Set< Vertex > isJunction = new HashSet<>( junctions );
+		final double radius2 = radius * radius;
+		for ( final Vertex vertex : junctions )
+		{
+			if ( radius <= 0. )
+				break;
+
+			for ( final Edge edge : vertex.getBranches() )
+			{
+				final Vertex opposite = edge.getOppositeVertex( vertex );
+				if ( !isJunction.contains( opposite ) )
+					continue;
+
+				final List< Vertex > c1 = clusters.get( vertex );
+				final List< Vertex > c2 = clusters.get( opposite );
+				if ( c1 == c2 || squareDistance( vertex, opposite, calibration ) > radius2 )
+					continue;
+
+				// Merge the smallest cluster into the largest.
+				final List< Vertex > target = c1.size() >= c2.size() ? c1 : c2;
+				final List< Vertex > source = ( target == c1 ) ? c2 : c1;
+				target.addAll( source );
+				for ( final Vertex member : source )
+					clusters.put( member, target );
+			}
+		}
+
+		// Each cluster once, in the order of its first junction.
+		final List< List< Vertex > > list = new ArrayList<>();
+		for ( final Vertex vertex : junctions )
+		{
+			final List< Vertex > cluster = clusters.get( vertex );
+			if ( cluster.get( 0 ) == vertex )
+				list.add( cluster );
+		}
+		return list;
+	}
+
+	private static double squareDistance( final Vertex v1, final Vertex v2, final double[] calibration )
+	{
+		final double[] p1 = centroid( v1.getPoints() );
+		final double[] p2 = centroid( v2.getPoints() );
+		double d2 = 0.;
+		for ( int d = 0; d < 3; d++ )
+		{
+			final double dx = ( p1[ d ] - p2[ d ] ) * calibration[ d ];
+			d2 += dx * dx;
+		}
+		return d2;
+	}
+
+	private static final Spot toSpot( final List< Point > points, final boolean isJunction, final double[] calibration, final int[] start )
+	{
+		final double[] centroid = centroid( points );
+		final double x = ( start[ 0 ] + centroid[ 0 ] ) * calibration[ 0 ];
+		final double y = ( start[ 1 ] + centroid[ 1 ] ) * calibration[ 1 ];
+		final double z = ( start[ 2 ] + centroid[ 2 ] ) * calibration[ 2 ];
+		final double radius = isJunction ? SkeletonKeyPointsDetector.JUNCTION_POINTS_RADIUS : SkeletonKeyPointsDetector.END_POINTS_RADIUS;
+		final double quality = isJunction ? SkeletonKeyPointsDetector.JUNCTION_POINTS_QUALITY_VALUE : SkeletonKeyPointsDetector.END_POINTS_QUALITY_VALUE;
+		final Spot spot = new Spot( x, y, z, radius, quality );
+		return spot;
+	}
+
+	private static double[] centroid( final List< Point > points )
+	{
+		final double xi = points.stream()
+				.mapToDouble( p -> p.x )
+				.average()
+				.getAsDouble();
+		final double yi = points.stream()
+				.mapToDouble( p -> p.y )
+				.average()
+				.getAsDouble();
+		final double zi = points.stream()
+				.mapToDouble( p -> p.z )
+				.average()
+				.getAsDouble();
+		return new double[] { xi, yi, zi };
+	}
+}
@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+/**
+ * Classifies the pixels of a skeleton frame by their number of neighbours,
+ * like AnalyzeSkeleton tags them: end-points have 1 neighbour, slab pixels 2
+ * and junctions 3 or more, in 8-connectivity in 2D and 26-connectivity in 3D.
+ * <p>
+ * {@link #classify(PackedSkeleton, int)} counts the neighbours of 64 pixels at
+ * once on the packed words: each neighbour direction is a shifted copy of the
+ * word, and the counts are accumulated in bit-sliced saturating counters.
+ * {@link #classifyScalar(PackedSkeleton, int)} counts them pixel by pixel, and
+ * is kept as a reference.
+ */
+public class SkeletonKeyPointKernel
+{
+
+	/**
+	 * The key-point classes of the pixels of one frame, as masks packed like
+	 * the skeleton they were computed from.
+	 */
+	public static final class KeyPoints
+	{
+
+		public final long[] endPoints;
+
+		public final long[] slabs;
+
+		public final long[] junctions;
+
+		KeyPoints( final int nWords )
+		{
+			this.endPoints = new long[ nWords ];
+			this.slabs = new long[ nWords ];
+			this.junctions = new long[ nWords ];
+		}
+
+		public long countEndPoints()
+		{
+			return count( endPoints );
+		}
+
+		public long countSlabs()
+		{
+			return count( slabs );
+		}
+
+		public long countJunctions()
+		{
+			return count( junctions );
+		}
+
+		private static long count( final long[] words )
+		{
+			long count = 0L;
+			for ( final long word : words )
+				count += Long.bitCount( word );
+			return count;
+		}
+	}
+
+	private SkeletonKeyPointKernel()
+	{}
+
+	/**
+	 * Classifies the pixels of the specified frame, 64 at a time.
+	 *
+	 * @param skeleton
+	 *            the packed skeleton.
+	 * @param t
+	 *            the frame, 0-based.
+	 * @return the key-point classes of the frame pixels.
+	 */
+	public static KeyPoints classify( final PackedSkeleton skeleton, final int t )
+	{
+		final long[] words = skeleton.words( t );
+		final int wordsPerRow = skeleton.wordsPerRow();
+		final int height = skeleton.getHeight();
+		final int depth = skeleton.getDepth();
+		final KeyPoints out = new KeyPoints( words.length );
+
+		for ( int z = 0; z < depth; z++ )
+		{
+			for ( int y = 0; y < height; y++ )
+			{
+				final int row = skeleton.rowIndex( y, z );
+				for ( int w = 0; w < wordsPerRow; w++ )
+				{
+					final long center = words[ row + w ];
+					if ( center == 0L )
+						continue;
+
+					// Bit-sliced neighbour count, saturating at 3.
+					long ones = 0L;
+					long twos = 0L;
+					long many = 0L;
+					for ( int dz = -1; dz <= 1; dz++ )
+					{
+						final int zn = z + dz;
+						if ( zn < 0 || zn >= depth )
+							continue;
+						for ( int dy = -1; dy <= 1; dy++ )
+						{
+							final int yn = y + dy;
+							if ( yn < 0 || yn >= height )
+								continue;
+
+							final int rown = skeleton.rowIndex( yn, zn );
+							final long word = words[ rown + w ];
+							final long before = ( w > 0 ) ? words[ rown + w - 1 ] : 0L;
+							final long after = ( w < wordsPerRow - 1 ) ? words[ rown + w + 1 ] : 0L;
+
+							// Neighbour at x - 1, brought to x.
+							long b = ( word << 1 ) | ( before >>> 63 );
+							long carry = ones & b;
+							ones ^= b;
+							many |= twos & carry;
+							twos ^= carry;
+
+							// Neighbour at x + 1, brought to x.
+							b = ( word >>> 1 ) | ( after << 63 );
+							carry = ones & b;
+							ones ^= b;
+							many |= twos & carry;
+							twos ^= carry;
+
+							// Neighbour at x, except the pixel itself.
+							if ( dz == 0 && dy == 0 )
+								continue;
+							b = word;
+							carry = ones & b;
+							ones ^= b;
+							many |= twos & carry;
+							twos ^= carry;
+						}
+					}
+
+					out.endPoints[ row + w ] = center & ~many & ~twos & ones;
+					out.slabs[ row + w ] = center & ~many & twos & ~ones;
+					out.junctions[ row + w ] = center & ( many | ( twos & ones ) );
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Classifies the pixels of the specified frame one by one.
+	 *
+	 * @param skeleton
+	 *            the packed skeleton.
+	 * @param t
+	 *            the frame, 0-based.
+	 * @return the key-point classes of the frame pixels.
+	 */
+	public static KeyPoints classifyScalar( final PackedSkeleton skeleton, final int t )
+	{
+		final int width = skeleton.getWidth();
+		final int height = skeleton.getHeight();
+		final int depth = skeleton.getDepth();
+		final KeyPoints out = new KeyPoints( skeleton.words( t ).length );
+
+		for ( int z = 0; z < depth; z++ )
+		{
+			for ( int y = 0; y < height; y++ )
+			{
+				for ( int x = 0; x < width; x++ )
+				{
+					if ( !skeleton.get( x, y, z, t ) )
+						continue;
+
+					int count = 0;
+					for ( int dz = -1; dz <= 1; dz++ )
+						for ( int dy = -1; dy <= 1; dy++ )
+							for ( int dx = -1; dx <= 1; dx++ )
+								if ( ( dx != 0 || dy != 0 || dz != 0 ) && skeleton.get( x + dx, y + dy, z + dz, t ) )
+									count++;
+
+					final int index = skeleton.rowIndex( y, z ) + ( x >>> 6 );
+					final long bit = 1L << ( x & 63 );
+					if ( count == 1 )
+						out.endPoints[ index ] |= bit;
+					else if ( count == 2 )
+						out.slabs[ index ] |= bit;
+					else if ( count > 2 )
+						out.junctions[ index ] |= bit;
+				}
+			}
+		}
+		return out;
+	}
+}
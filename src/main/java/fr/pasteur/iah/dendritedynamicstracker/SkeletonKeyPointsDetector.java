@@ -32,12 +32,14 @@
  */
 package fr.pasteur.iah.dendritedynamicstracker;
 
-import java.util.ArrayList;
-import java.util.Collection;
+import java.awt.Rectangle;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import org.scijava.ItemIO;
 import org.scijava.app.StatusService;
@@ -49,17 +51,16 @@ import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
 import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.Roi;
-import ij.plugin.ChannelSplitter;
 import ij.plugin.Duplicator;
+import ij.process.ImageProcessor;
 import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
 import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.multithreading.SimpleMultiThreading;
 import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
-import sc.fiji.analyzeSkeleton.Edge;
 import sc.fiji.analyzeSkeleton.Graph;
 import sc.fiji.analyzeSkeleton.Point;
-import sc.fiji.analyzeSkeleton.SkeletonResult;
 import sc.fiji.analyzeSkeleton.Vertex;
 
 @SuppressWarnings( "deprecation" )
@@ -71,9 +72,9 @@ public class SkeletonKeyPointsDetector extends AbstractUnaryFunctionOp< ImagePlu
 
 	public final static double JUNCTION_POINTS_QUALITY_VALUE = 2.;
 
-	private final static double END_POINTS_RADIUS = 0.5;
+	final static double END_POINTS_RADIUS = 0.5;
 
-	private final static double JUNCTION_POINTS_RADIUS = 1.;
+	final static double JUNCTION_POINTS_RADIUS = 1.;
 
 	@Parameter
 	private LogService log;
@@ -90,6 +91,18 @@ public class SkeletonKeyPointsDetector extends AbstractUnaryFunctionOp< ImagePlu
 	@Parameter( type = ItemIO.INPUT, label = "Prunning method" )
 	private int prunningMethod = 3;
 
+	@Parameter( type = ItemIO.INPUT, label = "Skeletonize a binary mask channel?", required = false )
+	private boolean skeletonize = false;
+
+	@Parameter( type = ItemIO.INPUT, label = "Min branch length", required = false )
+	private double minBranchLength = 0.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Junction merge radius", required = false )
+	private double junctionMergeRadius = 0.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Only re-analyze what changed between frames?", required = false )
+	private boolean incremental = false;
+
 	private int numThreads;
 
 	public SkeletonKeyPointsDetector()
@@ -101,24 +114,25 @@ public class SkeletonKeyPointsDetector extends AbstractUnaryFunctionOp< ImagePlu
 	public DetectionResults calculate( final ImagePlus imp )
 	{
 
-		final ImagePlus[] channels = ChannelSplitter.split( imp );
-		if ( channels.length < skeletonChannel )
+		final int nChannels = imp.getNChannels();
+		if ( nChannels < skeletonChannel )
 		{
-			log.error( "Skeleton channel defined as " + skeletonChannel + " but source image only has " + channels.length + " channels." );
+			log.error( "Skeleton channel defined as " + skeletonChannel + " but source image only has " + nChannels + " channels." );
 			return null;
 		}
-		if ( channels.length < dataChannel )
+
+		/*
+		 * Only the intensity-based prunning methods read the raw data. We do
+		 * not touch it otherwise, so the source can be a skeleton-only image.
+		 */
+		final boolean needsData = needsRawData( prunningMethod );
+		if ( needsData && nChannels < dataChannel )
 		{
-			log.error( "Raw data channel defined as " + dataChannel + " but source image only has " + channels.length + " channels." );
+			log.error( "Raw data channel defined as " + dataChannel + " but source image only has " + nChannels + " channels." );
 			return null;
 		}
 
-		final ImagePlus skeleton = channels[ skeletonChannel - 1 ];
-		final ImagePlus origImp = channels[ dataChannel - 1 ];
-
 		final Roi roi = imp.getRoi();
-		skeleton.setRoi( roi );
-		origImp.setRoi( roi );
 		final int[] start = new int[] {
 				null == roi ? 0 : roi.getBounds().x,
 				null == roi ? 0 : roi.getBounds().y,
@@ -131,57 +145,68 @@ public class SkeletonKeyPointsDetector extends AbstractUnaryFunctionOp< ImagePlu
 		};
 		final double frameInterval = imp.getCalibration().frameInterval;
 
-		final int nFrames = skeleton.getNFrames();
+		final int nFrames = imp.getNFrames();
 		final int firstZ = 1;
-		final int lastZ = skeleton.getNSlices();
+		final int lastZ = imp.getNSlices();
+
+		final boolean deltaMode = incremental && IncrementalSkeletonAnalysis.supports( prunningMethod );
+		if ( incremental && !deltaMode )
+			log.warn( "Incremental detection cannot be used with intensity-based prunning methods. Analyzing all frames fully." );
+
+		/*
+		 * In-memory skeletons are packed one bit per pixel, which is cheaper
+		 * than duplicating each frame. The cost of each frame is estimated by
+		 * the packing threads, right after they pack it. Virtual stacks are
+		 * read lazily, frame by frame, and their frame costs are estimated
+		 * from a first read of their skeleton planes.
+		 */
+		final Rectangle bounds = ( null == roi )
+				? new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() )
+				: roi.getBounds().intersection( new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() ) );
+		final long[] costs = new long[ nFrames ];
+		final PackedSkeleton packed;
+		if ( imp.getStack().isVirtual() )
+		{
+			packed = null;
+			if ( !deltaMode )
+			{
+				status.showStatus( "Estimating frame costs." );
+				countSkeletonPixels( imp, skeletonChannel, bounds, numThreads, costs );
+			}
+		}
+		else
+		{
+			status.showStatus( "Packing skeleton." );
+			packed = PackedSkeleton.fromImage( imp, skeletonChannel, bounds, numThreads,
+					deltaMode ? null : ( skeleton, frame ) -> costs[ frame ] = getFrameCost( skeleton, frame ) );
+		}
 
-		final boolean pruneEnds = false; // Don't prune branch ends.
-		final boolean shortPath = false; // Don't compute shortest path.
-		final boolean silent = true;
-		final boolean verbose = false;
+		/*
+		 * Process the most complex frames first, except in incremental mode,
+		 * where threads process consecutive frames.
+		 */
+		final int[] frameOrder = deltaMode
+				? IntStream.range( 0, nFrames ).toArray()
+				: getFrameOrder( costs );
 
 		status.showStatus( "Processing skeleton." );
 
 		final AtomicInteger progress = new AtomicInteger( 0 );
 		final AtomicInteger ai = new AtomicInteger( 0 );
+		final SkeletonFrameAnalysis[] analyses = new SkeletonFrameAnalysis[ nFrames ];
 		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-
-		// Maps a skeleton end-point to its junction spot - one per thread.
-		final List< Map< Spot, Spot > > junctionMapList = new ArrayList<>( threads.length );
-
-		// Map of frame vs junctions found in this frame - one per thread.
-		final List< Map< Integer, Collection< Spot > > > junctionsList = new ArrayList<>( threads.length );
-
-		// Map of frame vs end-points found in this frame - one per thread.
-		final List< Map< Integer, Collection< Spot > > > endPointsList = new ArrayList<>( threads.length );
-
-		// Map that links spots to AS vertices - one per thread.
-		final List< Map< Integer, Map< Spot, Vertex > > > spotMapList = new ArrayList<>( threads.length );
-
-		// Map that links AS vertices to spots - one per thread.
-		final List< Map< Integer, Map< Vertex, Spot > > > vertexMapList = new ArrayList<>( threads.length );
-
-
 		for ( int ithread = 0; ithread < threads.length; ithread++ )
 		{
 
 			final Duplicator duplicator = new Duplicator();
 			final AnalyzeSkeleton_ skelAnalyzer = new AnalyzeSkeleton_();
 
-			final Map< Spot, Spot > junctionMapLocal = new HashMap<>();
-			junctionMapList.add( junctionMapLocal );
-
-			final Map< Integer, Collection< Spot > > junctionsLocal = new HashMap<>();
-			junctionsList.add( junctionsLocal );
-
-			final Map< Integer, Collection< Spot > > endPointsLocal = new HashMap<>();
-			endPointsList.add( endPointsLocal );
-
-			final Map< Integer, Map< Spot, Vertex > > spotMapLocal = new HashMap<>();
-			spotMapList.add( spotMapLocal );
-
-			final Map< Integer, Map< Vertex, Spot > > vertexMapLocal = new HashMap<>();
-			vertexMapList.add( vertexMapLocal );
+			// In incremental mode, each thread processes consecutive frames.
+			final int chunkStart = ( int ) ( ( long ) ithread * nFrames / threads.length );
+			final int chunkEnd = ( int ) ( ( long ) ( ithread + 1 ) * nFrames / threads.length );
+			final IncrementalSkeletonAnalysis delta = deltaMode
+					? new IncrementalSkeletonAnalysis( skeletonize, prunningMethod, minBranchLength, junctionMergeRadius, frameInterval, calibration, start )
+					: null;
 
 			threads[ ithread ] = new Thread( "Detection thread " + ( 1 + ithread ) + "/" + threads.length )
 			{
@@ -189,154 +214,128 @@ public class SkeletonKeyPointsDetector extends AbstractUnaryFunctionOp< ImagePlu
 				@Override
 				public void run()
 				{
-					for ( int frame = ai.getAndIncrement(); frame < nFrames; frame = ai.getAndIncrement() )
+					if ( deltaMode )
 					{
-
-						// Collection of junctions found in this frame.
-						final List< Spot > junctions = new ArrayList<>();
-
-						// Collection of end-points found in this frame.
-						final List< Spot > endPoints = new ArrayList<>();
-
-						// Maps a graph vertex to the spot created from it.
-						final Map< Vertex, Spot > vertexMap = new HashMap<>();
-
-						// Maps a spot to the graph vertex that created it.
-						final Map< Spot, Vertex > spotMap = new HashMap<>();
-
-						final ImagePlus skeletonFrame = duplicator.run( skeleton, 1, 1, firstZ, lastZ, frame + 1, frame + 1 );
-						final ImagePlus origImpFrame = duplicator.run( origImp, 1, 1, firstZ, lastZ, frame + 1, frame + 1 );
-
-						skelAnalyzer.setup( "", skeletonFrame );
-						final SkeletonResult result = skelAnalyzer.run( prunningMethod, pruneEnds, shortPath, origImpFrame, silent, verbose, null );
-
-						final Graph[] graphs = result.getGraph();
-						for ( final Graph graph : graphs )
+						for ( int frame = chunkStart; frame < chunkEnd; frame++ )
 						{
-							final List< Vertex > vertices = graph.getVertices();
-
-							/*
-							 * Find junctions.
-							 */
+							final ImagePlus skeletonFrame = readSkeletonFrame( imp, packed, duplicator, frame );
+							analyses[ frame ] = delta.analyze( skeletonFrame, frame );
+							status.showProgress( progress.incrementAndGet(), nFrames );
+						}
+						return;
+					}
 
-							for ( final Vertex vertex : vertices )
-							{
-								if ( vertex.getBranches().size() == 1 )
-									continue;
+					for ( int i = ai.getAndIncrement(); i < nFrames; i = ai.getAndIncrement() )
+					{
+						final int frame = frameOrder[ i ];
 
-								final Spot spot = vertexToSpot( vertex, calibration, start );
-								spot.putFeature( Spot.POSITION_T, frame * frameInterval );
-								vertexMap.put( vertex, spot );
-								spotMap.put( spot, vertex );
+						// Read this frame only, cropped to the ROI.
+						final ImagePlus skeletonFrame = readSkeletonFrame( imp, packed, duplicator, frame );
+						final ImagePlus origImpFrame = needsData
+								? duplicator.run( imp, dataChannel, dataChannel, firstZ, lastZ, frame + 1, frame + 1 )
+								: null;
 
-								junctions.add( spot );
-							}
+						analyses[ frame ] = SkeletonFrameAnalysis.analyze( skelAnalyzer, skeletonFrame, skeletonize, origImpFrame,
+								prunningMethod, minBranchLength, junctionMergeRadius, frame, frameInterval, calibration, start );
 
-							/*
-							 * Find end points and link them to their junction.
-							 */
+						status.showProgress( progress.incrementAndGet(), nFrames );
+					}
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
 
-							for ( final Vertex vertex : vertices )
-							{
-								if ( vertex.getBranches().size() != 1 )
-									continue;
+		/*
+		 * We now collect what every single thread did on its side.
+		 */
 
-								final Spot spot = vertexToSpot( vertex, calibration, start );
-								spot.putFeature( Spot.POSITION_T, frame * frameInterval );
-								vertexMap.put( vertex, spot );
-								spotMap.put( spot, vertex );
+		return SkeletonFrameAnalysis.collect( analyses, start );
+	}
 
-								endPoints.add( spot );
+	/**
+	 * Returns <code>true</code> if the specified prunning method reads the
+	 * intensities of the raw data.
+	 */
+	static boolean needsRawData( final int prunningMethod )
+	{
+		return prunningMethod == AnalyzeSkeleton_.LOWEST_INTENSITY_VOXEL
+				|| prunningMethod == AnalyzeSkeleton_.LOWEST_INTENSITY_BRANCH;
+	}
 
-								// Find matching junction.
-								final Edge predecessor = vertex.getBranches().get( 0 );
-								if ( null == predecessor )
-									continue;
+	/**
+	 * Returns the skeleton of the specified frame, cropped to the ROI, from
+	 * the packed skeleton if we have one, from the source image otherwise.
+	 */
+	private ImagePlus readSkeletonFrame( final ImagePlus imp, final PackedSkeleton packed, final Duplicator duplicator, final int frame )
+	{
+		if ( null == packed )
+			return duplicator.run( imp, skeletonChannel, skeletonChannel, 1, imp.getNSlices(), frame + 1, frame + 1 );
 
-								final Vertex oppositeVertex = predecessor.getOppositeVertex( vertex );
-								final Spot junctionSpot = vertexMap.get( oppositeVertex );
-								if ( null != junctionSpot )
-									junctionMapLocal.put( spot, junctionSpot );
+		final ImagePlus skeletonFrame = new ImagePlus( "", packed.toStack( frame ) );
+		skeletonFrame.setCalibration( imp.getCalibration() );
+		return skeletonFrame;
+	}
 
-							}
+	/**
+	 * Estimates the cost of analyzing the specified frame. AnalyzeSkeleton
+	 * visits every skeleton pixel, so the cost is estimated from the number
+	 * of skeleton pixels in the ROI, counted on the packed words.
+	 */
+	private static long getFrameCost( final PackedSkeleton packed, final int frame )
+	{
+		return packed.count( frame );
+	}
 
+	/**
+	 * Estimates the cost of each frame of a virtual stack as the number of
+	 * skeleton pixels in the specified bounds. Each skeleton plane is read
+	 * once here, and once again when the frame is analyzed. For
+	 * memory-mapped files, the second read comes from the page cache.
+	 */
+	private static void countSkeletonPixels( final ImagePlus imp, final int channel, final Rectangle bounds, final int numThreads, final long[] costs )
+	{
+		final ImageStack stack = imp.getStack();
+		final int nSlices = imp.getNSlices();
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		for ( int ithread = 0; ithread < threads.length; ithread++ )
+		{
+			threads[ ithread ] = new Thread( "Frame cost thread " + ( 1 + ithread ) + "/" + threads.length )
+			{
+				@Override
+				public void run()
+				{
+					for ( int t = ai.getAndIncrement(); t < costs.length; t = ai.getAndIncrement() )
+					{
+						long count = 0L;
+						for ( int z = 1; z <= nSlices; z++ )
+						{
+							final ImageProcessor ip = stack.getProcessor( imp.getStackIndex( channel, z, t + 1 ) );
+							for ( int y = bounds.y; y < bounds.y + bounds.height; y++ )
+								for ( int x = bounds.x; x < bounds.x + bounds.width; x++ )
+									if ( ip.get( x, y ) != 0 )
+										count++;
 						}
-
-						junctionsLocal.put( Integer.valueOf( frame ), junctions );
-						endPointsLocal.put( Integer.valueOf( frame ), endPoints );
-						spotMapLocal.put( Integer.valueOf( frame ), spotMap );
-						vertexMapLocal.put( Integer.valueOf( frame ), vertexMap );
-
-						status.showProgress( progress.incrementAndGet(), nFrames );
+						costs[ t ] = count;
 					}
 				}
 			};
 		}
 		SimpleMultiThreading.startAndJoin( threads );
-
-		/*
-		 * We now collect what every single thread did on its side.
-		 */
-
-		// Maps a skeleton end-point to its junction spot.
-		final Map< Spot, Spot > junctionMap = new HashMap<>();
-		for ( final Map< Spot, Spot > map : junctionMapList )
-			junctionMap.putAll( map );
-
-		final SpotCollection junctionsSpots = new SpotCollection();
-		for ( final Map< Integer, Collection< Spot > > map : junctionsList )
-			for ( final Integer frame : map.keySet() )
-				junctionsSpots.put( frame, map.get( frame ) );
-		junctionsSpots.setVisible( true );
-
-		final SpotCollection endPointSpots = new SpotCollection();
-		for ( final Map< Integer, Collection< Spot > > map : endPointsList )
-			for ( final Integer frame : map.keySet() )
-				endPointSpots.put( frame, map.get( frame ) );
-		endPointSpots.setVisible( true );
-
-		final Map<Spot, Vertex> spotMap = new HashMap<>();
-		for ( final Map< Integer, Map< Spot, Vertex > > map : spotMapList )
-			for ( final Integer frame : map.keySet() )
-				spotMap.putAll( map.get( frame ) );
-
-		final Map< Vertex, Spot > vertexMap = new HashMap<>();
-		for ( final Map< Integer, Map< Vertex, Spot > > map : vertexMapList )
-			for ( final Integer frame : map.keySet() )
-				vertexMap.putAll( map.get( frame ) );
-
-		return new DetectionResults(
-				junctionsSpots,
-				endPointSpots,
-				junctionMap,
-				spotMap,
-				vertexMap  );
 	}
 
-	private static final Spot vertexToSpot( final Vertex vertex, final double[] calibration, final int[] start )
+	/**
+	 * Returns the frame indices sorted by decreasing cost, so that the most
+	 * expensive frames are processed first and the threads finish at about the
+	 * same time.
+	 */
+	private static int[] getFrameOrder( final long[] costs )
 	{
-		final List< Point > points = vertex.getPoints();
-		final double xi = points.stream()
-				.mapToDouble( p -> p.x )
-				.average()
-				.getAsDouble();
-		final double yi = points.stream()
-				.mapToDouble( p -> p.y )
-				.average()
-				.getAsDouble();
-		final double zi = points.stream()
-				.mapToDouble( p -> p.z )
-				.average()
-				.getAsDouble();
-
-		final double x = ( start[ 0 ] + xi ) * calibration[ 0 ];
-		final double y = ( start[ 1 ] + yi ) * calibration[ 1 ];
-		final double z = ( start[ 2 ] + zi ) * calibration[ 2 ];
-		final boolean isJunction = vertex.getBranches().size() > 1;
-		final double radius = isJunction ? JUNCTION_POINTS_RADIUS : END_POINTS_RADIUS;
-		final double quality = isJunction ? JUNCTION_POINTS_QUALITY_VALUE : END_POINTS_QUALITY_VALUE;
-		final Spot spot = new Spot( x, y, z, radius, quality );
-		return spot;
+		return IntStream.range( 0, costs.length )
+				.boxed()
+				.sorted( ( f1, f2 ) -> Long.compare( costs[ f2 ], costs[ f1 ] ) )
+				.mapToInt( Integer::intValue )
+				.toArray();
 	}
 
 	public static final class DetectionResults
@@ -353,7 +352,18 @@ public class SkeletonKeyPointsDetector extends AbstractUnaryFunctionOp< ImagePlu
 
 		private final Map< Spot, Vertex > spotMap;
 
-		private final Map< Vertex, Spot > vertexMap;
+		/**
+		 * Maps a skeleton vertex to its spot, per frame. Vertices of a
+		 * skeleton part that did not change between frames are shared by
+		 * these frames.
+		 */
+		private final Map< Integer, Map< Vertex, Spot > > vertexMaps;
+
+		private final Map< Integer, Graph[] > graphs;
+
+		private final Map< Integer, List< Point > > endPointPixels;
+
+		private final int[] origin;
 
 		public DetectionResults(
 				final SpotCollection junctionsSpots,
@@ -361,12 +371,29 @@ public class SkeletonKeyPointsDetector extends AbstractUnaryFunctionOp< ImagePlu
 				final Map< Spot, Spot > junctionMap,
 				final Map< Spot, Vertex > spotMap,
 				final Map< Vertex, Spot > vertexMap )
+		{
+			this( junctionsSpots, endPointSpots, junctionMap, spotMap, byFrame( vertexMap ),
+					Collections.emptyMap(), Collections.emptyMap(), new int[ 3 ] );
+		}
+
+		public DetectionResults(
+				final SpotCollection junctionsSpots,
+				final SpotCollection endPointSpots,
+				final Map< Spot, Spot > junctionMap,
+				final Map< Spot, Vertex > spotMap,
+				final Map< Integer, Map< Vertex, Spot > > vertexMaps,
+				final Map< Integer, Graph[] > graphs,
+				final Map< Integer, List< Point > > endPointPixels,
+				final int[] origin )
 		{
 			this.junctionsSpots = junctionsSpots;
 			this.endPointSpots = endPointSpots;
 			this.junctionMap = junctionMap;
 			this.spotMap = spotMap;
-			this.vertexMap = vertexMap;
+			this.vertexMaps = vertexMaps;
+			this.graphs = graphs;
+			this.endPointPixels = endPointPixels;
+			this.origin = origin;
 		}
 
 		public Vertex getVertexFor( final Spot spot )
@@ -374,9 +401,152 @@ public class SkeletonKeyPointsDetector extends AbstractUnaryFunctionOp< ImagePlu
 			return spotMap.get( spot );
 		}
 
+		/**
+		 * Returns the spot created from the specified vertex in the specified
+		 * frame, or <code>null</code> if the vertex did not make a spot in
+		 * this frame.
+		 */
+		public Spot getSpotFor( final int frame, final Vertex vertex )
+		{
+			final Map< Vertex, Spot > vertexMap = vertexMaps.get( Integer.valueOf( frame ) );
+			return ( null == vertexMap ) ? null : vertexMap.get( vertex );
+		}
+
+		/**
+		 * Returns the spot created from the specified vertex, if it made a
+		 * spot in only one frame.
+		 *
+		 * @return the spot, or <code>null</code> if the vertex did not make a
+		 *         spot, or made one in several frames. In incremental
+		 *         detection, the vertices of unchanged skeleton parts are
+		 *         shared between consecutive frames.
+		 * @deprecated use {@link #getSpotFor(int, Vertex)}.
+		 */
+		@Deprecated
 		public Spot getSpotFor( final Vertex vertex )
 		{
-			return vertexMap.get( vertex );
+			Spot found = null;
+			for ( final Map< Vertex, Spot > vertexMap : vertexMaps.values() )
+			{
+				final Spot spot = vertexMap.get( vertex );
+				if ( null == spot )
+					continue;
+				if ( null != found )
+					return null;
+				found = spot;
+			}
+			return found;
+		}
+
+		private static Map< Integer, Map< Vertex, Spot > > byFrame( final Map< Vertex, Spot > vertexMap )
+		{
+			final Map< Integer, Map< Vertex, Spot > > vertexMaps = new HashMap<>();
+			for ( final Map.Entry< Vertex, Spot > entry : vertexMap.entrySet() )
+			{
+				final Integer frame = Integer.valueOf( entry.getValue().getFeature( Spot.FRAME ).intValue() );
+				vertexMaps.computeIfAbsent( frame, k -> new HashMap<>() ).put( entry.getKey(), entry.getValue() );
+			}
+			return vertexMaps;
+		}
+
+		/**
+		 * Returns a copy of these results with new spots, that can be tracked
+		 * and analyzed independently of these ones. The skeleton graphs are
+		 * shared, and must not be modified.
+		 */
+		public DetectionResults copy()
+		{
+			final Map< Spot, Spot > copies = new HashMap<>();
+			final SpotCollection junctionsSpotsCopy = copy( junctionsSpots, copies );
+			final SpotCollection endPointSpotsCopy = copy( endPointSpots, copies );
+
+			final Map< Spot, Spot > junctionMapCopy = new HashMap<>( 2 * junctionMap.size() );
+			for ( final Map.Entry< Spot, Spot > entry : junctionMap.entrySet() )
+				junctionMapCopy.put( copies.get( entry.getKey() ), copies.get( entry.getValue() ) );
+
+			final Map< Spot, Vertex > spotMapCopy = new HashMap<>( 2 * spotMap.size() );
+			for ( final Map.Entry< Spot, Vertex > entry : spotMap.entrySet() )
+				spotMapCopy.put( copies.get( entry.getKey() ), entry.getValue() );
+
+			final Map< Integer, Map< Vertex, Spot > > vertexMapsCopy = new HashMap<>( 2 * vertexMaps.size() );
+			for ( final Map.Entry< Integer, Map< Vertex, Spot > > frameEntry : vertexMaps.entrySet() )
+			{
+				final Map< Vertex, Spot > vertexMapCopy = new HashMap<>( 2 * frameEntry.getValue().size() );
+				for ( final Map.Entry< Vertex, Spot > entry : frameEntry.getValue().entrySet() )
+					vertexMapCopy.put( entry.getKey(), copies.get( entry.getValue() ) );
+				vertexMapsCopy.put( frameEntry.getKey(), vertexMapCopy );
+			}
+
+			return new DetectionResults(
+					junctionsSpotsCopy,
+					endPointSpotsCopy,
+					junctionMapCopy,
+					spotMapCopy,
+					vertexMapsCopy,
+					graphs,
+					endPointPixels,
+					origin );
+		}
+
+		private static SpotCollection copy( final SpotCollection spots, final Map< Spot, Spot > copies )
+		{
+			final SpotCollection copy = new SpotCollection();
+			for ( final Integer frame : spots.keySet() )
+			{
+				for ( final Spot spot : spots.iterable( frame.intValue(), false ) )
+				{
+					final Spot spotCopy = new Spot(
+							spot.getDoublePosition( 0 ),
+							spot.getDoublePosition( 1 ),
+							spot.getDoublePosition( 2 ),
+							spot.getFeature( Spot.RADIUS ).doubleValue(),
+							spot.getFeature( Spot.QUALITY ).doubleValue() );
+					spotCopy.setName( spot.getName() );
+					for ( final Map.Entry< String, Double > feature : spot.getFeatures().entrySet() )
+						spotCopy.putFeature( feature.getKey(), feature.getValue() );
+
+					copy.add( spotCopy, frame );
+					copies.put( spot, spotCopy );
+				}
+			}
+			return copy;
+		}
+
+		/**
+		 * Returns the frames for which skeleton graphs were retained.
+		 */
+		public Set< Integer > getGraphFrames()
+		{
+			return Collections.unmodifiableSet( graphs.keySet() );
+		}
+
+		/**
+		 * Returns the skeleton graphs found in the specified frame, or
+		 * <code>null</code> if they were not retained. Pixel coordinates of
+		 * the graph points are relative to {@link #getOrigin()}.
+		 */
+		public Graph[] getGraphs( final int frame )
+		{
+			return graphs.get( Integer.valueOf( frame ) );
+		}
+
+		/**
+		 * Returns the end-point pixels of the skeleton found in the specified
+		 * frame, or <code>null</code> if they were not retained. Pixel
+		 * coordinates are relative to {@link #getOrigin()}.
+		 */
+		public List< Point > getEndPointPixels( final int frame )
+		{
+			return endPointPixels.get( Integer.valueOf( frame ) );
+		}
+
+		/**
+		 * Returns the pixel coordinates, in the source image, of the top-left
+		 * corner of the region the skeleton was analyzed in.
+		 */
+		public int[] getOrigin()
+		{
+			return origin;
 		}
 	}
 
@@ -0,0 +1,326 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
+import org.scijava.ItemIO;
+import org.scijava.app.StatusService;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.multithreading.SimpleMultiThreading;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+
+/**
+ * Detects the junctions and end-points of a skeleton stored as an ImgLib2
+ * {@link RandomAccessibleInterval}, without going through an
+ * {@link ImagePlus}.
+ * <p>
+ * The skeleton must have axes X, Y, [Z,] T, time being the last dimension.
+ * Frames are read one at a time as hyperslices, so a lazily loaded source
+ * such as a N5 or Zarr container (see {@link #open(File, String)}) is only
+ * read chunk by chunk, as the frames are processed. Only the frame being
+ * analyzed by each thread is copied to memory, as AnalyzeSkeleton works on
+ * ImageJ1 stacks.
+ *
+ * @param <T>
+ *            the pixel type of the skeleton. Any non-zero value is part of
+ *            the skeleton, or of the mask to skeletonize.
+ */
+@SuppressWarnings( "deprecation" )
+@Plugin( type = SkeletonKeyPointsDetectorRAI.class )
+public class SkeletonKeyPointsDetectorRAI< T extends RealType< T > > extends AbstractUnaryFunctionOp< RandomAccessibleInterval< T >, DetectionResults > implements MultiThreaded
+{
+
+	@Parameter
+	private LogService log;
+
+	@Parameter
+	private StatusService status;
+
+	@Parameter( type = ItemIO.INPUT, label = "Raw data", required = false )
+	private RandomAccessibleInterval< ? extends RealType< ? > > data;
+
+	@Parameter( type = ItemIO.INPUT, label = "Pixel sizes in X, Y and Z", required = false )
+	private double[] calibration = new double[] { 1., 1., 1. };
+
+	@Parameter( type = ItemIO.INPUT, label = "Frame interval", required = false )
+	private double frameInterval = 1.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Prunning method" )
+	private int prunningMethod = 3;
+
+	@Parameter( type = ItemIO.INPUT, label = "Skeletonize a binary mask?", required = false )
+	private boolean skeletonize = false;
+
+	@Parameter( type = ItemIO.INPUT, label = "Min branch length", required = false )
+	private double minBranchLength = 0.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Junction merge radius", required = false )
+	private double junctionMergeRadius = 0.;
+
+	@Parameter( type = ItemIO.INPUT, label = "Only re-analyze what changed between frames?", required = false )
+	private boolean incremental = false;
+
+	private int numThreads;
+
+	public SkeletonKeyPointsDetectorRAI()
+	{
+		setNumThreads();
+	}
+
+	@Override
+	public DetectionResults calculate( final RandomAccessibleInterval< T > skeleton )
+	{
+		final int nDims = skeleton.numDimensions();
+		if ( nDims != 3 && nDims != 4 )
+		{
+			log.error( "Skeleton must have axes X, Y, [Z,] T, but has " + nDims + " dimensions." );
+			return null;
+		}
+		if ( skeleton.dimension( 0 ) * skeleton.dimension( 1 ) > Integer.MAX_VALUE )
+		{
+			log.error( "Skeleton frames are too large to be analyzed: " + skeleton.dimension( 0 ) + " x " + skeleton.dimension( 1 ) + " pixels." );
+			return null;
+		}
+
+		final boolean needsData = SkeletonKeyPointsDetector.needsRawData( prunningMethod );
+		if ( needsData )
+		{
+			if ( null == data )
+			{
+				log.error( "Prunning method " + prunningMethod + " requires the raw data, but none was given." );
+				return null;
+			}
+			for ( int d = 0; d < nDims; d++ )
+			{
+				if ( data.dimension( d ) != skeleton.dimension( d ) )
+				{
+					log.error( "Raw data and skeleton do not have the same dimensions." );
+					return null;
+				}
+			}
+		}
+
+		final int[] start = new int[] {
+				( int ) skeleton.min( 0 ),
+				( int ) skeleton.min( 1 ),
+				nDims == 4 ? ( int ) skeleton.min( 2 ) : 0 };
+
+		final int tDim = nDims - 1;
+		final long minT = skeleton.min( tDim );
+		final int nFrames = ( int ) skeleton.dimension( tDim );
+
+		final boolean deltaMode = incremental && IncrementalSkeletonAnalysis.supports( prunningMethod );
+		if ( incremental && !deltaMode )
+			log.warn( "Incremental detection cannot be used with intensity-based prunning methods. Analyzing all frames fully." );
+
+		status.showStatus( "Processing skeleton." );
+
+		final AtomicInteger progress = new AtomicInteger( 0 );
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final SkeletonFrameAnalysis[] analyses = new SkeletonFrameAnalysis[ nFrames ];
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		for ( int ithread = 0; ithread < threads.length; ithread++ )
+		{
+
+			final AnalyzeSkeleton_ skelAnalyzer = new AnalyzeSkeleton_();
+
+			// In incremental mode, each thread processes consecutive frames.
+			final int chunkStart = ( int ) ( ( long ) ithread * nFrames / threads.length );
+			final int chunkEnd = ( int ) ( ( long ) ( ithread + 1 ) * nFrames / threads.length );
+			final IncrementalSkeletonAnalysis delta = deltaMode
+					? new IncrementalSkeletonAnalysis( skeletonize, prunningMethod, minBranchLength, junctionMergeRadius, frameInterval, calibration, start )
+					: null;
+
+			threads[ ithread ] = new Thread( "Detection thread " + ( 1 + ithread ) + "/" + threads.length )
+			{
+
+				@Override
+				public void run()
+				{
+					if ( deltaMode )
+					{
+						for ( int frame = chunkStart; frame < chunkEnd; frame++ )
+						{
+							final ImagePlus skeletonFrame = toSkeletonFrame( Views.hyperSlice( skeleton, tDim, minT + frame ) );
+							analyses[ frame ] = delta.analyze( skeletonFrame, frame );
+							status.showProgress( progress.incrementAndGet(), nFrames );
+						}
+						return;
+					}
+
+					for ( int frame = ai.getAndIncrement(); frame < nFrames; frame = ai.getAndIncrement() )
+					{
+						final ImagePlus skeletonFrame = toSkeletonFrame( Views.hyperSlice( skeleton, tDim, minT + frame ) );
+						final ImagePlus origImpFrame = needsData
+								? toDataFrame( Views.hyperSlice( data, tDim, data.min( tDim ) + frame ) )
+								: null;
+
+						analyses[ frame ] = SkeletonFrameAnalysis.analyze( skelAnalyzer, skeletonFrame, skeletonize, origImpFrame,
+								prunningMethod, minBranchLength, junctionMergeRadius, frame, frameInterval, calibration, start );
+
+						status.showProgress( progress.incrementAndGet(), nFrames );
+					}
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+
+		return SkeletonFrameAnalysis.collect( analyses, start );
+	}
+
+	/**
+	 * Copies a single frame of the skeleton to a 8-bit binary stack that
+	 * AnalyzeSkeleton can process.
+	 */
+	private ImagePlus toSkeletonFrame( final RandomAccessibleInterval< T > frame )
+	{
+		final int width = ( int ) frame.dimension( 0 );
+		final int height = ( int ) frame.dimension( 1 );
+		final int depth = frame.numDimensions() > 2 ? ( int ) frame.dimension( 2 ) : 1;
+
+		final ImageStack stack = new ImageStack( width, height );
+		final Cursor< T > cursor = Views.flatIterable( frame ).cursor();
+		for ( int z = 0; z < depth; z++ )
+		{
+			final byte[] pixels = new byte[ width * height ];
+			for ( int i = 0; i < pixels.length; i++ )
+				if ( cursor.next().getRealDouble() != 0. )
+					pixels[ i ] = ( byte ) 255;
+			stack.addSlice( new ByteProcessor( width, height, pixels ) );
+		}
+		return wrap( stack );
+	}
+
+	/**
+	 * Copies a single frame of the raw data to a 32-bit stack.
+	 */
+	private ImagePlus toDataFrame( final RandomAccessibleInterval< ? extends RealType< ? > > frame )
+	{
+		final int width = ( int ) frame.dimension( 0 );
+		final int height = ( int ) frame.dimension( 1 );
+		final int depth = frame.numDimensions() > 2 ? ( int ) frame.dimension( 2 ) : 1;
+
+		final ImageStack stack = new ImageStack( width, height );
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( frame ).cursor();
+		for ( int z = 0; z < depth; z++ )
+		{
+			final float[] pixels = new float[ width * height ];
+			for ( int i = 0; i < pixels.length; i++ )
+				pixels[ i ] = cursor.next().getRealFloat();
+			stack.addSlice( new FloatProcessor( width, height, pixels ) );
+		}
+		return wrap( stack );
+	}
+
+	/**
+	 * Wraps a frame stack with the source calibration, so that AnalyzeSkeleton
+	 * measures branch lengths in physical units.
+	 */
+	private ImagePlus wrap( final ImageStack stack )
+	{
+		final ImagePlus imp = new ImagePlus( "", stack );
+		final Calibration cal = imp.getCalibration();
+		cal.pixelWidth = calibration[ 0 ];
+		cal.pixelHeight = calibration[ 1 ];
+		cal.pixelDepth = calibration[ 2 ];
+		return imp;
+	}
+
+	/**
+	 * Opens a dataset of a N5 or Zarr container on disk as a lazily loaded
+	 * image. Blocks are only read when accessed, so the returned image can be
+	 * given to this detector whatever its size.
+	 *
+	 * @param container
+	 *            the container folder. It is read as a Zarr container if it
+	 *            has a <code>.zarr</code> extension or contains Zarr metadata,
+	 *            as a N5 container otherwise.
+	 * @param dataset
+	 *            the path to the dataset in the container.
+	 * @return a new lazily loaded image.
+	 * @throws IOException
+	 *             if the container cannot be read.
+	 */
+	public static < T extends NativeType< T > & RealType< T > > RandomAccessibleInterval< T > open( final File container, final String dataset ) throws IOException
+	{
+		final String path = container.getAbsolutePath();
+		final boolean isZarr = path.toLowerCase().endsWith( ".zarr" )
+				|| new File( container, ".zgroup" ).exists()
+				|| new File( container, ".zarray" ).exists();
+		final N5Reader reader = isZarr
+				? new N5ZarrReader( path )
+				: new N5FSReader( path );
+		return N5Utils.open( reader, dataset );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+}
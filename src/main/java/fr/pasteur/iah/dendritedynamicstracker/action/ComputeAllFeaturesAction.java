@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker.action;
+
+import static fiji.plugin.trackmate.gui.Icons.CALCULATOR_ICON;
+
+import java.awt.Frame;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.action.AbstractTMAction;
+import fiji.plugin.trackmate.action.TrackMateAction;
+import fiji.plugin.trackmate.action.TrackMateActionFactory;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import fr.pasteur.iah.dendritedynamicstracker.DendriteTrackAnalysis;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.DendriteTrackNIncorrectIDs;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.JunctionIDAnalyzerFactory;
+
+public class ComputeAllFeaturesAction extends AbstractTMAction
+{
+
+	public static final ImageIcon ICON = CALCULATOR_ICON;
+
+	public static final String NAME = "Compute all TrackMate features";
+
+	public static final String KEY = "COMPUTE_ALL_DDT_FEATURES";
+
+	public static final String INFO_TEXT = "<html>"
+			+ "This action computes all the TrackMate spot, edge and track features "
+			+ "on the results of the <b>Dendrite Dynamics Tracker</b>. "
+			+ "<p> "
+			+ "<p> "
+			+ "When the tracker runs with the <i>DDT minimal</i> analyzer profile, "
+			+ "only the features needed by the dendrite analysis are computed. Run "
+			+ "this action before opening the tables to get the others. "
+			+ "</html>";
+
+	@Override
+	public void execute( final TrackMate trackmate, final SelectionModel selectionModel, final DisplaySettings displaySettings, final Frame parent )
+	{
+		logger.log( "Computing all features...\n" );
+		trackmate.getSettings().addAllAnalyzers();
+		trackmate.getSettings().addSpotAnalyzerFactory( new JunctionIDAnalyzerFactory<>() );
+		trackmate.computeSpotFeatures( true );
+		trackmate.computeEdgeFeatures( true );
+
+		// The track analyzer resets the counts set by patching.
+		final FeatureModel featureModel = trackmate.getModel().getFeatureModel();
+		final Map< Integer, Double > nIncorrectIDs = new HashMap<>();
+		for ( final Integer trackID : trackmate.getModel().getTrackModel().trackIDs( false ) )
+			nIncorrectIDs.put( trackID, featureModel.getTrackFeature( trackID, DendriteTrackNIncorrectIDs.FEATURE ) );
+		trackmate.computeTrackFeatures( true );
+		for ( final Map.Entry< Integer, Double > entry : nIncorrectIDs.entrySet() )
+			if ( null != entry.getValue() )
+				featureModel.putTrackFeature( entry.getKey(), DendriteTrackNIncorrectIDs.FEATURE, entry.getValue() );
+
+		DendriteTrackAnalysis.computeBranchFeatures( trackmate );
+		logger.log( "Done.\n" );
+	}
+
+	@Plugin( type = TrackMateActionFactory.class )
+	public static class Factory implements TrackMateActionFactory
+	{
+
+		@Override
+		public String getInfoText()
+		{
+			return INFO_TEXT;
+		}
+
+		@Override
+		public String getKey()
+		{
+			return KEY;
+		}
+
+		@Override
+		public ImageIcon getIcon()
+		{
+			return ICON;
+		}
+
+		@Override
+		public String getName()
+		{
+			return NAME;
+		}
+
+		@Override
+		public TrackMateAction create()
+		{
+			return new ComputeAllFeaturesAction();
+		}
+	}
+}
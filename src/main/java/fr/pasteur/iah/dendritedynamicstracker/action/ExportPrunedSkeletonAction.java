@@ -49,14 +49,28 @@ import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
 import static fiji.plugin.trackmate.gui.Icons.LABEL_IMG_ICON;
 
 import java.awt.Frame;
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Objects;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import sc.fiji.analyzeSkeleton.*;
+import fr.pasteur.iah.dendritedynamicstracker.DendriteDynamicsSession;
+import fr.pasteur.iah.dendritedynamicstracker.PackedSkeleton;
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
 import ij.ImagePlus;
-import ij.ImageStack;
-import ij.plugin.Concatenator;
-import ij.plugin.Duplicator;
+import ij.VirtualStack;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+import net.imglib2.multithreading.SimpleMultiThreading;
 
 import javax.swing.ImageIcon;
 
@@ -68,33 +82,57 @@ public class ExportPrunedSkeletonAction extends AbstractTMAction {
 
     public static final String INFO_TEXT = "<html>"
             + "This action generates a new version of the skeleton given to the <b>Dendrite Dynamics Tracker</b> in which "
-            + "all terminal branches whose tips were not incorporated in a track have been pruned."
+            + "all terminal branches whose tips were not incorporated in a track have been pruned. "
+            + "<p>"
+            + "The skeleton graphs of the tracking run are reused when they cover the whole skeleton, "
+            + "that is when it was run without cycle-prunning, branch or junction filtering, and ROI. "
+            + "Otherwise, and in particular with the default cycle-prunning method, the skeleton of "
+            + "each frame is analyzed again. The log says which is used. "
             + "</html>";
 
+    /**
+     * The skeleton channel to use when the model was not generated in this
+     * session.
+     */
+    private static final int DEFAULT_SKELETON_CHANNEL = 2;
+
     @Override
     public void execute(final TrackMate trackmate, final SelectionModel selectionModel,
             final DisplaySettings displaySettings, final Frame gui) {
         final Logger logger = trackmate.getModel().getLogger();
+        final DendriteDynamicsSession session = DendriteDynamicsSession.get(trackmate.getModel());
         /*
          * Generate label image.
          */
-        createPrunedSkeleton(trackmate.getModel(), trackmate.getSettings().imp, logger)
+        createPrunedSkeleton(trackmate.getModel(), trackmate.getSettings().imp, session, logger)
                 .show();
     }
 
     /**
-     * Creates a new label {@link ImagePlus} where the spots of the specified
-     * model are painted as ellipsoids taken from their shape, with their track
-     * ID as pixel value.
+     * Creates a new skeleton {@link ImagePlus} in which the terminal branches
+     * whose tips were not incorporated in a track of the specified model are
+     * erased.
+     * <p>
+     * If a session is specified and it retained the complete skeleton graphs
+     * of the detection step, they are reused. Otherwise the skeleton of each
+     * frame is analyzed again, so that branches discarded by the detection or
+     * out of its ROI are pruned too. If the session skeletonized a binary mask
+     * before detection, each frame is skeletonized the same way before it is
+     * pruned. Frames are processed in parallel.
      *
      * @param model
-     *                    the model from which we takes the spots to paint.
+     *                    the model from which we takes the tracked spots.
      * @param originalImp
-     *                    a source image to read calibration, name and
-     *                    dimension from.
-     *                    The output image will have the same size that
-     *                    of this source image, except for the number of
-     *                    channels, which will be 1.
+     *                    the source image to read the skeleton, calibration,
+     *                    name and dimension from. The output image will have
+     *                    the same width, height, number of slices and number
+     *                    of frames than this source image, with 1 channel. It
+     *                    is a 8-bit view of a skeleton packed one bit per
+     *                    pixel.
+     * @param session
+     *                    the session that generated the model, or
+     *                    <code>null</code> if the model was not generated in
+     *                    this session.
      * @param logger
      *                    a {@link Logger} instance, to report progress of
      *                    the export
@@ -102,86 +140,425 @@ public class ExportPrunedSkeletonAction extends AbstractTMAction {
      *
      * @return a new {@link ImagePlus}.
      */
-    private static final ImagePlus createPrunedSkeleton(
+    public static final ImagePlus createPrunedSkeleton(
             final Model model,
             final ImagePlus originalImp,
+            final DendriteDynamicsSession session,
             final Logger logger) {
 
-        ImagePlus imp = originalImp.duplicate();
-        double dx = originalImp.getCalibration().pixelWidth;
-        double dy = originalImp.getCalibration().pixelHeight;
-
-        // Get tracks and spots
-        TrackModel trackModel = model.getTrackModel();
-        SpotCollection spots = SpotCollection.fromCollection(trackModel.vertexSet());
-        // print("Num. Spots after filtering by duration:" + spots.getNSpots(true));
-
-        ///// Pruning of branches //////
-        int nFrames = imp.getNFrames();
-        ImagePlus skeleton = new Duplicator().run(imp, 2, 2, 1, 1, 1, nFrames);
-        // print("Frames:" + nFrames);
-        ImagePlus[] prunedFrames = new ImagePlus[nFrames];
-
-        // Loop through frames, pruning terminal branches not in a track, from each
-        for (int frameIndex = 1; frameIndex <= nFrames; frameIndex++) {
-            logger.setProgress((double) frameIndex / (double) nFrames);
-            // duplicate the current frame
-            ImagePlus frame = new Duplicator().run(skeleton, 1, 1, 1, 1, frameIndex, frameIndex);
-
-            // analyze skeleton
-            AnalyzeSkeleton_ skel = new AnalyzeSkeleton_();
-            skel.setup("", frame);
-            SkeletonResult skelResult = skel.run(AnalyzeSkeleton_.NONE, false, false, null, true, false);
-
-            // create copy of input image
-            ImageStack outStack = frame.getStack();
-
-            // get graphs (one per skeleton in the image)
-            Graph[] graph = skelResult.getGraph();
-
-            // list of end-points
-            ArrayList<Point> endPoints = skelResult.getListOfEndPoints();
-
-            // iterate through graphs
-            for (int i = 0; i < graph.length; i++) {
-                ArrayList<Edge> listEdges = graph[i].getEdges();
-
-                // iterate through edges
-                for (Edge e : listEdges) {
-                    ArrayList<Point> p1 = e.getV1().getPoints();
-                    ArrayList<Point> p2 = e.getV2().getPoints();
-
-                    boolean v1End = endPoints.contains(p1.get(0));
-                    boolean v2End = endPoints.contains(p2.get(0));
-                    // if v1 or v2 are tips of skeleton
-                    if (v1End || v2End) {
-                        // Convert points to spots
-                        Spot v1Position = new Spot(dx * p1.get(0).x, dy * p1.get(0).y, 0, 0, 0);
-                        Spot v2Position = new Spot(dx * p2.get(0).x, dy * p2.get(0).y, 0, 0, 0);
-
-                        // Find spot corresponding to points, null if none exist
-                        Spot spotAtV1 = spots.getSpotAt(v1Position, frameIndex - 1, true);
-                        Spot spotAtV2 = spots.getSpotAt(v2Position, frameIndex - 1, true);
-                        if (Objects.isNull(spotAtV1) && Objects.isNull(spotAtV2)) {
-                            if (v1End)
-                                outStack.setVoxel(p1.get(0).x, p1.get(0).y, p1.get(0).z, 0);
-                            if (v2End)
-                                outStack.setVoxel(p2.get(0).x, p2.get(0).y, p2.get(0).z, 0);
-                            for (Point p : e.getSlabs())
-                                outStack.setVoxel(p.x, p.y, p.z, 0);
-                        }
+        final int nFrames = originalImp.getNFrames();
+        final Pruner pruner = new Pruner(model, originalImp, session, logger);
+
+        ///// Pruning of branches, in place in the packed skeleton //////
+        final AtomicInteger ai = new AtomicInteger(0);
+        final AtomicInteger progress = new AtomicInteger(0);
+        final Thread[] threads = SimpleMultiThreading.newThreads();
+        for (int ithread = 0; ithread < threads.length; ithread++) {
+            threads[ithread] = new Thread("Pruning skeleton thread " + (1 + ithread) + "/" + threads.length) {
+
+                @Override
+                public void run() {
+                    final AnalyzeSkeleton_ skel = new AnalyzeSkeleton_();
+                    for (int frame = ai.getAndIncrement(); frame < nFrames; frame = ai.getAndIncrement()) {
+                        pruner.prune(frame, skel);
+                        logger.setProgress((double) progress.incrementAndGet() / (double) nFrames);
                     }
                 }
-            }
-            prunedFrames[frameIndex - 1] = frame;
+            };
         }
+        SimpleMultiThreading.startAndJoin(threads);
 
-        // Concatenate slices
-        ImagePlus out = Concatenator.run(prunedFrames);
-        out.setTitle(originalImp.getShortTitle() + "_pruned");
+        // view of the packed skeleton, unpacked slice by slice
+        final ImagePlus out = pruner.skeleton.toImagePlus(originalImp.getShortTitle() + "_pruned");
+        out.setCalibration(originalImp.getCalibration().copy());
         return out;
     }
 
+    /**
+     * Prunes the skeleton like {@link #createPrunedSkeleton} does, but writes
+     * the pruned frames to a multi-page TIFF file as they are computed instead
+     * of keeping them in memory. Only a few unpacked frames ahead of the
+     * writer are held at any time. The skeleton channel itself is still packed
+     * whole, at one bit per pixel, even if the source image is virtual.
+     *
+     * @param model
+     *                    the model from which we takes the tracked spots.
+     * @param originalImp
+     *                    the source image to read the skeleton, calibration,
+     *                    name and dimension from.
+     * @param session
+     *                    the session that generated the model, or
+     *                    <code>null</code> if the model was not generated in
+     *                    this session.
+     * @param file
+     *                    the TIFF file to write.
+     * @param logger
+     *                    a {@link Logger} instance, to report progress of
+     *                    the export
+     *                    process.
+     *
+     * @return <code>true</code> if the file was written successfully.
+     */
+    public static final boolean savePrunedSkeleton(
+            final Model model,
+            final ImagePlus originalImp,
+            final DendriteDynamicsSession session,
+            final File file,
+            final Logger logger) {
+
+        final PrunedSkeletonStack stack = new PrunedSkeletonStack(new Pruner(model, originalImp, session, logger), logger);
+        try {
+            final ImagePlus out = new ImagePlus(originalImp.getShortTitle() + "_pruned", stack);
+            out.setDimensions(1, stack.depth(), stack.getSize() / stack.depth());
+            out.setCalibration(originalImp.getCalibration().copy());
+            out.setOpenAsHyperStack(true);
+            final FileSaver saver = new FileSaver(out);
+            return stack.getSize() > 1
+                    ? saver.saveAsTiffStack(file.getAbsolutePath())
+                    : saver.saveAsTiff(file.getAbsolutePath());
+        } finally {
+            stack.dispose();
+        }
+    }
+
+    /**
+     * Prunes the frames of one skeleton movie, reusing the retained detection
+     * graphs when they are complete. The skeleton channel is packed one bit per
+     * pixel, and pruned in place. Each frame is pruned only once, however many
+     * times it is requested: pruning a frame again would erode it further.
+     */
+    private static final class Pruner {
+
+        private final PackedSkeleton skeleton;
+
+        private final SpotCollection spots;
+
+        private final DetectionResults detectionResults;
+
+        private final boolean skeletonize;
+
+        private final double dx;
+
+        private final double dy;
+
+        /**
+         * The frames already pruned, guarded by the frame locks.
+         */
+        private final boolean[] pruned;
+
+        private final Object[] frameLocks;
+
+        Pruner(final Model model, final ImagePlus originalImp, final DendriteDynamicsSession session,
+                final Logger logger) {
+            this.dx = originalImp.getCalibration().pixelWidth;
+            this.dy = originalImp.getCalibration().pixelHeight;
+            // graphs pruned or cropped by the detection miss untracked branches
+            this.detectionResults = (session == null || !session.hasCompleteGraphs()) ? null
+                    : session.getDetectionResults();
+            if (session == null)
+                logger.log("The model was not generated in this session: analyzing the skeleton of each frame.\n");
+            else if (detectionResults == null)
+                logger.log("The detection used cycle-prunning, branch or junction filtering, or a ROI, "
+                        + "so its skeleton graphs are incomplete: analyzing the skeleton of each frame again.\n");
+            else
+                logger.log("Reusing the skeleton graphs of the detection.\n");
+            final int skeletonChannel = (session == null) ? DEFAULT_SKELETON_CHANNEL : session.getSkeletonChannel();
+            this.skeletonize = session != null && session.isSkeletonize();
+            this.skeleton = PackedSkeleton.fromImage(originalImp, skeletonChannel,
+                    Runtime.getRuntime().availableProcessors());
+            this.pruned = new boolean[skeleton.getNFrames()];
+            this.frameLocks = new Object[pruned.length];
+            for (int t = 0; t < frameLocks.length; t++)
+                frameLocks[t] = new Object();
+
+            // Get tracks and spots
+            TrackModel trackModel = model.getTrackModel();
+            this.spots = SpotCollection.fromCollection(trackModel.vertexSet());
+        }
+
+        /**
+         * Returns <code>true</code> if the specified frame (0-based) was pruned
+         * already.
+         */
+        boolean isPruned(final int frame) {
+            synchronized (frameLocks[frame]) {
+                return pruned[frame];
+            }
+        }
+
+        /**
+         * Prunes the specified frame (0-based) of the packed skeleton, if it was
+         * not pruned already.
+         */
+        void prune(final int frame, final AnalyzeSkeleton_ skel) {
+            synchronized (frameLocks[frame]) {
+                if (pruned[frame])
+                    return;
+                pruneOnce(frame, skel);
+                pruned[frame] = true;
+            }
+        }
+
+        private void pruneOnce(final int frame, final AnalyzeSkeleton_ skel) {
+            // the graphs were built on the skeleton of the mask, not on the mask
+            if (skeletonize)
+                skeleton.skeletonize(frame);
+
+            // reuse the graphs of the detection step if we have them
+            Graph[] graphs = null;
+            List<Point> endPoints = null;
+            int[] origin = detectionResults == null ? null : detectionResults.getOrigin();
+            if (detectionResults != null) {
+                graphs = detectionResults.getGraphs(frame);
+                endPoints = detectionResults.getEndPointPixels(frame);
+            }
+            if (graphs == null || endPoints == null) {
+                // analyze skeleton
+                skel.setup("", new ImagePlus("", skeleton.toStack(frame)));
+                SkeletonResult skelResult = skel.run(AnalyzeSkeleton_.NONE, false, false, null, true, false);
+                graphs = skelResult.getGraph();
+                endPoints = skelResult.getListOfEndPoints();
+                origin = new int[3];
+            }
+
+            pruneFrame(skeleton, graphs, endPoints, origin, spots, frame, dx, dy);
+        }
+    }
+
+    /**
+     * A virtual stack whose slices are the pruned frames, computed in
+     * background threads a few frames ahead of the slice being read. Meant to
+     * be read in order, as the TIFF writer does. Frames read again are not
+     * pruned again.
+     */
+    private static final class PrunedSkeletonStack extends VirtualStack {
+
+        private final Pruner pruner;
+
+        private final Logger logger;
+
+        private final ExecutorService executor;
+
+        private final ThreadLocal<AnalyzeSkeleton_> analyzers = ThreadLocal.withInitial(AnalyzeSkeleton_::new);
+
+        private final Map<Integer, Future<?>> pending = new HashMap<>();
+
+        private final int prefetch;
+
+        private int lastFrame = -1;
+
+        PrunedSkeletonStack(final Pruner pruner, final Logger logger) {
+            super(pruner.skeleton.getWidth(), pruner.skeleton.getHeight(), null, null);
+            this.pruner = pruner;
+            this.logger = logger;
+            final int nThreads = Runtime.getRuntime().availableProcessors();
+            this.executor = Executors.newFixedThreadPool(nThreads);
+            this.prefetch = 2 * nThreads;
+        }
+
+        @Override
+        public synchronized ImageProcessor getProcessor(final int n) {
+            final int z = (n - 1) % depth();
+            final int frame = (n - 1) / depth();
+            if (frame == lastFrame || pruner.isPruned(frame))
+                return pruner.skeleton.toProcessor(z, frame);
+
+            // drop what is behind us, schedule what is ahead
+            pending.keySet().removeIf(f -> {
+                if (f.intValue() < frame) {
+                    pending.get(f).cancel(false);
+                    return true;
+                }
+                return false;
+            });
+            final int last = Math.min(nFrames(), frame + prefetch);
+            for (int f = frame; f < last; f++) {
+                final int target = f;
+                pending.computeIfAbsent(Integer.valueOf(f),
+                        k -> executor.submit(() -> pruner.prune(target, analyzers.get())));
+            }
+
+            try {
+                pending.remove(Integer.valueOf(frame)).get();
+            } catch (final InterruptedException | ExecutionException e) {
+                throw new RuntimeException("Could not prune frame " + (frame + 1) + ": " + e.getMessage(), e);
+            }
+            lastFrame = frame;
+            logger.setProgress((double) (frame + 1) / nFrames());
+            return pruner.skeleton.toProcessor(z, frame);
+        }
+
+        @Override
+        public int getSize() {
+            return depth() * nFrames();
+        }
+
+        @Override
+        public String getSliceLabel(final int n) {
+            return "t" + (1 + (n - 1) / depth());
+        }
+
+        @Override
+        public int getBitDepth() {
+            return 8;
+        }
+
+        int depth() {
+            return pruner.skeleton.getDepth();
+        }
+
+        private int nFrames() {
+            return pruner.skeleton.getNFrames();
+        }
+
+        /**
+         * Stops the background threads.
+         */
+        void dispose() {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Erases from the specified frame of the skeleton the terminal branches of the specified
+     * graphs whose tips do not correspond to a tracked spot.
+     *
+     * @param skeleton
+     *                    the skeleton to prune.
+     * @param graphs
+     *                    the skeleton graphs of this frame.
+     * @param endPoints
+     *                    the end-point pixels of this frame.
+     * @param origin
+     *                    the pixel position in the stack of the graph
+     *                    coordinates origin.
+     * @param spots
+     *                    the tracked spots.
+     * @param frame
+     *                    the frame, 0-based.
+     * @param dx
+     *                    the pixel width.
+     * @param dy
+     *                    the pixel height.
+     */
+    private static void pruneFrame(
+            final PackedSkeleton skeleton,
+            final Graph[] graphs,
+            final List<Point> endPoints,
+            final int[] origin,
+            final SpotCollection spots,
+            final int frame,
+            final double dx,
+            final double dy) {
+
+        // hash the end-points and the tracked spots of this frame
+        final Set<Long> endPointKeys = new HashSet<>(2 * endPoints.size());
+        for (Point p : endPoints)
+            endPointKeys.add(pixelKey(p));
+        final SpotGrid trackedSpots = new SpotGrid(spots.iterable(frame, true));
+
+        // iterate through graphs
+        for (int i = 0; i < graphs.length; i++) {
+            ArrayList<Edge> listEdges = graphs[i].getEdges();
+
+            // iterate through edges
+            for (Edge e : listEdges) {
+                Point p1 = e.getV1().getPoints().get(0);
+                Point p2 = e.getV2().getPoints().get(0);
+
+                boolean v1End = endPointKeys.contains(pixelKey(p1));
+                boolean v2End = endPointKeys.contains(pixelKey(p2));
+                // if v1 or v2 are tips of skeleton
+                if (v1End || v2End) {
+                    // Find spot corresponding to points
+                    boolean spotAtV1 = trackedSpots.hasSpotAt(dx * (origin[0] + p1.x), dy * (origin[1] + p1.y));
+                    boolean spotAtV2 = trackedSpots.hasSpotAt(dx * (origin[0] + p2.x), dy * (origin[1] + p2.y));
+                    if (!spotAtV1 && !spotAtV2) {
+                        if (v1End)
+                            erase(skeleton, frame, p1, origin);
+                        if (v2End)
+                            erase(skeleton, frame, p2, origin);
+                        for (Point p : e.getSlabs())
+                            erase(skeleton, frame, p, origin);
+                    }
+                }
+            }
+        }
+    }
+
+    private static long pixelKey(final Point p) {
+        return ((long) p.z << 42) | ((long) p.y << 21) | p.x;
+    }
+
+    private static void erase(final PackedSkeleton skeleton, final int frame, final Point p, final int[] origin) {
+        skeleton.set(origin[0] + p.x, origin[1] + p.y, origin[2] + p.z, frame, false);
+    }
+
+    /**
+     * Spatial hash of the spots of one frame, with cells as large as the
+     * largest spot radius so that a query only has to look in the 3x3
+     * neighbouring cells.
+     */
+    private static final class SpotGrid {
+
+        private final Map<Long, List<Spot>> cells = new HashMap<>();
+
+        private final double cellSize;
+
+        SpotGrid(final Iterable<Spot> spots) {
+            final List<Spot> list = new ArrayList<>();
+            double maxRadius = 0.;
+            for (Spot spot : spots) {
+                list.add(spot);
+                maxRadius = Math.max(maxRadius, spot.getFeature(Spot.RADIUS).doubleValue());
+            }
+            this.cellSize = maxRadius;
+            if (cellSize <= 0.)
+                return;
+
+            for (Spot spot : list)
+                cells.computeIfAbsent(cellKey(cell(spot.getDoublePosition(0)), cell(spot.getDoublePosition(1))),
+                        k -> new ArrayList<>()).add(spot);
+        }
+
+        /**
+         * Returns <code>true</code> if the specified position, at z = 0, lies
+         * inside one of the spots, like {@link SpotCollection#getSpotAt} does.
+         */
+        boolean hasSpotAt(final double x, final double y) {
+            if (cellSize <= 0.)
+                return false;
+
+            final long cx = cell(x);
+            final long cy = cell(y);
+            for (long i = cx - 1; i <= cx + 1; i++) {
+                for (long j = cy - 1; j <= cy + 1; j++) {
+                    final List<Spot> cell = cells.get(cellKey(i, j));
+                    if (cell == null)
+                        continue;
+
+                    for (Spot spot : cell) {
+                        final double ex = spot.getDoublePosition(0) - x;
+                        final double ey = spot.getDoublePosition(1) - y;
+                        final double ez = spot.getDoublePosition(2);
+                        final double radius = spot.getFeature(Spot.RADIUS).doubleValue();
+                        if (ex * ex + ey * ey + ez * ez < radius * radius)
+                            return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private long cell(final double position) {
+            return (long) Math.floor(position / cellSize);
+        }
+
+        private static Long cellKey(final long i, final long j) {
+            return Long.valueOf((i << 32) ^ (j & 0xffffffffL));
+        }
+    }
+
     @Plugin(type = TrackMateActionFactory.class)
     public static class Factory implements TrackMateActionFactory {
 
@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker.action;
+
+import static fiji.plugin.trackmate.gui.Icons.LABEL_IMG_ICON;
+
+import java.awt.Frame;
+import java.io.File;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.action.AbstractTMAction;
+import fiji.plugin.trackmate.action.TrackMateAction;
+import fiji.plugin.trackmate.action.TrackMateActionFactory;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import fr.pasteur.iah.dendritedynamicstracker.DendriteDynamicsSession;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.SaveDialog;
+
+public class SavePrunedSkeletonAction extends AbstractTMAction
+{
+
+	public static final String NAME = "Prune untracked terminal branches and save to a .tif file.";
+
+	public static final String KEY = "SAVE_PRUNED_SKELETON";
+
+	public static final String INFO_TEXT = "<html>"
+			+ "This action generates the same pruned skeleton as the <i>Prune untracked terminal branches</i> "
+			+ "action, but writes it frame by frame to a TIFF file instead of displaying it. "
+			+ "<p> "
+			+ "Use it for long movies: the pruned movie is never held in memory as a whole."
+			+ "</html>";
+
+	@Override
+	public void execute( final TrackMate trackmate, final SelectionModel selectionModel, final DisplaySettings displaySettings, final Frame parent )
+	{
+		final ImagePlus imp = trackmate.getSettings().imp;
+		final FileInfo fileInfo = imp.getOriginalFileInfo();
+		final String defaultDir = ( null == fileInfo || null == fileInfo.directory ) ? null : fileInfo.directory;
+		final SaveDialog dialog = new SaveDialog( "Save pruned skeleton", defaultDir, imp.getShortTitle() + "_pruned", ".tif" );
+		if ( null == dialog.getFileName() )
+			return;
+
+		final File file = new File( dialog.getDirectory(), dialog.getFileName() );
+		logger.log( "Saving pruned skeleton to " + file + "...\n" );
+		final DendriteDynamicsSession session = DendriteDynamicsSession.get( trackmate.getModel() );
+		if ( !ExportPrunedSkeletonAction.savePrunedSkeleton( trackmate.getModel(), imp, session, file, logger ) )
+			logger.error( "Error while saving the pruned skeleton to " + file + ".\n" );
+		else
+			logger.log( "Done.\n" );
+	}
+
+	@Plugin( type = TrackMateActionFactory.class )
+	public static class Factory implements TrackMateActionFactory
+	{
+
+		@Override
+		public String getInfoText()
+		{
+			return INFO_TEXT;
+		}
+
+		@Override
+		public String getKey()
+		{
+			return KEY;
+		}
+
+		@Override
+		public TrackMateAction create()
+		{
+			return new SavePrunedSkeletonAction();
+		}
+
+		@Override
+		public ImageIcon getIcon()
+		{
+			return LABEL_IMG_ICON;
+		}
+
+		@Override
+		public String getName()
+		{
+			return NAME;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker.trackmate.feature;
+
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackDurationAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackSpotQualityFeatureAnalyzer;
+
+/**
+ * Which analyzers compute the features of the end-point tracks.
+ */
+public enum DendriteAnalyzerProfile
+{
+	/**
+	 * All the TrackMate analyzers, intensity and morphology included.
+	 */
+	ALL( "All TrackMate analyzers" ),
+	/**
+	 * Only the analyzers that the patching, the dendrite analyzers and the
+	 * exporters read, plus the ones TrackMate needs to display tracks. The
+	 * other features can be computed later with the 'Compute all features'
+	 * action.
+	 */
+	DDT_MINIMAL( "DDT minimal" );
+
+	private final String label;
+
+	private DendriteAnalyzerProfile( final String label )
+	{
+		this.label = label;
+	}
+
+	@Override
+	public String toString()
+	{
+		return label;
+	}
+
+	/**
+	 * Adds the analyzers of this profile to the specified settings.
+	 */
+	public void addAnalyzers( final Settings settings )
+	{
+		switch ( this )
+		{
+		case DDT_MINIMAL:
+			settings.addSpotAnalyzerFactory( new BranchLengthAnalyzerFactory<>() );
+			settings.addEdgeAnalyzer( new EdgeTargetAnalyzer() );
+			settings.addTrackAnalyzer( new TrackIndexAnalyzer() );
+			settings.addTrackAnalyzer( new TrackDurationAnalyzer() );
+			// Tells branch tracks from junction tracks.
+			settings.addTrackAnalyzer( new TrackSpotQualityFeatureAnalyzer() );
+			settings.addTrackAnalyzer( new DendriteTrackNIncorrectIDs() );
+			break;
+		case ALL:
+		default:
+			settings.addAllAnalyzers();
+			break;
+		}
+	}
+}
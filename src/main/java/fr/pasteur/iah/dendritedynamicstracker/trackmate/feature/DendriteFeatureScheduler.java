@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker.trackmate.feature;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.features.FeatureAnalyzer;
+import fiji.plugin.trackmate.features.edges.EdgeAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackSpotQualityFeatureAnalyzer;
+
+/**
+ * Recomputes the features of the dendrite analyzers that depend on features
+ * changed outside of TrackMate, such as the branch length and junction ID of
+ * end-points after patching, instead of running all the analyzers on the
+ * whole model again.
+ * <p>
+ * Each analyzer is declared with the features it reads. It is run only when
+ * one of them is invalidated, and then invalidates the features it writes.
+ * Analyzers are declared in an order that respects these dependencies, so a
+ * single pass is enough.
+ */
+public class DendriteFeatureScheduler
+{
+
+	private static final List< Dependency > DEPENDENCIES = Arrays.asList(
+			new Dependency(
+					TotalBranchTravelAnalyzer::new,
+					Spot.FRAME,
+					BranchLengthAnalyzerFactory.FEATURE,
+					TrackSpotQualityFeatureAnalyzer.TRACK_MEAN_QUALITY ),
+			new Dependency(
+					BranchGrowPhaseAnalyzer::new,
+					Spot.POSITION_X,
+					Spot.POSITION_Y,
+					BranchLengthAnalyzerFactory.FEATURE,
+					TrackSpotQualityFeatureAnalyzer.TRACK_MEAN_QUALITY ) );
+
+	private DendriteFeatureScheduler()
+	{}
+
+	/**
+	 * Runs the dendrite analyzers that read, directly or not, one of the
+	 * specified features, on the specified tracks and their edges. The
+	 * analyzers are added to the settings of the TrackMate and their features
+	 * are declared in its feature model.
+	 *
+	 * @param trackmate
+	 *            the TrackMate to update.
+	 * @param trackIDs
+	 *            the IDs of the tracks whose features changed.
+	 * @param invalidatedFeatures
+	 *            the spot, edge or track features that changed.
+	 */
+	public static void recompute(
+			final TrackMate trackmate,
+			final Collection< Integer > trackIDs,
+			final Collection< String > invalidatedFeatures )
+	{
+		if ( trackIDs.isEmpty() )
+			return;
+
+		final Set< String > invalidated = new HashSet<>( invalidatedFeatures );
+		for ( final Dependency dependency : DEPENDENCIES )
+		{
+			if ( Collections.disjoint( dependency.reads, invalidated ) )
+				continue;
+
+			invalidated.addAll( dependency.run( trackmate, trackIDs ) );
+		}
+	}
+
+	private static final class Dependency
+	{
+
+		private final Supplier< ? extends FeatureAnalyzer > factory;
+
+		private final Set< String > reads;
+
+		private Dependency( final Supplier< ? extends FeatureAnalyzer > factory, final String... reads )
+		{
+			this.factory = factory;
+			this.reads = new HashSet<>( Arrays.asList( reads ) );
+		}
+
+		/**
+		 * Runs the analyzer and returns the features it wrote.
+		 */
+		private List< String > run( final TrackMate trackmate, final Collection< Integer > trackIDs )
+		{
+			final Model model = trackmate.getModel();
+			final Settings settings = trackmate.getSettings();
+			final FeatureModel featureModel = model.getFeatureModel();
+			final FeatureAnalyzer analyzer = factory.get();
+			analyzer.setNumThreads( trackmate.getNumThreads() );
+			if ( analyzer instanceof EdgeAnalyzer )
+			{
+				final EdgeAnalyzer edgeAnalyzer = ( EdgeAnalyzer ) analyzer;
+				settings.addEdgeAnalyzer( edgeAnalyzer );
+				featureModel.declareEdgeFeatures(
+						edgeAnalyzer.getFeatures(),
+						edgeAnalyzer.getFeatureNames(),
+						edgeAnalyzer.getFeatureShortNames(),
+						edgeAnalyzer.getFeatureDimensions(),
+						edgeAnalyzer.getIsIntFeature() );
+
+				final List< DefaultWeightedEdge > edges = new ArrayList<>();
+				for ( final Integer trackID : trackIDs )
+					edges.addAll( model.getTrackModel().trackEdges( trackID ) );
+
+				edgeAnalyzer.process( edges, model );
+				return edgeAnalyzer.getFeatures();
+			}
+
+			final TrackAnalyzer trackAnalyzer = ( TrackAnalyzer ) analyzer;
+			settings.addTrackAnalyzer( trackAnalyzer );
+			featureModel.declareTrackFeatures(
+					trackAnalyzer.getFeatures(),
+					trackAnalyzer.getFeatureNames(),
+					trackAnalyzer.getFeatureShortNames(),
+					trackAnalyzer.getFeatureDimensions(),
+					trackAnalyzer.getIsIntFeature() );
+			trackAnalyzer.process( trackIDs, model );
+			return trackAnalyzer.getFeatures();
+		}
+	}
+}
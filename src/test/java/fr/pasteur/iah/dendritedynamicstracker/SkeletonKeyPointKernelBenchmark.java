@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.util.Arrays;
+
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointKernel.KeyPoints;
+import ij.IJ;
+import ij.ImagePlus;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.SkeletonResult;
+
+/**
+ * Compares the time it takes to classify the skeleton pixels of each frame
+ * with the packed kernel, with its scalar version, and with a full
+ * AnalyzeSkeleton run.
+ */
+public class SkeletonKeyPointKernelBenchmark
+{
+
+	private static final int N_RUNS = 10;
+
+	public static void main( final String[] args )
+	{
+		final String path = ( args.length > 0 ) ? args[ 0 ] : "samples/traces2.tif";
+		final int skeletonChannel = ( args.length > 1 ) ? Integer.parseInt( args[ 1 ] ) : 2;
+
+		final ImagePlus imp = IJ.openImage( path );
+		final PackedSkeleton skeleton = PackedSkeleton.fromImage( imp, skeletonChannel, 1 );
+		final int nFrames = skeleton.getNFrames();
+		System.out.println( "Skeleton: " + skeleton.getWidth() + " x " + skeleton.getHeight() + " x " + skeleton.getDepth()
+				+ ", " + nFrames + " frames." );
+
+		// Check that both kernels agree.
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			final KeyPoints packed = SkeletonKeyPointKernel.classify( skeleton, t );
+			final KeyPoints scalar = SkeletonKeyPointKernel.classifyScalar( skeleton, t );
+			if ( !Arrays.equals( packed.endPoints, scalar.endPoints )
+					|| !Arrays.equals( packed.slabs, scalar.slabs )
+					|| !Arrays.equals( packed.junctions, scalar.junctions ) )
+			{
+				System.err.println( "Kernels disagree at frame " + t + "." );
+				return;
+			}
+		}
+
+		// Warm-up then measure.
+		for ( int run = 0; run < 2; run++ )
+		{
+			timeKernel( skeleton, false );
+			timeKernel( skeleton, true );
+		}
+
+		long packedTime = 0L;
+		long scalarTime = 0L;
+		for ( int run = 0; run < N_RUNS; run++ )
+		{
+			packedTime += timeKernel( skeleton, false );
+			scalarTime += timeKernel( skeleton, true );
+		}
+
+		final AnalyzeSkeleton_ skelAnalyzer = new AnalyzeSkeleton_();
+		final long start = System.nanoTime();
+		for ( int t = 0; t < nFrames; t++ )
+		{
+			final ImagePlus frame = new ImagePlus( "", skeleton.toStack( t ) );
+			skelAnalyzer.setup( "", frame );
+			final SkeletonResult result = skelAnalyzer.run( AnalyzeSkeleton_.NONE, false, false, null, true, false );
+			if ( null == result )
+				System.err.println( "AnalyzeSkeleton failed at frame " + t + "." );
+		}
+		final long analyzeSkeletonTime = System.nanoTime() - start;
+
+		System.out.println( String.format( "Packed kernel:   %8.3f ms per frame.", packedTime / 1e6 / N_RUNS / nFrames ) );
+		System.out.println( String.format( "Scalar kernel:   %8.3f ms per frame.", scalarTime / 1e6 / N_RUNS / nFrames ) );
+		System.out.println( String.format( "AnalyzeSkeleton: %8.3f ms per frame.", analyzeSkeletonTime / 1e6 / nFrames ) );
+	}
+
+	private static long timeKernel( final PackedSkeleton skeleton, final boolean scalar )
+	{
+		final long start = System.nanoTime();
+		long junctions = 0L;
+		for ( int t = 0; t < skeleton.getNFrames(); t++ )
+		{
+			final KeyPoints keyPoints = scalar
+					? SkeletonKeyPointKernel.classifyScalar( skeleton, t )
+					: SkeletonKeyPointKernel.classify( skeleton, t );
+			junctions += keyPoints.countJunctions();
+		}
+		if ( junctions < 0L )
+			System.out.println( junctions );
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * A Fiji plugin to track the dynamics of dendrites in 2D time-lapse movies.
+ * %%
+ * Copyright (C) 2019 - 2023 Institut Pasteur
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Institut Pasteur / IAH nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package fr.pasteur.iah.dendritedynamicstracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackMate;
+import fr.pasteur.iah.dendritedynamicstracker.SkeletonKeyPointsDetector.DetectionResults;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.feature.BranchLengthAnalyzerFactory;
+import fr.pasteur.iah.dendritedynamicstracker.trackmate.tracking.SkeletonEndPointTrackerFactory;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImageJ;
+import net.imagej.ops.special.function.Functions;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+
+/**
+ * Saves the results of a run to a sidecar file, reloads them, patches the
+ * branch tracks again with the reloaded skeleton graphs, and checks that the
+ * branch lengths are the same as before saving.
+ */
+public class TestDriveSessionIO
+{
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final String path = ( args.length > 0 ) ? args[ 0 ] : "samples/Example3-dendrites_traced-1.tif";
+		final int skeletonChannel = ( args.length > 1 ) ? Integer.parseInt( args[ 1 ] ) : 2;
+
+		final ImageJ ij = new ImageJ();
+		final ImagePlus imp = IJ.openImage( path );
+
+		final SkeletonKeyPointsDetector detector = ( SkeletonKeyPointsDetector ) Functions.unary(
+				ij.op(), SkeletonKeyPointsDetector.class, DetectionResults.class, ImagePlus.class,
+				skeletonChannel, 1, AnalyzeSkeleton_.SHORTEST_BRANCH, false, 0., 0., false );
+		final DetectionResults detectionResults = detector.calculate( imp );
+		final Model junctionModel = DendriteDynamicsTrackerCommand.trackJunctions( detectionResults, imp, 5. );
+		final TrackMate trackmate = DendriteDynamicsTrackerCommand.trackEndPoints( detectionResults, junctionModel, imp, 5.,
+				SkeletonEndPointTrackerFactory.DEFAULT_MATCHED_COST_FACTOR.doubleValue(), false );
+		final Model model = trackmate.getModel();
+		new DendriteTrackAnalysis( trackmate, junctionModel, detectionResults ).process();
+
+		final Map< Spot, Double > before = new HashMap<>();
+		for ( final Spot spot : model.getSpots().iterable( true ) )
+			before.put( spot, spot.getFeature( BranchLengthAnalyzerFactory.FEATURE ) );
+
+		/*
+		 * Save, reload and patch again.
+		 */
+
+		final File file = File.createTempFile( "TestDriveSessionIO", DendriteDynamicsSessionIO.EXTENSION );
+		file.deleteOnExit();
+		DendriteDynamicsSessionIO.write( new DendriteDynamicsSession( detectionResults, junctionModel, skeletonChannel, false, false ), file );
+		final DendriteDynamicsSession reloaded = DendriteDynamicsSessionIO.read( file, model );
+		new DendriteTrackAnalysis( trackmate, reloaded.getJunctionModel(), reloaded.getDetectionResults() ).process();
+
+		int nDifferent = 0;
+		for ( final Spot spot : model.getSpots().iterable( true ) )
+		{
+			final Double expected = before.get( spot );
+			final Double actual = spot.getFeature( BranchLengthAnalyzerFactory.FEATURE );
+			if ( null == expected ? null != actual : !expected.equals( actual ) )
+			{
+				if ( nDifferent++ < 10 )
+					System.err.println( "Branch length of " + spot + " changed: " + expected + " -> " + actual );
+			}
+		}
+		System.out.println( ( nDifferent == 0 )
+				? "Branch lengths are identical after reloading " + before.size() + " end-points."
+				: nDifferent + " out of " + before.size() + " end-points have a different branch length after reloading." );
+		ij.context().dispose();
+	}
+}